@@ -0,0 +1,121 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.services;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.integratedmodelling.api.modelling.IActiveSubject;
+import org.integratedmodelling.api.modelling.IObservable;
+import org.integratedmodelling.api.modelling.IObservation;
+import org.integratedmodelling.api.modelling.IScale;
+import org.integratedmodelling.api.modelling.IState;
+import org.integratedmodelling.api.modelling.scheduling.ITransition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks {@link ExampleSubjectInstantiator} and
+ * {@link ExampleEventInstantiator} over all the timesteps of a grid, with one
+ * input state whose values are a smooth field with some no-data.
+ * Subjects are created from the regions above the default threshold.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InstantiatorBenchmark {
+
+	@Param({ "256", "1024", "2048" })
+	int gridSize;
+
+	@Param({ "1" })
+	int outputs;
+
+	@Param({ "10" })
+	int steps;
+
+	IActiveSubject subject;
+	ITransition[] transitions;
+	Map<String, IState> inputs;
+	Map<String, IObservable> expectedInputs;
+	Map<String, IObservable> expectedOutputs;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		IScale scale = StandIns.scale(gridSize, gridSize, steps);
+		IState input = StandIns.input(scale, 0.3);
+		subject = StandIns.subject(scale, input);
+		transitions = StandIns.transitions(scale);
+		inputs = Collections.singletonMap("input1", input);
+		expectedInputs = StandIns.observables("input", 1);
+		expectedOutputs = StandIns.observables("output", outputs);
+	}
+
+	@Benchmark
+	public void subjects(Blackhole blackhole) throws Exception {
+		ExampleSubjectInstantiator instantiator = new ExampleSubjectInstantiator();
+		instantiator.initialize(subject, null, null, expectedInputs, expectedOutputs, null);
+		for (ITransition transition : transitions) {
+			consume(instantiator.createSubjects(transition, inputs), blackhole);
+		}
+	}
+
+	@Benchmark
+	public void events(Blackhole blackhole) throws Exception {
+		ExampleEventInstantiator instantiator = new ExampleEventInstantiator();
+		instantiator.initialize(subject, null, null, expectedInputs, expectedOutputs, null);
+		for (ITransition transition : transitions) {
+			consume(instantiator.createEvents(transition, inputs), blackhole);
+		}
+	}
+
+	/*
+	 * the maps may be filled lazily, so read them through.
+	 */
+	private static void consume(Map<String, IObservation> observations, Blackhole blackhole) {
+		if (observations != null) {
+			for (Map.Entry<String, IObservation> entry : observations.entrySet()) {
+				blackhole.consume(entry.getValue());
+			}
+		}
+	}
+}
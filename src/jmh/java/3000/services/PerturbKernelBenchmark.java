@@ -0,0 +1,112 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.services;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import 3000.runtime.CellRandom;
+import 3000.runtime.PerturbKernel;
+import 3000.runtime.TileExecutor;
+
+/**
+ * Compares the array kernels in {@link PerturbKernel} with the cell-by-cell
+ * loop they replace, over one transition of a square grid processed in tiles
+ * of the default size. The deltas benchmark only measures the random numbers,
+ * which both versions need.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PerturbKernelBenchmark {
+
+	@Param({ "1024", "2048", "4096" })
+	int gridSize;
+
+	double[] previous;
+	double[] current;
+	double[] deltas;
+	CellRandom random = new CellRandom(42);
+
+	@Setup(Level.Trial)
+	public void setup() {
+		int cells = gridSize * gridSize;
+		previous = new double[cells];
+		current = new double[cells];
+		deltas = new double[TileExecutor.DEFAULT_TILE_SIZE];
+		for (int i = 0; i < cells; i++) {
+			previous[i] = i % 97 == 0 ? Double.NaN : random.uniform(i, 0, 0, 0, 500);
+		}
+	}
+
+	@Benchmark
+	public double[] scalar() {
+		int tile = TileExecutor.DEFAULT_TILE_SIZE;
+		for (int from = 0; from < previous.length; from += tile) {
+			int to = Math.min(previous.length, from + tile);
+			for (int i = from; i < to; i++) {
+				current[i] = PerturbKernel.perturb(previous[i], random.uniform(i, 1, 0, -50.0, 50.0), 1);
+			}
+		}
+		return current;
+	}
+
+	@Benchmark
+	public double[] kernel() {
+		int tile = TileExecutor.DEFAULT_TILE_SIZE;
+		for (int from = 0; from < previous.length; from += tile) {
+			int to = Math.min(previous.length, from + tile);
+			PerturbKernel.deltas(random, 1, 0, -50.0, 50.0, deltas, from, to);
+			PerturbKernel.perturb(previous, deltas, current, from, to, 1);
+		}
+		return current;
+	}
+
+	@Benchmark
+	public double[] deltas() {
+		int tile = TileExecutor.DEFAULT_TILE_SIZE;
+		for (int from = 0; from < previous.length; from += tile) {
+			PerturbKernel.deltas(random, 1, 0, -50.0, 50.0, deltas, from, Math.min(previous.length, from + tile));
+		}
+		return deltas;
+	}
+}
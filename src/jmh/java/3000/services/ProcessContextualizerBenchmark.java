@@ -0,0 +1,129 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.services;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.integratedmodelling.api.modelling.IActiveProcess;
+import org.integratedmodelling.api.modelling.IObservable;
+import org.integratedmodelling.api.modelling.IObservation;
+import org.integratedmodelling.api.modelling.IScale;
+import org.integratedmodelling.api.modelling.IState;
+import org.integratedmodelling.api.modelling.scheduling.ITransition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link ExampleProcessContextualizer} on a square grid. The
+ * initialize benchmark builds and initializes a new contextualizer; the compute
+ * benchmark runs all the timesteps on one that has been initialized before the
+ * measurement iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProcessContextualizerBenchmark {
+
+	@Param({ "256", "1024", "2048" })
+	int gridSize;
+
+	@Param({ "1", "4" })
+	int outputs;
+
+	@Param({ "10" })
+	int steps;
+
+	@Param({ "true", "false" })
+	boolean input;
+
+	@Param({ "1" })
+	int threads;
+
+	/*
+	 * steps computed per pass over the grid (temporal blocking)
+	 */
+	@Param({ "1", "4" })
+	int block;
+
+	IScale scale;
+	ITransition[] transitions;
+	IState inputState;
+	Map<String, IObservable> expectedInputs;
+	Map<String, IObservable> expectedOutputs;
+	Map<String, Object> parameters = new HashMap<>();
+	ExampleProcessContextualizer contextualizer;
+
+	@Setup(Level.Trial)
+	public void setupTrial() {
+		scale = StandIns.scale(gridSize, gridSize, steps);
+		transitions = StandIns.transitions(scale);
+		inputState = input ? StandIns.input(scale, 0) : null;
+		expectedInputs = input ? StandIns.observables("input", 1) : Collections.<String, IObservable> emptyMap();
+		expectedOutputs = StandIns.observables("output", outputs);
+		parameters.put("threads", threads);
+		parameters.put("block", block);
+	}
+
+	@Setup(Level.Iteration)
+	public void setupIteration() throws Exception {
+		contextualizer = initialize();
+	}
+
+	@Benchmark
+	public ExampleProcessContextualizer initialize() throws Exception {
+		IActiveProcess process = input ? StandIns.process(scale, inputState) : StandIns.process(scale);
+		ExampleProcessContextualizer ret = new ExampleProcessContextualizer();
+		ret.setContext(parameters, null, null);
+		ret.initialize(process, process, null, expectedInputs, expectedOutputs, null);
+		return ret;
+	}
+
+	@Benchmark
+	public Map<String, IObservation> compute() throws Exception {
+		Map<String, IObservation> ret = null;
+		for (ITransition transition : transitions) {
+			ret = contextualizer.compute(transition, Collections.<String, IState> emptyMap());
+		}
+		return ret;
+	}
+}
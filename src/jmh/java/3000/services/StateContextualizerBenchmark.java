@@ -0,0 +1,163 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.services;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.integratedmodelling.api.modelling.IScale;
+import org.integratedmodelling.api.modelling.IState;
+import org.integratedmodelling.api.modelling.scheduling.ITransition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import 3000.runtime.Slice;
+import 3000.runtime.TileExecutor;
+
+/**
+ * Benchmarks {@link ExampleStateContextualizer} the way the engine calls it:
+ * once per cell, with a map of the input values for the cell, and through the
+ * block API, a tile at a time over the states. With more than one
+ * realization, the outputs are the mean, the variance and the 5th, 50th and
+ * 95th percentiles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StateContextualizerBenchmark {
+
+	@Param({ "256", "1024", "2048" })
+	int gridSize;
+
+	@Param({ "1", "4" })
+	int inputs;
+
+	@Param({ "10" })
+	int steps;
+
+	@Param({ "1" })
+	int threads;
+
+	@Param({ "1", "16" })
+	int realizations;
+
+	int cells;
+	double[] values;
+	String[] names;
+	ITransition[] transitions;
+	ExampleStateContextualizer contextualizer;
+
+	IScale scale;
+	IState[] inputStates;
+	IState[] outputStates;
+	TileExecutor executor;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		scale = StandIns.scale(gridSize, gridSize, steps);
+		cells = gridSize * gridSize;
+		IState input = StandIns.input(scale, 0);
+		values = StandIns.values(input);
+		transitions = StandIns.transitions(scale);
+		names = new String[inputs];
+		for (int i = 0; i < inputs; i++) {
+			names[i] = "input" + (i + 1);
+		}
+		contextualizer = realizations > 1 ? new ExampleStateContextualizer(null, realizations, 0.05, 0.5, 0.95)
+				: new ExampleStateContextualizer(null);
+		contextualizer.setSeed(42);
+		contextualizer.setInputKeys(names);
+		inputStates = new IState[inputs];
+		Arrays.fill(inputStates, input);
+		outputStates = new IState[contextualizer.getOutputKeys().length];
+		for (int i = 0; i < outputStates.length; i++) {
+			outputStates[i] = StandIns.state(scale);
+		}
+		executor = new TileExecutor(threads);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	@Benchmark
+	public void initializeBlocks() throws Exception {
+		contextualizer.run(Slice.of(scale, null), null, inputStates, outputStates, executor);
+	}
+
+	@Benchmark
+	public void computeBlocks() throws Exception {
+		for (ITransition transition : transitions) {
+			contextualizer.run(Slice.of(scale, transition), transition, inputStates, outputStates, executor);
+		}
+	}
+
+	@Benchmark
+	public void initialize(Blackhole blackhole) throws Exception {
+		for (int n = 0; n < cells; n++) {
+			blackhole.consume(contextualizer.initialize(n, inputs(n)));
+		}
+	}
+
+	@Benchmark
+	public void compute(Blackhole blackhole) throws Exception {
+		for (ITransition transition : transitions) {
+			for (int n = 0; n < cells; n++) {
+				blackhole.consume(contextualizer.compute(n, transition, inputs(n)));
+			}
+		}
+	}
+
+	/*
+	 * a new map for each call, like the engine does.
+	 */
+	private Map<String, Object> inputs(int n) {
+		Map<String, Object> ret = new HashMap<>();
+		for (String name : names) {
+			ret.put(name, values[n]);
+		}
+		return ret;
+	}
+}
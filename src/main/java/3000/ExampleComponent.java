@@ -26,11 +26,17 @@
  *******************************************************************************/
 package 3000;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
 import org.integratedmodelling.Version;
 import org.integratedmodelling.api.components.Component;
 import org.integratedmodelling.api.components.Initialize;
 import org.integratedmodelling.api.components.Setup;
 
+import 3000.runtime.WarmUp;
+
 /**
  * Do-nothing example of a component declaration. Use the 
  * {@link org.integratedmodelling.api.components.Component} annotation to declare
@@ -75,11 +81,48 @@ public class ExampleComponent {
      * language API. It is also optional; if not present, the component is assumed 
      * operational.
      * 
+     * Here we use it to warm up: if example.warmup.enabled is true in
+     * META-INF/klab.properties (or as a system property), the contextualizer kernels
+     * are run on synthetic data for up to example.warmup.budget milliseconds, so that
+     * the first model run after a restart doesn't pay for class loading and JIT
+     * compilation of the hot loops. A budget that isn't a number is taken as the
+     * default, 2000.
+     * 
      * @return true
      */
 
     @Initialize
     public boolean initialize() {
+        Properties properties = properties();
+        if (Boolean.parseBoolean(property(properties, "example.warmup.enabled", "false"))) {
+            long budget = 2000;
+            try {
+                budget = Long.parseLong(property(properties, "example.warmup.budget", "2000").trim());
+            } catch (NumberFormatException e) {
+                // keep the default
+            }
+            WarmUp.run(budget);
+        }
         return true;
     }
+
+    /*
+     * the component's klab.properties, or nothing if it can't be read.
+     */
+    private static Properties properties() {
+        Properties ret = new Properties();
+        try (InputStream in = ExampleComponent.class.getClassLoader()
+                .getResourceAsStream("META-INF/klab.properties")) {
+            if (in != null) {
+                ret.load(in);
+            }
+        } catch (IOException e) {
+            // no settings, use defaults
+        }
+        return ret;
+    }
+
+    private static String property(Properties properties, String name, String defaultValue) {
+        return System.getProperty(name, properties.getProperty(name, defaultValue));
+    }
 }
@@ -0,0 +1,273 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.integratedmodelling.api.modelling.IState;
+import org.integratedmodelling.api.modelling.scheduling.ITransition;
+import org.integratedmodelling.api.monitoring.IMonitor;
+import org.integratedmodelling.common.model.runtime.AbstractStateContextualizer;
+import org.integratedmodelling.common.states.States;
+import org.integratedmodelling.exceptions.KlabException;
+
+/**
+ * A state contextualizer that computes contiguous ranges of cells at once,
+ * with inputs and outputs as primitive columns instead of one map of boxed
+ * values per cell. Subclasses implement the two block methods; the per-index
+ * methods the engine calls are implemented on top of them, one cell at a time,
+ * so the contextualizer keeps working where nothing else is available.
+ * {@link #run} drives the block methods directly over a slice of input and
+ * output states, tile by tile.
+ * 
+ * Columns are double arrays with one entry per cell in the block: value i
+ * belongs to cell from + i. Input columns are in the order of
+ * {@link #getInputKeys()}, output columns in that of {@link #getOutputKeys()}.
+ * No-data is NaN.
+ * 
+ * Transitions computed by {@link #run} are timed by a {@link Probe} when
+ * instrumentation is on, and summarized to the monitor after the last one.
+ * The per-index methods are not timed.
+ * 
+ * The per-index methods can be called from several threads. Each thread
+ * reuses its own columns from one cell to the next; the map returned is new
+ * at each call, so callers can keep it.
+ */
+public abstract class BlockStateContextualizer extends AbstractStateContextualizer {
+
+	private volatile String[] inputKeys;
+	private final String[] outputKeys;
+	private final IMonitor monitor;
+	private final Probe probe;
+
+	/*
+	 * what the per-index methods of each thread work on.
+	 */
+	private final ThreadLocal<Cell> cells = new ThreadLocal<>();
+
+	private static class Cell {
+
+		final double[][] in;
+		final double[][] out;
+
+		Cell(int inputs, int outputs) {
+			this.in = new double[inputs][1];
+			this.out = new double[outputs][1];
+		}
+	}
+
+	protected BlockStateContextualizer(IMonitor monitor, String... outputKeys) {
+		super(monitor);
+		this.monitor = monitor;
+		this.outputKeys = outputKeys;
+		this.probe = new Probe(getClass().getSimpleName());
+	}
+
+	/**
+	 * Compute the initial values of cells from to to - 1.
+	 * 
+	 * @param from
+	 * @param to
+	 * @param inputs
+	 *            one column per input, of at least to - from values.
+	 * @param outputs
+	 *            one column per output to fill in.
+	 * @throws KlabException
+	 */
+	public abstract void initialize(int from, int to, double[][] inputs, double[][] outputs) throws KlabException;
+
+	/**
+	 * Compute the values of cells from to to - 1 at the passed transition.
+	 * Same conventions as {@link #initialize(int, int, double[][], double[][])}.
+	 */
+	public abstract void compute(int from, int to, ITransition transition, double[][] inputs, double[][] outputs)
+			throws KlabException;
+
+	/**
+	 * Names of the inputs, in column order. Unless set explicitly, these are
+	 * the keys of the first input map passed to the per-index methods, in
+	 * alphabetical order.
+	 */
+	public String[] getInputKeys() {
+		return inputKeys;
+	}
+
+	public void setInputKeys(String... inputKeys) {
+		this.inputKeys = inputKeys;
+	}
+
+	/**
+	 * Names of the outputs, in column order.
+	 */
+	public String[] getOutputKeys() {
+		return outputKeys;
+	}
+
+	@Override
+	public Map<String, Object> initialize(int index, Map<String, Object> inputs) throws KlabException {
+		Cell cell = columns(inputs);
+		initialize(index, index + 1, cell.in, cell.out);
+		return values(cell);
+	}
+
+	@Override
+	public Map<String, Object> compute(int index, ITransition transition, Map<String, Object> inputs)
+			throws KlabException {
+		Cell cell = columns(inputs);
+		compute(index, index + 1, transition, cell.in, cell.out);
+		return values(cell);
+	}
+
+	/**
+	 * Compute all the cells in a slice, reading the input states and writing
+	 * the output states tile by tile, in parallel if the executor allows.
+	 * Inputs and outputs are in column order. Only the columns of the tiles
+	 * being computed are held in memory, so with an executor made by
+	 * {@link TileExecutor#withBudget} (8 bytes per cell for each input and
+	 * output) the working set stays within the budget whatever the size of
+	 * the grid.
+	 * 
+	 * @param slice
+	 *            the cells to compute.
+	 * @param transition
+	 *            the transition, or null to initialize.
+	 * @param inputs
+	 * @param outputs
+	 * @param executor
+	 * @throws KlabException
+	 */
+	public void run(Slice slice, ITransition transition, IState[] inputs, IState[] outputs, TileExecutor executor)
+			throws KlabException {
+		run(slice, transition, inputs, outputs, null, executor);
+	}
+
+	/**
+	 * Like {@link #run(Slice, ITransition, IState[], IState[], TileExecutor)},
+	 * but skipping the cells that are not valid in the mask: their inputs are
+	 * not read and their outputs are set to no-data. Use
+	 * {@link ValidMask#of(IState, Slice, int)} to build the mask once from an
+	 * input that defines where data are.
+	 */
+	public void run(final Slice slice, final ITransition transition, final IState[] inputs, final IState[] outputs,
+			final ValidMask mask, TileExecutor executor) throws KlabException {
+
+		final KlabException[] error = new KlabException[1];
+
+		probe.begin();
+		executor.run(slice.size(), (tile, from, to) -> {
+
+			double[][] in = new double[inputs.length][to - from];
+			double[][] out = new double[outputs.length][to - from];
+
+			long reading = probe.statesBegin();
+			for (int c = 0; c < inputs.length; c++) {
+				for (int i = from; i < to; i++) {
+					in[c][i - from] = mask == null || mask.isValid(slice.spaceOffset(i))
+							? States.getDouble(inputs[c], slice.offsets[i])
+							: Double.NaN;
+				}
+			}
+			probe.statesEnd(reading);
+
+			try {
+				if (transition == null) {
+					initialize(from, to, in, out);
+				} else {
+					compute(from, to, transition, in, out);
+				}
+			} catch (KlabException e) {
+				synchronized (error) {
+					error[0] = e;
+				}
+				return;
+			}
+
+			/*
+			 * we don't know if the states can take concurrent writes.
+			 */
+			synchronized (outputs) {
+				long writing = probe.statesBegin();
+				for (int c = 0; c < outputs.length; c++) {
+					for (int i = from; i < to; i++) {
+						States.set(outputs[c], mask == null || mask.isValid(slice.spaceOffset(i)) ? out[c][i - from]
+								: Double.NaN, slice.offsets[i]);
+					}
+				}
+				probe.statesEnd(writing);
+			}
+		});
+		probe.end(slice.size());
+
+		if (transition != null && transition.isLast()) {
+			probe.report(monitor);
+		}
+
+		if (error[0] != null) {
+			throw error[0];
+		}
+	}
+
+	/*
+	 * the columns of this thread, with the values of the inputs of one cell.
+	 * The first thread to get here sets the input keys, if nobody has.
+	 */
+	private Cell columns(Map<String, Object> inputs) {
+
+		String[] keys = inputKeys;
+		if (keys == null) {
+			synchronized (this) {
+				if (inputKeys == null) {
+					String[] sorted = inputs.keySet().toArray(new String[inputs.size()]);
+					Arrays.sort(sorted);
+					inputKeys = sorted;
+				}
+				keys = inputKeys;
+			}
+		}
+
+		Cell ret = cells.get();
+		if (ret == null || ret.in.length != keys.length) {
+			ret = new Cell(keys.length, outputKeys.length);
+			cells.set(ret);
+		}
+		for (int c = 0; c < keys.length; c++) {
+			Object value = inputs.get(keys[c]);
+			ret.in[c][0] = value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+		}
+		return ret;
+	}
+
+	private Map<String, Object> values(Cell cell) {
+		Map<String, Object> ret = new HashMap<>();
+		for (int c = 0; c < outputKeys.length; c++) {
+			ret.put(outputKeys[c], cell.out[c][0]);
+		}
+		return ret;
+	}
+}
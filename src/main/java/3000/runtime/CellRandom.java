@@ -0,0 +1,81 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+/**
+ * Counter-based random numbers: each value is a hash of a seed, a cell
+ * offset, a timestep and a stream number (e.g. the index of the output being
+ * computed), so any cell can get its random numbers independently of all the
+ * others, in any order and from any thread, with no shared state. Two runs with
+ * the same seed produce the same numbers.
+ * 
+ * The hash is the SplitMix64 finalizer applied twice, which passes the usual
+ * statistical test batteries for this kind of use and costs a handful of
+ * multiplications per value.
+ */
+public final class CellRandom {
+
+	private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+	private final long seed;
+
+	public CellRandom(long seed) {
+		this.seed = seed;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * 64 random bits for the passed coordinates.
+	 */
+	public long bits(int cell, int step, int stream) {
+		long counter = ((long) step << 32) | (cell & 0xFFFFFFFFL);
+		return mix(seed ^ mix(counter + (stream + 1) * GOLDEN));
+	}
+
+	/**
+	 * A random double uniformly distributed in [0, 1).
+	 */
+	public double uniform(int cell, int step, int stream) {
+		return (bits(cell, step, stream) >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * A random double uniformly distributed in [min, max).
+	 */
+	public double uniform(int cell, int step, int stream, double min, double max) {
+		return min + uniform(cell, step, stream) * (max - min);
+	}
+
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,217 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.integratedmodelling.api.modelling.IState;
+
+/**
+ * The cells of a state whose value has changed, passed from the contextualizer
+ * that writes the state to those that read it, so that readers can look only
+ * at what changed instead of scanning the whole grid at each transition.
+ * 
+ * Each reader calls {@link #watch(IState, int)} once and gets its own feed,
+ * from which it {@link #take()}s the cells changed since its last call;
+ * readers of the same state don't see each other's takes. Writers check
+ * {@link #get(IState)} and, if someone is watching, report the cells they
+ * change to the {@link Channel}, which passes them on to every feed, then
+ * tell it which step they have finished writing. A state nobody writes
+ * through its channel has no producer, and its readers must fall back to
+ * scanning.
+ * 
+ * The changes a reader takes are those written so far, so they are only the
+ * changes of a transition if the writer has flushed that transition before
+ * the reader runs. In k.LAB a process computes its states before the
+ * contextualizers that depend on them run in the same transition; readers
+ * check that with {@link #getStep()} rather than assuming it.
+ */
+public class ChangeFeed {
+
+	private static final Map<IState, Channel> channels = new WeakHashMap<>();
+
+	private final Channel channel;
+	private final int cells;
+	private final long[] marked;
+	private int[] changed = new int[1024];
+	private int count = 0;
+
+	private ChangeFeed(Channel channel, int cells) {
+		this.channel = channel;
+		this.cells = cells;
+		this.marked = new long[(cells + 63) >>> 6];
+	}
+
+	/**
+	 * Where the writer of a state reports its changes, shared by all the
+	 * feeds watching it. Watchers are only held weakly, so one that goes away
+	 * without closing its feed stops costing anything once collected.
+	 */
+	public static class Channel {
+
+		private final List<WeakReference<ChangeFeed>> watchers = new ArrayList<>();
+		private volatile int step = -1;
+
+		/**
+		 * True if a writer has finished a step through this channel.
+		 */
+		public boolean hasProducer() {
+			return step >= 0;
+		}
+
+		/**
+		 * Report that the values of cells[0] to cells[count - 1] have
+		 * changed. Writers should collect the cells of a tile and report them
+		 * together, which costs one lock per watcher instead of one per cell.
+		 */
+		public void changed(int[] cells, int count) {
+			for (ChangeFeed feed : watchers()) {
+				feed.add(cells, count);
+			}
+		}
+
+		/**
+		 * Report that all the changes of the passed step (1 for the first
+		 * transition) have been reported, even if nothing changed.
+		 */
+		public void produced(int step) {
+			this.step = step;
+		}
+
+		private synchronized void add(ChangeFeed feed) {
+			watchers.add(new WeakReference<>(feed));
+		}
+
+		private synchronized void remove(ChangeFeed feed) {
+			for (Iterator<WeakReference<ChangeFeed>> it = watchers.iterator(); it.hasNext();) {
+				ChangeFeed f = it.next().get();
+				if (f == null || f == feed) {
+					it.remove();
+				}
+			}
+		}
+
+		private synchronized List<ChangeFeed> watchers() {
+			List<ChangeFeed> ret = new ArrayList<>(watchers.size());
+			for (Iterator<WeakReference<ChangeFeed>> it = watchers.iterator(); it.hasNext();) {
+				ChangeFeed f = it.next().get();
+				if (f == null) {
+					it.remove();
+				} else {
+					ret.add(f);
+				}
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Start watching a state. Each call returns a new feed, which only gets
+	 * the changes reported after it was created.
+	 * 
+	 * @param state
+	 * @param cells
+	 *            number of cells in the spatial extent.
+	 */
+	public static ChangeFeed watch(IState state, int cells) {
+		Channel channel;
+		synchronized (channels) {
+			channel = channels.get(state);
+			if (channel == null) {
+				channel = new Channel();
+				channels.put(state, channel);
+			}
+		}
+		ChangeFeed ret = new ChangeFeed(channel, cells);
+		channel.add(ret);
+		return ret;
+	}
+
+	/**
+	 * The channel for a state, or null if nobody has watched it.
+	 */
+	public static Channel get(IState state) {
+		synchronized (channels) {
+			return channels.get(state);
+		}
+	}
+
+	/**
+	 * True if a writer has reported changes to the state, which means that
+	 * cells that were not reported did not change.
+	 */
+	public boolean hasProducer() {
+		return channel.hasProducer();
+	}
+
+	/**
+	 * The last step whose changes the writer has finished reporting, or -1
+	 * if there is no producer yet. A reader at step n can only trust
+	 * {@link #take()} if this is n.
+	 */
+	public int getStep() {
+		return channel.step;
+	}
+
+	/**
+	 * The cells changed since the last call, in the order they were reported.
+	 */
+	public synchronized int[] take() {
+		int[] ret = Arrays.copyOf(changed, count);
+		for (int i = 0; i < count; i++) {
+			marked[changed[i] >>> 6] &= ~(1L << changed[i]);
+		}
+		count = 0;
+		return ret;
+	}
+
+	/**
+	 * Stop watching.
+	 */
+	public void close() {
+		channel.remove(this);
+	}
+
+	private synchronized void add(int[] cells, int n) {
+		for (int i = 0; i < n; i++) {
+			int cell = cells[i];
+			if ((marked[cell >>> 6] & (1L << cell)) == 0) {
+				marked[cell >>> 6] |= 1L << cell;
+				if (count == changed.length) {
+					changed = Arrays.copyOf(changed, Math.min(this.cells, count * 2));
+				}
+				changed[count++] = cell;
+			}
+		}
+	}
+}
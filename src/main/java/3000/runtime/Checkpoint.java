@@ -0,0 +1,136 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A snapshot of a contextualizer at a given step: the values of its outputs,
+ * by name, and any integer parameters it needs to carry on from there (e.g.
+ * the random seed). The binary form is:
+ * 
+ * <pre>
+ * int     magic ('KCKP')
+ * int     version
+ * int     step
+ * int     number of parameters, then for each: UTF name, long value
+ * int     number of outputs, then for each: UTF name, int length, doubles
+ * </pre>
+ * 
+ * all big-endian as written by DataOutputStream.
+ */
+public class Checkpoint {
+
+	public static final int MAGIC = 0x4b434b50;
+	public static final int VERSION = 1;
+
+	public final int step;
+	public final Map<String, Long> parameters;
+	public final Map<String, double[]> values;
+
+	public Checkpoint(int step, Map<String, Long> parameters, Map<String, double[]> values) {
+		this.step = step;
+		this.parameters = parameters;
+		this.values = values;
+	}
+
+	public void write(DataOutputStream out) throws IOException {
+
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(step);
+		out.writeInt(parameters.size());
+		for (Map.Entry<String, Long> entry : parameters.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeLong(entry.getValue());
+		}
+		out.writeInt(values.size());
+
+		/*
+		 * doubles go through a byte buffer in chunks rather than one
+		 * writeDouble() call each.
+		 */
+		ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+		DoubleBuffer doubles = chunk.asDoubleBuffer();
+		for (Map.Entry<String, double[]> entry : values.entrySet()) {
+			double[] data = entry.getValue();
+			out.writeUTF(entry.getKey());
+			out.writeInt(data.length);
+			for (int i = 0; i < data.length; i += doubles.capacity()) {
+				int n = Math.min(doubles.capacity(), data.length - i);
+				doubles.clear();
+				doubles.put(data, i, n);
+				out.write(chunk.array(), 0, n * 8);
+			}
+		}
+	}
+
+	/**
+	 * Read a checkpoint written by {@link #write(DataOutputStream)}.
+	 * 
+	 * @throws IOException
+	 *             if the data isn't a checkpoint of a version we can read.
+	 */
+	public static Checkpoint read(DataInputStream in) throws IOException {
+
+		if (in.readInt() != MAGIC) {
+			throw new IOException("not a checkpoint");
+		}
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException("unsupported checkpoint version " + version);
+		}
+		int step = in.readInt();
+		Map<String, Long> parameters = new LinkedHashMap<>();
+		for (int i = in.readInt(); i > 0; i--) {
+			String name = in.readUTF();
+			parameters.put(name, in.readLong());
+		}
+
+		Map<String, double[]> values = new LinkedHashMap<>();
+		byte[] bytes = new byte[64 * 1024];
+		DoubleBuffer doubles = ByteBuffer.wrap(bytes).asDoubleBuffer();
+		for (int i = in.readInt(); i > 0; i--) {
+			String name = in.readUTF();
+			double[] data = new double[in.readInt()];
+			for (int j = 0; j < data.length; j += doubles.capacity()) {
+				int n = Math.min(doubles.capacity(), data.length - j);
+				in.readFully(bytes, 0, n * 8);
+				doubles.clear();
+				doubles.get(data, j, n);
+			}
+			values.put(name, data);
+		}
+		return new Checkpoint(step, parameters, values);
+	}
+}
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.integratedmodelling.exceptions.KlabIOException;
+
+/**
+ * Keeps the latest {@link Checkpoint} of one run in a file, named after a key
+ * that identifies the run, so that a later run with the same key can pick up
+ * from there. The process contextualizer uses the hex string of the
+ * {@link ResultCache.Digest} of its setup - cells, outputs, parameters and
+ * initial input values - which also keys its cached initial values.
+ * 
+ * Checkpoints are written by a background thread, so the transition that
+ * saves one only pays for copying the values. At most one write is pending:
+ * saving again waits for the previous one. Each checkpoint is written to a
+ * temporary file and moved over the old one when complete, so a crash while
+ * writing leaves the previous checkpoint intact.
+ */
+public class CheckpointWriter {
+
+	private final File file;
+	private final ExecutorService writer;
+	private Future<?> pending;
+
+	/**
+	 * @param directory
+	 *            where to keep the file; created if needed.
+	 * @param key
+	 *            identifies the run; must be safe in a file name.
+	 */
+	public CheckpointWriter(File directory, String key) {
+		directory.mkdirs();
+		this.file = new File(directory, key + ".ckp");
+		this.writer = Executors.newSingleThreadExecutor((runnable) -> {
+			Thread ret = new Thread(runnable, "checkpoint " + key);
+			ret.setDaemon(true);
+			return ret;
+		});
+	}
+
+	/**
+	 * The default directory for checkpoints: the example.checkpoint.dir
+	 * system property if set, or klab-checkpoints in the temporary
+	 * directory.
+	 */
+	public static File defaultDirectory() {
+		String dir = System.getProperty("example.checkpoint.dir");
+		return dir == null ? new File(System.getProperty("java.io.tmpdir"), "klab-checkpoints") : new File(dir);
+	}
+
+	/**
+	 * The last checkpoint saved with our key, or null if there is none or it
+	 * can't be read.
+	 */
+	public Checkpoint latest() {
+		if (!file.exists()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			return Checkpoint.read(in);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Save a checkpoint in the background. The values are copied before
+	 * returning, so the arrays can be changed right away.
+	 * 
+	 * @throws KlabIOException
+	 *             if the previous checkpoint could not be written.
+	 */
+	public void save(int step, Map<String, Long> parameters, Map<String, double[]> values)
+			throws KlabIOException {
+
+		Map<String, double[]> copies = new LinkedHashMap<>();
+		for (Map.Entry<String, double[]> entry : values.entrySet()) {
+			copies.put(entry.getKey(), entry.getValue().clone());
+		}
+		final Checkpoint checkpoint = new Checkpoint(step, new LinkedHashMap<>(parameters), copies);
+
+		waitPending();
+		pending = writer.submit(() -> {
+			File tmp = new File(file.getPath() + ".tmp");
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024))) {
+				checkpoint.write(out);
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			return null;
+		});
+	}
+
+	/**
+	 * Remove the checkpoint, e.g. when the run has completed and there is
+	 * nothing left to resume.
+	 * 
+	 * @throws KlabIOException
+	 *             if a pending checkpoint could not be written.
+	 */
+	public void delete() throws KlabIOException {
+		waitPending();
+		file.delete();
+	}
+
+	/**
+	 * Wait for any pending write and stop the writer thread.
+	 * 
+	 * @throws KlabIOException
+	 *             if the pending checkpoint could not be written.
+	 */
+	public void close() throws KlabIOException {
+		try {
+			waitPending();
+		} finally {
+			writer.shutdown();
+		}
+	}
+
+	private void waitPending() throws KlabIOException {
+		if (pending == null) {
+			return;
+		}
+		try {
+			pending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KlabIOException(e);
+		} catch (ExecutionException e) {
+			throw new KlabIOException(e.getCause());
+		} finally {
+			pending = null;
+		}
+	}
+}
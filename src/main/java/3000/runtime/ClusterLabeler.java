@@ -0,0 +1,596 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import org.integratedmodelling.exceptions.KlabRuntimeException;
+
+/**
+ * Connected-component labeling of the cells of a grid that pass a test,
+ * producing one {@link Cluster} per connected region along with its extent.
+ * 
+ * The grid is split into horizontal strips that are labeled in parallel. Each
+ * strip is scanned row by row with a union-find over its own labels, keeping
+ * only two rows of labels in memory; a region is complete as soon as a row
+ * has no cells of it, and is handed out right away unless it touches the
+ * boundary with another strip. Those that do are merged across strips at the
+ * end, from what each strip keeps of them when it's done: its first and last
+ * row and their extent, the label tables of the strip going away right then.
+ * The cost is linear in the number of cells, and clusters can be
+ * consumed while labeling goes on through {@link #stream(int, int)}, which
+ * must be closed if it's not read to the end.
+ */
+public class ClusterLabeler {
+
+	/**
+	 * Decides which cells belong to clusters.
+	 */
+	public interface CellTest {
+		boolean test(int cell);
+	}
+
+	/**
+	 * A connected region of cells. Coordinates are grid offsets; the region
+	 * is identified by its first cell in row-major order, which does not
+	 * depend on how the grid was split.
+	 */
+	public static class Cluster {
+
+		public final int first;
+		public final int count;
+		public final int minX;
+		public final int minY;
+		public final int maxX;
+		public final int maxY;
+
+		Cluster(int first, int count, int minX, int minY, int maxX, int maxY) {
+			this.first = first;
+			this.count = count;
+			this.minX = minX;
+			this.minY = minY;
+			this.maxX = maxX;
+			this.maxY = maxY;
+		}
+
+		@Override
+		public String toString() {
+			return "cluster " + first + " (" + count + " cells in [" + minX + "," + minY + "]-[" + maxX + ","
+					+ maxY + "])";
+		}
+	}
+
+	/**
+	 * The clusters found by labeling in the background, as they are found.
+	 * Closing it stops the labeling and releases its threads; a consumer that
+	 * stops reading before the end should close it, or the labeling thread
+	 * waits until the stream is garbage collected.
+	 */
+	public interface Labeling extends Iterator<Cluster>, AutoCloseable {
+
+		@Override
+		void close();
+	}
+
+	/*
+	 * marks the end of a stream
+	 */
+	private static final Cluster END = new Cluster(-1, 0, 0, 0, 0, 0);
+
+	/*
+	 * thrown in the labeling threads to unwind them when the stream is
+	 * closed.
+	 */
+	@SuppressWarnings("serial")
+	private static class Cancelled extends RuntimeException {
+		Cancelled() {
+			super(null, null, false, false);
+		}
+	}
+
+	public static final int DEFAULT_STRIP_ROWS = 256;
+
+	private final int width;
+	private final int height;
+	private final boolean diagonal;
+	private final CellTest test;
+	private int stripRows = DEFAULT_STRIP_ROWS;
+
+	/**
+	 * @param width
+	 * @param height
+	 * @param diagonal
+	 *            if true, cells touching at a corner are connected (8
+	 *            neighbors); otherwise only cells sharing a side are.
+	 * @param test
+	 *            true for cells that belong to clusters. Must be safe to call
+	 *            from more than one thread.
+	 */
+	public ClusterLabeler(int width, int height, boolean diagonal, CellTest test) {
+		this.width = width;
+		this.height = height;
+		this.diagonal = diagonal;
+		this.test = test;
+	}
+
+	public void setStripRows(int stripRows) {
+		this.stripRows = stripRows;
+	}
+
+	/**
+	 * Label the grid and pass each cluster to the sink, which may be called
+	 * from more than one thread at a time. Returns when all clusters have been
+	 * passed.
+	 * 
+	 * @param threads
+	 *            as in {@link TileExecutor#TileExecutor(int)}.
+	 * @param sink
+	 */
+	public void label(int threads, Consumer<Cluster> sink) {
+
+		TileExecutor executor = new TileExecutor(threads, stripRows);
+		final Strip[] strips = new Strip[executor.tiles(height)];
+
+		try {
+			executor.run(height, (tile, from, to) -> {
+				strips[tile] = new Strip(from, to);
+				strips[tile].run(sink);
+			});
+		} finally {
+			executor.shutdown();
+		}
+
+		merge(strips, sink);
+	}
+
+	/**
+	 * Label the grid in the background and return the clusters as they are
+	 * found. At most about 4 x batch clusters are waiting to be consumed at
+	 * any time; labeling pauses when the consumer is behind, and stops when
+	 * the stream is closed.
+	 * 
+	 * @param threads
+	 * @param batch
+	 * @return the clusters, to be read to the end or closed.
+	 */
+	public Labeling stream(final int threads, int batch) {
+
+		final BlockingQueue<Cluster> queue = new ArrayBlockingQueue<>(Math.max(4 * batch, 16));
+		final RuntimeException[] error = new RuntimeException[1];
+		final AtomicBoolean cancelled = new AtomicBoolean();
+
+		Labeling labeling = new Labeling() {
+
+			Cluster next;
+
+			@Override
+			public boolean hasNext() {
+				if (next == null) {
+					try {
+						next = queue.take();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new KlabRuntimeException(e);
+					}
+				}
+				if (next == END && error[0] != null) {
+					throw error[0];
+				}
+				return next != END;
+			}
+
+			@Override
+			public Cluster next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				Cluster ret = next;
+				next = null;
+				return ret;
+			}
+
+			@Override
+			public void close() {
+				cancelled.set(true);
+				queue.clear();
+			}
+		};
+
+		/*
+		 * the labeling thread only holds the reader weakly, so that a reader
+		 * dropped without closing it still stops it once it's collected.
+		 */
+		final WeakReference<Labeling> reader = new WeakReference<>(labeling);
+		Thread producer = new Thread(() -> {
+			try {
+				label(threads, (cluster) -> put(queue, cluster, cancelled, reader));
+			} catch (Cancelled e) {
+				return;
+			} catch (RuntimeException e) {
+				error[0] = e;
+			}
+			try {
+				put(queue, END, cancelled, reader);
+			} catch (Cancelled e) {
+				// nobody is reading
+			}
+		}, "cluster-labeler");
+		producer.setDaemon(true);
+		producer.start();
+
+		return labeling;
+	}
+
+	/*
+	 * wait for room in the queue, checking now and then whether the reader
+	 * has gone away.
+	 */
+	private static void put(BlockingQueue<Cluster> queue, Cluster cluster, AtomicBoolean cancelled,
+			WeakReference<Labeling> reader) {
+		try {
+			do {
+				if (cancelled.get() || reader.get() == null) {
+					throw new Cancelled();
+				}
+			} while (!queue.offer(cluster, 100, TimeUnit.MILLISECONDS));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KlabRuntimeException(e);
+		}
+	}
+
+	/*
+	 * join the clusters that touch the boundaries between strips and pass
+	 * them to the sink.
+	 */
+	private void merge(Strip[] strips, Consumer<Cluster> sink) {
+
+		/*
+		 * global index of each boundary cluster: the local ones of each strip
+		 * follow those of the strips above.
+		 */
+		int[] base = new int[strips.length];
+		int n = 0;
+		for (int s = 0; s < strips.length; s++) {
+			base[s] = n;
+			n += strips[s].edges.length;
+		}
+
+		int[] parent = new int[n];
+		for (int i = 0; i < parent.length; i++) {
+			parent[i] = i;
+		}
+
+		for (int s = 0; s + 1 < strips.length; s++) {
+			Strip upper = strips[s];
+			Strip lower = strips[s + 1];
+			for (int x = 0; x < width; x++) {
+				if (upper.bottom[x] < 0) {
+					continue;
+				}
+				int a = base[s] + upper.bottom[x];
+				for (int dx = diagonal ? -1 : 0; dx <= (diagonal ? 1 : 0); dx++) {
+					int nx = x + dx;
+					if (nx >= 0 && nx < width && lower.top[nx] >= 0) {
+						int b = base[s + 1] + lower.top[nx];
+						int ra = root(parent, a);
+						int rb = root(parent, b);
+						if (ra != rb) {
+							parent[Math.max(ra, rb)] = Math.min(ra, rb);
+						}
+					}
+				}
+			}
+		}
+
+		/*
+		 * accumulate each group on its root; roots come first in index order
+		 * because we always link to the lower index.
+		 */
+		int[][] stats = new int[n][];
+		for (int s = 0, i = 0; s < strips.length; s++) {
+			for (int[] own : strips[s].edges) {
+				int r = root(parent, i);
+				if (stats[r] == null) {
+					stats[r] = own;
+				} else {
+					int[] t = stats[r];
+					t[0] = Math.min(t[0], own[0]);
+					t[1] += own[1];
+					t[2] = Math.min(t[2], own[2]);
+					t[3] = Math.min(t[3], own[3]);
+					t[4] = Math.max(t[4], own[4]);
+					t[5] = Math.max(t[5], own[5]);
+				}
+				i++;
+			}
+		}
+
+		for (int i = 0; i < stats.length; i++) {
+			if (root(parent, i) == i) {
+				int[] t = stats[i];
+				sink.accept(new Cluster(t[0], t[1], t[2], t[3], t[4], t[5]));
+			}
+		}
+	}
+
+	private static int root(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	/*
+	 * one horizontal strip of rows [y0, y1), labeled with its own union-find.
+	 * Per-label statistics are kept at the roots until the strip is done.
+	 */
+	class Strip {
+
+		final int y0;
+		final int y1;
+
+		int labels = 0;
+		int[] parent = new int[64];
+		int[] first = new int[64];
+		int[] count = new int[64];
+		int[] minX = new int[64];
+		int[] minY = new int[64];
+		int[] maxX = new int[64];
+		int[] maxY = new int[64];
+		int[] seen = new int[64];
+		boolean[] done = new boolean[64];
+
+		/*
+		 * labels of the first and last row, and the roots of clusters that
+		 * touch them and may continue in another strip. Once the strip is
+		 * done, the rows hold the index of those clusters in edges, which
+		 * has their statistics (as returned by stats()), and the rest goes.
+		 */
+		int[] top;
+		int[] bottom;
+		List<Integer> boundary = new ArrayList<>();
+		int[][] edges;
+
+		Strip(int y0, int y1) {
+			this.y0 = y0;
+			this.y1 = y1;
+		}
+
+		void run(Consumer<Cluster> sink) {
+
+			int[] prev = new int[width];
+			int[] cur = new int[width];
+			int[] prevRoots = new int[width];
+			int[] curRoots = new int[width];
+			int nPrev = 0;
+			Arrays.fill(prev, -1);
+
+			for (int y = y0; y < y1; y++) {
+
+				int offset = y * width;
+				for (int x = 0; x < width; x++) {
+
+					if (!test.test(offset + x)) {
+						cur[x] = -1;
+						continue;
+					}
+
+					int label = x > 0 ? cur[x - 1] : -1;
+					label = join(label, prev[x]);
+					if (diagonal) {
+						if (x > 0) {
+							label = join(label, prev[x - 1]);
+						}
+						if (x < width - 1) {
+							label = join(label, prev[x + 1]);
+						}
+					}
+
+					if (label < 0) {
+						label = create(offset + x, x, y);
+					} else {
+						add(find(label), x, y);
+					}
+					cur[x] = label;
+				}
+
+				/*
+				 * the roots that have cells in this row. Stamps are y + 1 so
+				 * that the initial 0 never matches.
+				 */
+				int nCur = 0;
+				for (int x = 0; x < width; x++) {
+					if (cur[x] >= 0) {
+						int root = find(cur[x]);
+						if (seen[root] != y + 1) {
+							seen[root] = y + 1;
+							curRoots[nCur++] = root;
+						}
+					}
+				}
+
+				/*
+				 * those of the previous row that have none are complete.
+				 */
+				for (int i = 0; i < nPrev; i++) {
+					int root = find(prevRoots[i]);
+					if (seen[root] != y + 1 && !done[root]) {
+						finish(root, sink);
+					}
+				}
+
+				if (y == y0) {
+					top = cur.clone();
+				}
+
+				int[] tmp = prev;
+				prev = cur;
+				cur = tmp;
+				tmp = prevRoots;
+				prevRoots = curRoots;
+				curRoots = tmp;
+				nPrev = nCur;
+			}
+
+			bottom = prev.clone();
+			if (top == null) {
+				top = bottom;
+			}
+			for (int i = 0; i < nPrev; i++) {
+				int root = find(prevRoots[i]);
+				if (!done[root]) {
+					finish(root, sink);
+				}
+			}
+
+			release();
+		}
+
+		/*
+		 * keep what merge() needs and let go of the label tables.
+		 */
+		private void release() {
+
+			int[] index = new int[labels];
+			Arrays.fill(index, -1);
+			edges = new int[boundary.size()][];
+			for (int i = 0; i < edges.length; i++) {
+				int root = boundary.get(i);
+				index[root] = i;
+				edges[i] = stats(root);
+			}
+			top = relabel(top, index);
+			bottom = relabel(bottom, index);
+
+			boundary = null;
+			parent = first = count = minX = minY = maxX = maxY = seen = null;
+			done = null;
+		}
+
+		/*
+		 * the index in edges of the cluster of each cell in a row, -1 for
+		 * none. Only the outer rows of the first and last strip have cells
+		 * of other clusters, and merge() never looks at those.
+		 */
+		private int[] relabel(int[] row, int[] index) {
+			int[] ret = new int[width];
+			for (int x = 0; x < width; x++) {
+				ret[x] = row[x] < 0 ? -1 : index[find(row[x])];
+			}
+			return ret;
+		}
+
+		int find(int label) {
+			while (parent[label] != label) {
+				parent[label] = parent[parent[label]];
+				label = parent[label];
+			}
+			return label;
+		}
+
+		int[] stats(int root) {
+			return new int[] { first[root], count[root], minX[root], minY[root], maxX[root], maxY[root] };
+		}
+
+		private void finish(int root, Consumer<Cluster> sink) {
+			done[root] = true;
+			if ((minY[root] == y0 && y0 > 0) || (maxY[root] == y1 - 1 && y1 < height)) {
+				boundary.add(root);
+			} else {
+				sink.accept(new Cluster(first[root], count[root], minX[root], minY[root], maxX[root], maxY[root]));
+			}
+		}
+
+		private int join(int label, int other) {
+			if (other < 0) {
+				return label;
+			}
+			if (label < 0) {
+				return other;
+			}
+			int a = find(label);
+			int b = find(other);
+			if (a != b) {
+				if (b < a) {
+					int t = a;
+					a = b;
+					b = t;
+				}
+				parent[b] = a;
+				first[a] = Math.min(first[a], first[b]);
+				count[a] += count[b];
+				minX[a] = Math.min(minX[a], minX[b]);
+				minY[a] = Math.min(minY[a], minY[b]);
+				maxX[a] = Math.max(maxX[a], maxX[b]);
+				maxY[a] = Math.max(maxY[a], maxY[b]);
+			}
+			return a;
+		}
+
+		private int create(int cell, int x, int y) {
+			if (labels == parent.length) {
+				int size = labels * 2;
+				parent = Arrays.copyOf(parent, size);
+				first = Arrays.copyOf(first, size);
+				count = Arrays.copyOf(count, size);
+				minX = Arrays.copyOf(minX, size);
+				minY = Arrays.copyOf(minY, size);
+				maxX = Arrays.copyOf(maxX, size);
+				maxY = Arrays.copyOf(maxY, size);
+				seen = Arrays.copyOf(seen, size);
+				done = Arrays.copyOf(done, size);
+			}
+			int label = labels++;
+			parent[label] = label;
+			first[label] = cell;
+			count[label] = 1;
+			minX[label] = maxX[label] = x;
+			minY[label] = maxY[label] = y;
+			return label;
+		}
+
+		private void add(int root, int x, int y) {
+			count[root]++;
+			minX[root] = Math.min(minX[root], x);
+			minY[root] = Math.min(minY[root], y);
+			maxX[root] = Math.max(maxX[root], x);
+			maxY[root] = Math.max(maxY[root], y);
+		}
+	}
+}
@@ -0,0 +1,236 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Encodes the difference between two steps of a buffer as the cells that
+ * changed and their new values, so that a transition where few cells change
+ * costs few bytes to send. The format of a delta is:
+ * 
+ * <pre>
+ * byte    encoding ({@link #RAW} or {@link #XOR})
+ * varint  step
+ * varint  number of changed cells
+ * then, for each changed cell, in increasing order:
+ * varint  distance from the previous changed cell (from -1 for the first)
+ * value   RAW: the 8 bytes of the new value
+ *         XOR: varint of the bits of the new value XOR those of the old
+ * </pre>
+ * 
+ * Varints are unsigned LEB128. A cell has changed if the bits of its value
+ * have; values are restored bit for bit. With XOR, a value close to the old
+ * one shares its sign, exponent and top of the mantissa, which become zeros
+ * in the high bits and take no space in the varint.
+ * 
+ * A delta only makes sense to a receiver holding the values it was encoded
+ * from. Whenever that can't be assumed (the first values sent, or after
+ * resuming from a checkpoint) the sender sends a keyframe instead, which
+ * replaces all the values of the receiver whatever they were:
+ * 
+ * <pre>
+ * byte    {@link #KEYFRAME}
+ * varint  step
+ * varint  number of cells
+ * then the 8 bytes of each value, in cell order
+ * </pre>
+ */
+public final class DeltaCodec {
+
+	public static final int RAW = 0;
+	public static final int XOR = 1;
+	public static final int KEYFRAME = 2;
+
+	private DeltaCodec() {
+	}
+
+	/**
+	 * Encode the changes from previous to current.
+	 * 
+	 * @param step
+	 *            the step the current values belong to.
+	 * @param previous
+	 *            values at the previous step, or null for all NaN. Use
+	 *            {@link #keyframe(int, double[])} to send a whole
+	 *            state to a receiver in an unknown state.
+	 * @param current
+	 * @param encoding
+	 *            {@link #RAW} or {@link #XOR}.
+	 */
+	public static byte[] encode(int step, double[] previous, double[] current, int encoding) {
+
+		int changed = 0;
+		for (int i = 0; i < current.length; i++) {
+			if (bits(previous, i) != Double.doubleToRawLongBits(current[i])) {
+				changed++;
+			}
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(16 + changed * (encoding == RAW ? 9 : 6));
+		out.write(encoding);
+		varint(out, step);
+		varint(out, changed);
+
+		int last = -1;
+		for (int i = 0; i < current.length; i++) {
+			long old = bits(previous, i);
+			long now = Double.doubleToRawLongBits(current[i]);
+			if (old != now) {
+				varint(out, i - last);
+				last = i;
+				if (encoding == XOR) {
+					varint(out, now ^ old);
+				} else {
+					for (int shift = 56; shift >= 0; shift -= 8) {
+						out.write((int) (now >>> shift));
+					}
+				}
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Encode all the values, to be applied by replacement.
+	 * 
+	 * @param step
+	 *            the step the values belong to.
+	 * @param values
+	 */
+	public static byte[] keyframe(int step, double[] values) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(16 + values.length * 8);
+		out.write(KEYFRAME);
+		varint(out, step);
+		varint(out, values.length);
+		for (double value : values) {
+			long bits = Double.doubleToRawLongBits(value);
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				out.write((int) (bits >>> shift));
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * The kind of record: {@link #RAW} or {@link #XOR} for deltas, or
+	 * {@link #KEYFRAME}.
+	 */
+	public static int type(byte[] data) {
+		return data[0];
+	}
+
+	/**
+	 * The number of cells in a keyframe.
+	 */
+	public static int cells(byte[] data) {
+		int[] position = { 1 };
+		varint(data, position);
+		return (int) varint(data, position);
+	}
+
+	/**
+	 * Apply a record to values. A delta needs the values of the step it was
+	 * encoded from (all NaN if from null); a keyframe replaces them
+	 * all, and must have as many as there are values.
+	 * 
+	 * @return the step the values now belong to.
+	 */
+	public static int decode(byte[] data, double[] values) {
+
+		int[] position = { 0 };
+		int encoding = data[position[0]++];
+		int step = (int) varint(data, position);
+		long changed = varint(data, position);
+
+		if (encoding == KEYFRAME) {
+			if (changed != values.length) {
+				throw new IllegalArgumentException(
+						"keyframe of " + changed + " values applied to " + values.length + " cells");
+			}
+			for (int cell = 0; cell < values.length; cell++) {
+				long bits = 0;
+				for (int b = 0; b < 8; b++) {
+					bits = (bits << 8) | (data[position[0]++] & 0xff);
+				}
+				values[cell] = Double.longBitsToDouble(bits);
+			}
+			return step;
+		}
+
+		int cell = -1;
+		for (long n = 0; n < changed; n++) {
+			cell += (int) varint(data, position);
+			if (encoding == XOR) {
+				values[cell] = Double.longBitsToDouble(Double.doubleToRawLongBits(values[cell]) ^ varint(data, position));
+			} else {
+				long bits = 0;
+				for (int b = 0; b < 8; b++) {
+					bits = (bits << 8) | (data[position[0]++] & 0xff);
+				}
+				values[cell] = Double.longBitsToDouble(bits);
+			}
+		}
+		return step;
+	}
+
+	/**
+	 * A buffer of the passed size filled with NaN, as a decoder must start
+	 * from before the first full state is applied.
+	 */
+	public static double[] empty(int cells) {
+		double[] ret = new double[cells];
+		Arrays.fill(ret, Double.NaN);
+		return ret;
+	}
+
+	private static final long NAN = Double.doubleToRawLongBits(Double.NaN);
+
+	private static long bits(double[] values, int i) {
+		return values == null ? NAN : Double.doubleToRawLongBits(values[i]);
+	}
+
+	private static void varint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7fL) != 0) {
+			out.write((int) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static long varint(byte[] data, int[] position) {
+		long ret = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = data[position[0]++];
+			ret |= (long) (b & 0x7f) << shift;
+			if (b >= 0) {
+				return ret;
+			}
+		}
+	}
+}
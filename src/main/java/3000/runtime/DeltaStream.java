@@ -0,0 +1,97 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Where a contextualizer sends the changes to its outputs at each transition
+ * when it is serving a remote engine, encoded by {@link DeltaCodec}. The layer
+ * that publishes a prototype installs a {@link Factory} under its id, and each
+ * run of a contextualizer with that id opens its own {@link Sink} for the
+ * context it runs in, so that concurrent runs never mix their outputs. The
+ * contextualizer sends a keyframe of each output at initialization and only
+ * the changed cells after that, and the receiving end rebuilds the full
+ * states from them with {@link DeltaCodec#decode(byte[], double[])}.
+ * 
+ * Getting the records to the remote engine is up to the factory, and out of
+ * the scope of this component: nothing here installs one, so outputs are
+ * only streamed where the publishing layer (or a test) does.
+ */
+public class DeltaStream {
+
+	/**
+	 * Receives the records for each output of one run, in order.
+	 */
+	public interface Sink {
+
+		void send(String output, byte[] record);
+
+		/**
+		 * Called once when the run is over.
+		 */
+		default void close() {
+		}
+	}
+
+	/**
+	 * Makes the sink for each run.
+	 */
+	public interface Factory {
+
+		/**
+		 * @param context
+		 *            the observation the run happens in.
+		 * @return the sink, or null not to stream this run.
+		 */
+		Sink open(Object context);
+	}
+
+	private static final Map<String, Factory> factories = new ConcurrentHashMap<>();
+
+	/**
+	 * Send the outputs of the contextualizers with the passed prototype id to
+	 * the sinks made by the factory.
+	 */
+	public static void install(String prototype, Factory factory) {
+		factories.put(prototype, factory);
+	}
+
+	public static void remove(String prototype) {
+		factories.remove(prototype);
+	}
+
+	/**
+	 * A new sink for a run of the prototype in the passed context, or null if
+	 * its outputs aren't streamed.
+	 */
+	public static Sink open(String prototype, Object context) {
+		Factory factory = factories.get(prototype);
+		return factory == null ? null : factory.open(context);
+	}
+}
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import org.integratedmodelling.api.modelling.IExtent;
+import org.integratedmodelling.api.modelling.IScale;
+import org.integratedmodelling.api.space.IGrid;
+import org.integratedmodelling.api.space.ISpatialExtent;
+import org.integratedmodelling.common.model.runtime.Scale;
+import org.integratedmodelling.common.space.IGeometricShape;
+import org.integratedmodelling.engine.geospace.Geospace;
+import org.integratedmodelling.engine.geospace.extents.SpaceExtent;
+import org.integratedmodelling.engine.geospace.literals.ShapeValue;
+import org.integratedmodelling.exceptions.KlabException;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Scales covering part of the space of a context - one cell, or the cells of
+ * a box in its grid - with the same time, for the objects we create in it.
+ * Giving them the whole context scale would place every one of them
+ * everywhere.
+ */
+public class Extents {
+
+	private static final GeometryFactory geometryFactory = new GeometryFactory();
+
+	private Extents() {
+	}
+
+	/**
+	 * The scale of one cell of the context.
+	 * 
+	 * @param scale
+	 *            the context scale.
+	 * @param cell
+	 *            the spatial offset of the cell.
+	 * @throws KlabException
+	 */
+	public static IScale cell(IScale scale, int cell) throws KlabException {
+		return of(scale, scale.getSpace().getExtent(cell));
+	}
+
+	/**
+	 * The scale of the box of grid cells between the passed corners,
+	 * included. The shape is the rectangle spanning the envelopes of the two
+	 * corner cells, built directly: the union of the corner cells alone
+	 * would only cover those two, and the union of all the cells in the box
+	 * costs a polygon operation per cell.
+	 * 
+	 * @param scale
+	 *            the context scale, which must be on a grid.
+	 * @throws KlabException
+	 */
+	public static IScale box(IScale scale, int minX, int minY, int maxX, int maxY) throws KlabException {
+		ISpatialExtent space = scale.getSpace();
+		IGrid grid = space.getGrid();
+		ISpatialExtent first = space.getExtent(grid.getOffset(minX, minY));
+		if (minX == maxX && minY == maxY) {
+			return of(scale, first);
+		}
+		/*
+		 * grids may count rows from the top or the bottom, so take the
+		 * envelope of both corners rather than assuming which is which.
+		 */
+		Envelope envelope = new Envelope(envelope(first));
+		envelope.expandToInclude(envelope(space.getExtent(grid.getOffset(maxX, maxY))));
+		return of(scale, new SpaceExtent(
+				new ShapeValue(geometryFactory.toGeometry(envelope), Geospace.get().getDefaultCRS())));
+	}
+
+	private static Envelope envelope(ISpatialExtent cell) {
+		return ((IGeometricShape) cell).getStandardizedGeometry().getEnvelopeInternal();
+	}
+
+	private static IScale of(IScale scale, ISpatialExtent space) {
+		return scale.getTime() == null ? new Scale(new IExtent[] { space })
+				: new Scale(new IExtent[] { space, scale.getTime() });
+	}
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.integratedmodelling.api.space.IGrid;
+import org.integratedmodelling.api.space.ISpatialExtent;
+import org.integratedmodelling.common.space.IGeometricShape;
+
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Per-cell geometry of a spatial extent, computed once and stored in
+ * primitive arrays indexed by spatial offset: the lon/lat centroid of each
+ * cell and, if the extent is a grid, its x/y offsets. Asking the extent for
+ * these builds a polygon per cell each time, which is fine once but not at
+ * every transition.
+ * 
+ * Caches are shared through {@link #get(ISpatialExtent)} by all
+ * contextualizers in the component running on the same extent, and go away
+ * with it.
+ */
+public class GeometryCache {
+
+	private static final Map<ISpatialExtent, GeometryCache> caches = new WeakHashMap<>();
+
+	/**
+	 * Longitude of the centroid of each cell.
+	 */
+	public final double[] lon;
+
+	/**
+	 * Latitude of the centroid of each cell.
+	 */
+	public final double[] lat;
+
+	/**
+	 * Horizontal grid offset of each cell, or null if the extent is not a
+	 * grid.
+	 */
+	public final int[] x;
+
+	/**
+	 * Vertical grid offset of each cell, or null if the extent is not a grid.
+	 */
+	public final int[] y;
+
+	private GeometryCache(ISpatialExtent space) {
+
+		int cells = (int) space.getMultiplicity();
+		IGrid grid = space.getGrid();
+
+		this.lon = new double[cells];
+		this.lat = new double[cells];
+		this.x = grid == null ? null : new int[cells];
+		this.y = grid == null ? null : new int[cells];
+
+		for (int i = 0; i < cells; i++) {
+
+			/*
+			 * the centroid of the standardized geometry is guaranteed to have
+			 * x = lon and y = lat.
+			 */
+			Point point = ((IGeometricShape) space.getExtent(i)).getStandardizedGeometry().getCentroid();
+			lon[i] = point.getX();
+			lat[i] = point.getY();
+
+			if (grid != null) {
+				int[] xy = grid.getXYOffsets(i);
+				x[i] = xy[0];
+				y[i] = xy[1];
+			}
+		}
+	}
+
+	/**
+	 * Number of cells.
+	 */
+	public int size() {
+		return lon.length;
+	}
+
+	public boolean isGrid() {
+		return x != null;
+	}
+
+	/**
+	 * Get the cache for the passed extent, building it if it's the first time
+	 * it's asked for.
+	 * 
+	 * @param space
+	 * @return the geometry cache for space
+	 */
+	public static GeometryCache get(ISpatialExtent space) {
+		synchronized (caches) {
+			GeometryCache ret = caches.get(space);
+			if (ret == null) {
+				ret = new GeometryCache(space);
+				caches.put(space, ret);
+			}
+			return ret;
+		}
+	}
+}
@@ -0,0 +1,238 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.integratedmodelling.exceptions.KlabException;
+import org.integratedmodelling.exceptions.KlabIOException;
+
+/**
+ * Past values of one output beyond those a {@link StateBuffer} keeps for the
+ * current and previous step. The most recent steps are kept in memory in a
+ * ring of fixed depth; when a step falls off the ring it is either forgotten
+ * or, if spilling is enabled, written to a temporary file, itself a ring of a
+ * fixed number of steps, from where it can be read back. Heap and disk use
+ * are both bounded by the depths whatever the number of timesteps.
+ * 
+ * Steps are stored, in memory and on disk, with the {@link Precision} passed
+ * at construction: FLOAT halves the space and the disk traffic, SHORT
+ * quarters it. Values are converted once per step when pushed and when read.
+ */
+public class HistoryBuffer {
+
+	private final int cells;
+	private final Precision precision;
+	private final int stepBytes;
+	private final ByteBuffer[] ring;
+	private int newest = -1;
+	private int count = 0;
+
+	/*
+	 * the ring on disk, and the one step we read it through (or encode into,
+	 * when nothing is kept in memory).
+	 */
+	private final int slots;
+	private File spillFile;
+	private RandomAccessFile spill;
+	private ByteBuffer spillBuffer;
+	private int spilledNewest = -1;
+	private int spilledCount = 0;
+
+	/**
+	 * A history kept in memory only, as doubles.
+	 * 
+	 * @param cells
+	 *            number of values per step.
+	 * @param depth
+	 *            number of steps kept in memory.
+	 */
+	public HistoryBuffer(int cells, int depth) throws KlabException {
+		this(cells, depth, 0, Precision.DOUBLE);
+	}
+
+	/**
+	 * @param cells
+	 *            number of values per step.
+	 * @param depth
+	 *            number of steps kept in memory.
+	 * @param spilled
+	 *            number of steps older than those in memory that are kept on
+	 *            disk; 0 to forget them.
+	 * @param precision
+	 *            how values are stored.
+	 * @throws KlabException
+	 *             if the spill file cannot be created.
+	 */
+	public HistoryBuffer(int cells, int depth, int spilled, Precision precision) throws KlabException {
+		this.cells = cells;
+		this.precision = precision;
+		this.stepBytes = precision.bytes(cells);
+		this.ring = new ByteBuffer[depth];
+		this.slots = spilled;
+		if (spilled > 0) {
+			try {
+				this.spillFile = File.createTempFile("history", ".bin");
+				this.spillFile.deleteOnExit();
+				this.spill = new RandomAccessFile(spillFile, "rw");
+			} catch (IOException e) {
+				throw new KlabIOException(e);
+			}
+			this.spillBuffer = ByteBuffer.allocateDirect(stepBytes).order(ByteOrder.nativeOrder());
+		}
+	}
+
+	/**
+	 * Add the values for a step, which must be the one following the last
+	 * pushed (the first can be any). The values are copied.
+	 */
+	public void push(int step, double[] values) throws KlabException {
+
+		if (ring.length == 0) {
+			if (spill != null) {
+				spillBuffer.clear();
+				precision.encode(values, cells, spillBuffer);
+				spill(step, spillBuffer);
+			}
+			return;
+		}
+
+		/*
+		 * the step that falls off the ring goes to disk as it is, already
+		 * encoded.
+		 */
+		int slot = (step % ring.length);
+		if (count == ring.length) {
+			spill(step - ring.length, ring[slot]);
+		} else {
+			ring[slot] = ByteBuffer.allocate(stepBytes).order(ByteOrder.nativeOrder());
+			count++;
+		}
+		ring[slot].clear();
+		precision.encode(values, cells, ring[slot]);
+		newest = step;
+	}
+
+	/**
+	 * True if the values for the step can be read, from memory or disk.
+	 */
+	public boolean contains(int step) {
+		return (step <= newest && step > newest - count)
+				|| (step <= spilledNewest && step > spilledNewest - spilledCount);
+	}
+
+	/**
+	 * Copy the values for the passed step into dst.
+	 * 
+	 * @throws KlabException
+	 *             if the step is not available or the spill file cannot be
+	 *             read.
+	 */
+	public void read(int step, double[] dst) throws KlabException {
+
+		if (step <= newest && step > newest - count) {
+			ByteBuffer slot = ring[step % ring.length];
+			slot.rewind();
+			precision.decode(slot, dst, cells);
+			return;
+		}
+
+		if (!contains(step)) {
+			throw new KlabIOException("history for step " + step + " is not available");
+		}
+
+		try {
+			FileChannel channel = spill.getChannel();
+			long position = position(step);
+			spillBuffer.clear();
+			while (spillBuffer.hasRemaining()) {
+				int read = channel.read(spillBuffer, position);
+				if (read < 0) {
+					throw new IOException("history file ends before step " + step);
+				}
+				position += read;
+			}
+			spillBuffer.flip();
+			precision.decode(spillBuffer, dst, cells);
+		} catch (IOException e) {
+			throw new KlabIOException(e);
+		}
+	}
+
+	/**
+	 * Release memory and delete the spill file, if any.
+	 */
+	public void close() {
+		for (int i = 0; i < ring.length; i++) {
+			ring[i] = null;
+		}
+		count = 0;
+		spilledCount = 0;
+		if (spill != null) {
+			try {
+				spill.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+			spillFile.delete();
+			spill = null;
+		}
+	}
+
+	/*
+	 * write an encoded step to its slot on disk, replacing the oldest one
+	 * there once the file is full.
+	 */
+	private void spill(int step, ByteBuffer encoded) throws KlabException {
+
+		if (spill == null) {
+			return;
+		}
+
+		encoded.rewind();
+		try {
+			FileChannel channel = spill.getChannel();
+			long position = position(step);
+			while (encoded.hasRemaining()) {
+				position += channel.write(encoded, position);
+			}
+		} catch (IOException e) {
+			throw new KlabIOException(e);
+		}
+		spilledNewest = step;
+		spilledCount = Math.min(spilledCount + 1, slots);
+	}
+
+	private long position(int step) {
+		return (long) (step % slots) * stepBytes;
+	}
+}
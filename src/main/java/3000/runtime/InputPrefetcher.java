@@ -0,0 +1,175 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.integratedmodelling.api.modelling.IState;
+import org.integratedmodelling.common.states.States;
+import org.integratedmodelling.exceptions.KlabException;
+
+/**
+ * Reads the values of the inputs of a transition into primitive columns, one
+ * per input, indexed by position in the slice. With prefetching on, once two
+ * transitions have been seen at a constant stride (see
+ * {@link Slice#stride(Slice, Slice)}), the columns for the next one are read
+ * in the background while the current one is computed, and handed over by
+ * the next call if it turns out to be for the predicted cells and the same
+ * states; otherwise they are dropped and read again.
+ * 
+ * Prefetching is only correct if the values of the inputs at a transition
+ * are there before it is computed, e.g. when they come from data and not
+ * from other processes running along with ours.
+ */
+public class InputPrefetcher {
+
+	private final boolean prefetch;
+	private ExecutorService reader = null;
+
+	private Slice last = null;
+	private int[] nextOffsets = null;
+	private List<IState> nextStates = null;
+	private Future<double[][]> next = null;
+
+	private int hits = 0;
+	private int misses = 0;
+
+	public InputPrefetcher(boolean prefetch) {
+		this.prefetch = prefetch;
+	}
+
+	/**
+	 * The values of the inputs at the cells of the slice.
+	 * 
+	 * @param inputs
+	 * @param slice
+	 * @param more
+	 *            false if this is the last transition, so there is nothing to
+	 *            prefetch.
+	 * @return one column per input, in the order of the map.
+	 * @throws KlabException
+	 */
+	public double[][] read(Map<String, IState> inputs, Slice slice, boolean more) throws KlabException {
+
+		final List<IState> states = new ArrayList<>(inputs.values());
+		double[][] ret = null;
+
+		if (next != null) {
+			if (Arrays.equals(nextOffsets, slice.offsets) && nextStates.equals(states)) {
+				try {
+					ret = next.get();
+					hits++;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new KlabException(e);
+				} catch (ExecutionException e) {
+					// read them again below
+				}
+			} else {
+				next.cancel(true);
+			}
+			next = null;
+		}
+
+		if (ret == null) {
+			ret = read(states, slice.offsets);
+			misses++;
+		}
+
+		if (prefetch && more && last != null) {
+			int stride = Slice.stride(last, slice);
+			if (stride != Integer.MIN_VALUE) {
+				final int[] offsets = new int[slice.size()];
+				for (int i = 0; i < offsets.length; i++) {
+					offsets[i] = slice.offsets[i] + stride;
+				}
+				nextOffsets = offsets;
+				nextStates = states;
+				next = reader().submit(() -> read(states, offsets));
+			}
+		}
+		last = slice;
+
+		return ret;
+	}
+
+	/**
+	 * How many reads were served from a prefetch.
+	 */
+	public int getHits() {
+		return hits;
+	}
+
+	/**
+	 * How many reads had to be done in the call, because nothing was
+	 * prefetched or the prediction was wrong.
+	 */
+	public int getMisses() {
+		return misses;
+	}
+
+	public void close() {
+		if (next != null) {
+			next.cancel(true);
+			next = null;
+		}
+		if (reader != null) {
+			reader.shutdownNow();
+			reader = null;
+		}
+	}
+
+	private ExecutorService reader() {
+		if (reader == null) {
+			reader = Executors.newSingleThreadExecutor(task -> {
+				Thread thread = new Thread(task, "input prefetch");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return reader;
+	}
+
+	private static double[][] read(List<IState> states, int[] offsets) {
+		double[][] ret = new double[states.size()][offsets.length];
+		for (int c = 0; c < ret.length; c++) {
+			IState state = states.get(c);
+			double[] column = ret[c];
+			for (int i = 0; i < offsets.length; i++) {
+				column[i] = States.getDouble(state, offsets[i]);
+			}
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,168 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * How the values of a step are stored where they are kept for long (e.g. in
+ * a {@link HistoryBuffer}): as doubles, as floats (half the space, about 7
+ * significant digits) or as 16-bit integers scaled between the smallest and
+ * largest value of the step (a quarter of the space, 1/65534 of the range).
+ * A step is converted as a whole when stored and when read back; the arrays
+ * the kernels work on are always double.
+ * 
+ * NaN is kept in all modes. With SHORT, infinite values are stored as NaN.
+ */
+public enum Precision {
+
+	DOUBLE, FLOAT, SHORT;
+
+	/*
+	 * code for NaN in SHORT; the values use 0 to NAN - 1.
+	 */
+	private static final char NAN = 0xffff;
+
+	/**
+	 * Bytes needed to store a step of the passed number of cells.
+	 */
+	public int bytes(int cells) {
+		switch (this) {
+		case FLOAT:
+			return cells * 4;
+		case SHORT:
+			return 16 + cells * 2;
+		default:
+			return cells * 8;
+		}
+	}
+
+	/**
+	 * Store the first cells values of src at the position of dst, which is
+	 * advanced past them.
+	 */
+	public void encode(double[] src, int cells, ByteBuffer dst) {
+
+		switch (this) {
+		case FLOAT: {
+			FloatBuffer out = dst.asFloatBuffer();
+			for (int i = 0; i < cells; i++) {
+				out.put(i, (float) src[i]);
+			}
+			break;
+		}
+		case SHORT: {
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < cells; i++) {
+				double value = src[i];
+				if (value < min) {
+					min = value;
+				}
+				if (value > max) {
+					max = value;
+				}
+			}
+			if (Double.isInfinite(min) || Double.isInfinite(max)) {
+				min = finiteMin(src, cells);
+				max = finiteMax(src, cells);
+			}
+			double scale = max > min ? (max - min) / (NAN - 1) : 1.0;
+			dst.putDouble(min);
+			dst.putDouble(scale);
+			CharBuffer out = dst.asCharBuffer();
+			for (int i = 0; i < cells; i++) {
+				double value = src[i];
+				out.put(i, Double.isNaN(value) || Double.isInfinite(value) ? NAN
+						: (char) Math.round((value - min) / scale));
+			}
+			dst.position(dst.position() - 16);
+			break;
+		}
+		default:
+			dst.asDoubleBuffer().put(src, 0, cells);
+		}
+		dst.position(dst.position() + bytes(cells));
+	}
+
+	/**
+	 * Read cells values stored by {@link #encode} at the position of src
+	 * into dst. The position of src is not changed.
+	 */
+	public void decode(ByteBuffer src, double[] dst, int cells) {
+
+		switch (this) {
+		case FLOAT: {
+			FloatBuffer in = src.asFloatBuffer();
+			for (int i = 0; i < cells; i++) {
+				dst[i] = in.get(i);
+			}
+			break;
+		}
+		case SHORT: {
+			double min = src.getDouble(src.position());
+			double scale = src.getDouble(src.position() + 8);
+			int start = src.position();
+			src.position(start + 16);
+			CharBuffer in = src.asCharBuffer();
+			src.position(start);
+			for (int i = 0; i < cells; i++) {
+				char code = in.get(i);
+				dst[i] = code == NAN ? Double.NaN : min + code * scale;
+			}
+			break;
+		}
+		default: {
+			DoubleBuffer in = src.asDoubleBuffer();
+			in.get(dst, 0, cells);
+		}
+		}
+	}
+
+	private static double finiteMin(double[] values, int cells) {
+		double ret = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < cells; i++) {
+			if (!Double.isInfinite(values[i]) && values[i] < ret) {
+				ret = values[i];
+			}
+		}
+		return Double.isInfinite(ret) ? 0 : ret;
+	}
+
+	private static double finiteMax(double[] values, int cells) {
+		double ret = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < cells; i++) {
+			if (!Double.isInfinite(values[i]) && values[i] > ret) {
+				ret = values[i];
+			}
+		}
+		return Double.isInfinite(ret) ? 0 : ret;
+	}
+}
@@ -0,0 +1,166 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.integratedmodelling.api.monitoring.IMonitor;
+
+/**
+ * Measures where the time goes in the transitions of a contextualizer: wall
+ * time, cells computed per second, bytes allocated and time spent reading and
+ * writing states through States. Each transition is also recorded as a JFR
+ * event (example.Transition) when the JVM has Flight Recorder, and
+ * {@link #report(IMonitor)} sends a summary to the monitor, usually when the
+ * contextualizer is disposed of.
+ * 
+ * Probes are off unless the JVM is started with -Dexample.instrument=true.
+ * All methods check {@link #ENABLED} first, which is a constant, so when off
+ * the calls compile to nothing and can stay in the hot paths.
+ * 
+ * Allocation is that of the thread calling {@link #begin()} and
+ * {@link #end(long)} (on HotSpot JVMs); work done by tile threads is not
+ * included. Time in States can be measured from any thread.
+ */
+public class Probe {
+
+	public static final boolean ENABLED = Boolean.getBoolean("example.instrument");
+
+	private static final boolean JFR = ENABLED && hasJfr();
+	private static final com.sun.management.ThreadMXBean THREADS = ENABLED ? threads() : null;
+
+	private final String name;
+
+	private long transitions;
+	private long cells;
+	private long wall;
+	private long slowest;
+	private long allocated;
+	private final LongAdder states = ENABLED ? new LongAdder() : null;
+
+	private long started;
+	private long startAllocated;
+	private long startStates;
+	private Object event;
+
+	public Probe(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Start timing a transition.
+	 */
+	public void begin() {
+		if (!ENABLED) {
+			return;
+		}
+		startAllocated = allocated();
+		startStates = states.sum();
+		if (JFR) {
+			event = TransitionEvent.start();
+		}
+		started = System.nanoTime();
+	}
+
+	/**
+	 * Stop timing the transition started with {@link #begin()}.
+	 * 
+	 * @param cells
+	 *            how many cells were computed.
+	 */
+	public void end(long cells) {
+		if (!ENABLED) {
+			return;
+		}
+		long elapsed = System.nanoTime() - started;
+		long bytes = allocated() - startAllocated;
+		transitions++;
+		this.cells += cells;
+		wall += elapsed;
+		slowest = Math.max(slowest, elapsed);
+		allocated += bytes;
+		if (JFR) {
+			TransitionEvent.finish(event, name, cells, bytes, states.sum() - startStates);
+			event = null;
+		}
+	}
+
+	/**
+	 * Call before reading or writing states; pass the result to
+	 * {@link #statesEnd(long)}.
+	 */
+	public long statesBegin() {
+		return ENABLED ? System.nanoTime() : 0;
+	}
+
+	public void statesEnd(long start) {
+		if (ENABLED) {
+			states.add(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Send a summary of all transitions so far to the monitor.
+	 */
+	public void report(IMonitor monitor) {
+		if (!ENABLED || monitor == null || transitions == 0) {
+			return;
+		}
+		double seconds = wall / 1e9;
+		monitor.info(String.format(
+				"%s: %d transitions in %.3f s (slowest %.3f ms), %.0f cells/s, %.1f MB allocated, %.1f%% of time in States",
+				name, transitions, seconds, slowest / 1e6, seconds > 0 ? cells / seconds : 0.0,
+				allocated / (1024.0 * 1024.0), wall > 0 ? 100.0 * states.sum() / wall : 0.0), null);
+	}
+
+	private static long allocated() {
+		return THREADS == null ? 0 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static com.sun.management.ThreadMXBean threads() {
+		java.lang.management.ThreadMXBean ret = ManagementFactory.getThreadMXBean();
+		if (ret instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) ret).isThreadAllocatedMemorySupported()) {
+			((com.sun.management.ThreadMXBean) ret).setThreadAllocatedMemoryEnabled(true);
+			return (com.sun.management.ThreadMXBean) ret;
+		}
+		return null;
+	}
+
+	/*
+	 * TransitionEvent must not be loaded unless jdk.jfr is there.
+	 */
+	private static boolean hasJfr() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (Throwable e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,250 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Output values computed before, found by a hash of everything they were
+ * computed from, so that the same model run over the same inputs can reuse
+ * them instead of computing them again. Build the key with a {@link Digest};
+ * it must include anything that can change the result (scale, input values,
+ * parameters, random seed).
+ * 
+ * There are two levels, both least-recently-used: a small one in memory,
+ * shared by all contextualizers in the JVM, and a larger one on disk that
+ * survives restarts. Sizes are set with the system properties
+ * example.cache.heap and example.cache.disk (megabytes, default 64 and 1024),
+ * and the directory with example.cache.dir (default klab-results in the
+ * temporary directory). Files are in the {@link Checkpoint} format.
+ */
+public class ResultCache {
+
+	private static final long HEAP = Long.getLong("example.cache.heap", 64) * 1024 * 1024;
+	private static final long DISK = Long.getLong("example.cache.disk", 1024) * 1024 * 1024;
+
+	private static final Map<String, Map<String, double[]>> memory = new LinkedHashMap<>(16, 0.75f, true);
+	private static long memorySize = 0;
+
+	private ResultCache() {
+	}
+
+	/**
+	 * The values stored with the key, or null. The arrays are copies and can
+	 * be changed.
+	 */
+	public static Map<String, double[]> get(String key) {
+
+		Map<String, double[]> ret;
+		synchronized (memory) {
+			ret = memory.get(key);
+		}
+
+		if (ret == null) {
+			File file = file(key);
+			if (!file.exists()) {
+				return null;
+			}
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				ret = Checkpoint.read(in).values;
+			} catch (IOException e) {
+				file.delete();
+				return null;
+			}
+			file.setLastModified(System.currentTimeMillis());
+			remember(key, ret);
+		}
+
+		return copy(ret);
+	}
+
+	/**
+	 * Store values with a key. The arrays are copied.
+	 */
+	public static void put(String key, Map<String, double[]> values) {
+
+		values = copy(values);
+		remember(key, values);
+
+		File file = file(key);
+		File tmp = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+		try {
+			file.getParentFile().mkdirs();
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024))) {
+				new Checkpoint(0, Collections.<String, Long> emptyMap(), values).write(out);
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			// the disk cache is an optimization; the memory one still has it
+			tmp.delete();
+			return;
+		}
+		trim(file.getParentFile());
+	}
+
+	private static void remember(String key, Map<String, double[]> values) {
+		long size = size(values);
+		if (size > HEAP) {
+			return;
+		}
+		synchronized (memory) {
+			Map<String, double[]> old = memory.put(key, values);
+			memorySize += size - (old == null ? 0 : size(old));
+			for (Iterator<Map<String, double[]>> it = memory.values().iterator(); memorySize > HEAP
+					&& it.hasNext();) {
+				memorySize -= size(it.next());
+				it.remove();
+			}
+		}
+	}
+
+	/*
+	 * remove the least recently used files until the directory fits.
+	 */
+	private static synchronized void trim(File directory) {
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(".ckp"));
+		if (files == null) {
+			return;
+		}
+		long total = 0;
+		for (File file : files) {
+			total += file.length();
+		}
+		if (total <= DISK) {
+			return;
+		}
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		for (int i = 0; i < files.length && total > DISK; i++) {
+			total -= files[i].length();
+			files[i].delete();
+		}
+	}
+
+	private static File file(String key) {
+		String dir = System.getProperty("example.cache.dir");
+		return new File(dir == null ? new File(System.getProperty("java.io.tmpdir"), "klab-results") : new File(dir),
+				key + ".ckp");
+	}
+
+	private static long size(Map<String, double[]> values) {
+		long ret = 0;
+		for (double[] data : values.values()) {
+			ret += data.length * 8L;
+		}
+		return ret;
+	}
+
+	private static Map<String, double[]> copy(Map<String, double[]> values) {
+		Map<String, double[]> ret = new LinkedHashMap<>();
+		for (Map.Entry<String, double[]> entry : values.entrySet()) {
+			ret.put(entry.getKey(), entry.getValue().clone());
+		}
+		return ret;
+	}
+
+	/**
+	 * A SHA-256 hash of the things a result depends on, in the order they
+	 * are added.
+	 */
+	public static class Digest {
+
+		private final MessageDigest digest;
+		private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+		public Digest() {
+			try {
+				digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		/**
+		 * Add the string value of an object (null is fine).
+		 */
+		public Digest add(Object value) {
+			flush();
+			digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			return this;
+		}
+
+		public Digest add(double value) {
+			if (buffer.remaining() < 8) {
+				flush();
+			}
+			buffer.putDouble(value);
+			return this;
+		}
+
+		public Digest add(double[] values) {
+			add(values.length);
+			for (double value : values) {
+				add(value);
+			}
+			return this;
+		}
+
+		/**
+		 * The hash as a hexadecimal string, usable as a file name.
+		 */
+		public String hex() {
+			flush();
+			StringBuilder ret = new StringBuilder();
+			for (byte b : digest.digest()) {
+				ret.append(String.format("%02x", b));
+			}
+			return ret.toString();
+		}
+
+		private void flush() {
+			buffer.flip();
+			digest.update(buffer);
+			buffer.clear();
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import java.util.Arrays;
+
+import org.integratedmodelling.api.modelling.IScale;
+
+/**
+ * The offsets visited by one pass of the scale index for a given locator (a
+ * transition, or null for initialization), collected once into primitive
+ * arrays. Each entry pairs the full offset in the scale, which is what
+ * States.set() and States.getDouble() want, with the offset in the spatial
+ * extent, which is what we use to address per-cell buffers. On a regular
+ * grid the latter is the position in the slice, and isn't stored.
+ * 
+ * Building one of these costs one pass over the scale iterator; everything
+ * after that is plain array access.
+ */
+public class Slice {
+
+	/**
+	 * Full offsets in the scale, in iteration order.
+	 */
+	public final int[] offsets;
+
+	/*
+	 * spatial offset correspondent to each entry of offsets, or null if it's
+	 * the position.
+	 */
+	private final int[] spaceOffsets;
+
+	private Slice(int[] offsets, int[] spaceOffsets) {
+		boolean contiguous = true;
+		for (int i = 0; contiguous && i < spaceOffsets.length; i++) {
+			contiguous = spaceOffsets[i] == i;
+		}
+		this.offsets = offsets;
+		this.spaceOffsets = contiguous ? null : spaceOffsets;
+	}
+
+	/**
+	 * Spatial offset correspondent to the entry i of {@link #offsets}. If the
+	 * scale has no space, this is the position in the iteration.
+	 */
+	public int spaceOffset(int i) {
+		return spaceOffsets == null ? i : spaceOffsets[i];
+	}
+
+	/**
+	 * Number of cells in the slice.
+	 */
+	public int size() {
+		return offsets.length;
+	}
+
+	/**
+	 * True if the spatial offsets are 0, 1, 2... i.e. position i in the slice
+	 * is cell i, and ranges of positions can be processed as ranges of
+	 * buffers. This is the case for any regular grid.
+	 */
+	public boolean isContiguous() {
+		return spaceOffsets == null;
+	}
+
+	/**
+	 * Bytes taken by the offsets of a slice.
+	 */
+	public long bytes() {
+		return 4L * offsets.length + (spaceOffsets == null ? 0 : 4L * spaceOffsets.length);
+	}
+
+	/**
+	 * Collect the offsets for the passed locator.
+	 * 
+	 * @param scale
+	 * @param locator
+	 *            a transition, or null for the initialization slice.
+	 * @return the slice
+	 */
+	public static Slice of(IScale scale, IScale.Locator locator) {
+
+		int capacity = cells(scale);
+		int[] offsets = new int[capacity];
+		int[] spaceOffsets = new int[capacity];
+		int i = 0;
+
+		for (int n : scale.getIndex(locator)) {
+			if (i == offsets.length) {
+				offsets = Arrays.copyOf(offsets, i * 2 + 1);
+				spaceOffsets = Arrays.copyOf(spaceOffsets, i * 2 + 1);
+			}
+			offsets[i] = n;
+			spaceOffsets[i] = scale.getSpace() == null ? i : scale.getExtentOffset(scale.getSpace(), n);
+			i++;
+		}
+
+		return new Slice(i == offsets.length ? offsets : Arrays.copyOf(offsets, i),
+				i == spaceOffsets.length ? spaceOffsets : Arrays.copyOf(spaceOffsets, i));
+	}
+
+	/**
+	 * The amount every full offset moves between two slices, if it is the
+	 * same for all cells (as in a scale where time varies slowest, so that
+	 * the next transition is the same cells one time stride further). If so,
+	 * offsets for later transitions can be computed as offsets[i] + k *
+	 * stride, without building their slices.
+	 * 
+	 * @return the stride, or {@link Integer#MIN_VALUE} if the slices are not
+	 *         the same cells at a constant distance.
+	 */
+	public static int stride(Slice from, Slice to) {
+		if (from.size() != to.size() || from.size() == 0) {
+			return Integer.MIN_VALUE;
+		}
+		int stride = to.offsets[0] - from.offsets[0];
+		for (int i = 0; i < from.size(); i++) {
+			if (to.spaceOffset(i) != from.spaceOffset(i) || to.offsets[i] - from.offsets[i] != stride) {
+				return Integer.MIN_VALUE;
+			}
+		}
+		return stride;
+	}
+
+	/**
+	 * Number of cells in the spatial extent of the scale, i.e. the length of
+	 * a buffer that can be addressed by spatial offset.
+	 */
+	public static int cells(IScale scale) {
+		return scale.getSpace() == null ? 1 : (int) scale.getSpace().getMultiplicity();
+	}
+}
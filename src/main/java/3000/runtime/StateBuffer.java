@@ -0,0 +1,230 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import java.util.Arrays;
+
+import org.integratedmodelling.api.modelling.IState;
+import org.integratedmodelling.common.states.States;
+import org.integratedmodelling.exceptions.KlabException;
+import org.integratedmodelling.exceptions.KlabIOException;
+
+/**
+ * Primitive storage for one numeric output of a process contextualizer. Two
+ * arrays indexed by spatial offset hold the values at the current and at the
+ * previous transition; {@link #swap()} exchanges them at the start of each
+ * transition, so that reading the previous step is a plain array load
+ * instead of a trip through States.getDouble() with a previous transition.
+ * 
+ * The IState the engine sees is only written in bulk by {@link #flush}, once
+ * the whole slice has been computed.
+ * 
+ * Contextualizers that need to look further back than the previous step can
+ * attach a {@link HistoryBuffer}, which receives each step as it leaves the
+ * pair.
+ */
+public class StateBuffer {
+
+	private double[] current;
+	private double[] previous;
+	private HistoryBuffer history;
+
+	/*
+	 * the step the current values belong to (0 = initialization)
+	 */
+	private int step = 0;
+
+	public StateBuffer(int cells) {
+		this.current = new double[cells];
+		this.previous = new double[cells];
+	}
+
+	/**
+	 * Values being computed for the current transition.
+	 */
+	public double[] current() {
+		return current;
+	}
+
+	/**
+	 * Values computed at the previous transition (or at initialization).
+	 */
+	public double[] previous() {
+		return previous;
+	}
+
+	/**
+	 * Keep older steps in the passed history.
+	 */
+	public void setHistory(HistoryBuffer history) {
+		this.history = history;
+	}
+
+	/**
+	 * The step the current values belong to, starting at 0 for
+	 * initialization and incremented at each {@link #swap()}.
+	 */
+	public int getStep() {
+		return step;
+	}
+
+	/**
+	 * Make the current values the previous ones. The old previous array is
+	 * reused for the new current values, so nothing is allocated unless a
+	 * history is kept.
+	 * 
+	 * @throws KlabException
+	 *             if the history cannot be written.
+	 */
+	public void swap() throws KlabException {
+		if (history != null && step > 0) {
+			history.push(step - 1, previous);
+		}
+		double[] tmp = previous;
+		previous = current;
+		current = tmp;
+		step++;
+	}
+
+	/**
+	 * Like {@link #swap()}, but the new current values are the passed array,
+	 * already computed (e.g. several steps ahead, by temporal blocking). The
+	 * array that is no longer used is returned, to be reused.
+	 * 
+	 * @throws KlabException
+	 *             if the history cannot be written.
+	 */
+	public double[] swap(double[] next) throws KlabException {
+		if (history != null && step > 0) {
+			history.push(step - 1, previous);
+		}
+		double[] ret = previous;
+		previous = current;
+		current = next;
+		step++;
+		return ret;
+	}
+
+	/**
+	 * Copy the values at the passed step into dst, from the buffers or from
+	 * the history.
+	 * 
+	 * @throws KlabException
+	 *             if the step is not available.
+	 */
+	public void read(int step, double[] dst) throws KlabException {
+		if (step == this.step) {
+			System.arraycopy(current, 0, dst, 0, current.length);
+		} else if (step == this.step - 1) {
+			System.arraycopy(previous, 0, dst, 0, previous.length);
+		} else if (history != null) {
+			history.read(step, dst);
+		} else {
+			throw new KlabIOException("values for step " + step + " are not kept");
+		}
+	}
+
+	/**
+	 * Make the passed values the current ones at the passed step, e.g. when
+	 * resuming from a {@link Checkpoint}. The previous step is not known and
+	 * is set to NaN.
+	 */
+	public void restore(int step, double[] values) {
+		System.arraycopy(values, 0, current, 0, current.length);
+		Arrays.fill(previous, Double.NaN);
+		this.step = step;
+	}
+
+	/**
+	 * Set the cells that are not valid in the mask to NaN in both the current
+	 * and the previous values. Loops that only visit valid cells can then
+	 * leave the others alone, as they will stay NaN through any number of
+	 * swaps.
+	 */
+	public void clear(ValidMask mask) {
+		for (int cell = mask.nextInvalid(0); cell < current.length; cell = mask.nextInvalid(cell + 1)) {
+			current[cell] = Double.NaN;
+			previous[cell] = Double.NaN;
+		}
+	}
+
+	/**
+	 * Release the history, if any.
+	 */
+	public void close() {
+		if (history != null) {
+			history.close();
+		}
+	}
+
+	/**
+	 * Write the current values into the state at the offsets of the passed
+	 * slice.
+	 * 
+	 * @param state
+	 * @param slice
+	 */
+	public void flush(IState state, Slice slice) {
+		int[] offsets = slice.offsets;
+		for (int i = 0; i < offsets.length; i++) {
+			States.set(state, current[slice.spaceOffset(i)], offsets[i]);
+		}
+	}
+
+	/**
+	 * Like {@link #flush(IState, Slice)}, also reporting to the channel the
+	 * cells whose value differs from the previous step, one tile of cells at
+	 * a time, and then that the current step is done. Two NaNs are the same
+	 * value.
+	 * 
+	 * @param state
+	 * @param slice
+	 * @param channel
+	 *            may be null, if nobody is watching the state.
+	 */
+	public void flush(IState state, Slice slice, ChangeFeed.Channel channel) {
+		flush(state, slice);
+		if (channel != null) {
+			int[] tile = new int[Math.min(slice.size(), TileExecutor.DEFAULT_TILE_SIZE)];
+			int n = 0;
+			for (int i = 0; i < slice.size(); i++) {
+				int cell = slice.spaceOffset(i);
+				if (Double.doubleToLongBits(current[cell]) != Double.doubleToLongBits(previous[cell])) {
+					tile[n++] = cell;
+					if (n == tile.length) {
+						channel.changed(tile, n);
+						n = 0;
+					}
+				}
+			}
+			if (n > 0) {
+				channel.changed(tile, n);
+			}
+			channel.produced(step);
+		}
+	}
+}
@@ -0,0 +1,222 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import java.util.Arrays;
+
+import org.integratedmodelling.api.space.IGrid;
+
+/**
+ * Neighborhood computations on a regular grid, for processes where the new
+ * value of a cell depends on the previous values of its 4 or 8 neighbors
+ * (diffusion, runoff, dispersal...).
+ * 
+ * The grid is computed in blocks of whole rows, in parallel. For each block,
+ * the kernel gets a {@link Block}: a copy of the previous values of its rows
+ * plus one row above and below and one column on each side (the halo), so
+ * that the neighbors of every cell in the block are at fixed distances from
+ * it, given by {@link #offsets()}, with no bounds checks or offset arithmetic
+ * per neighbor. Halo cells outside the grid are NaN, like no-data, or repeat
+ * the nearest edge cell with {@link Boundary#CLAMP}; kernels should skip NaN
+ * neighbors.
+ * 
+ * Out of core, {@link #load(TileStore, int, int)} builds the same blocks from
+ * a {@link TileStore}, for the caller to compute in whatever order it likes.
+ */
+public class Stencil {
+
+	/**
+	 * What neighbors outside the grid look like.
+	 */
+	public enum Boundary {
+		NODATA, CLAMP
+	}
+
+	/**
+	 * Computes rows [y0, y1) of the grid into dst, which is indexed by cell
+	 * (y * width + x) like the grid buffers.
+	 */
+	public interface Kernel {
+		void compute(Block block, int y0, int y1, double[] dst);
+	}
+
+	/**
+	 * The previous values of a block of rows with their halo. The value of
+	 * cell (x, y), for y0 - 1 <= y <= y1 and -1 <= x <= width, is
+	 * data[index(x, y)].
+	 */
+	public static class Block {
+
+		public final int stride;
+		public double[] data;
+		int y0;
+
+		Block(int width) {
+			this.stride = width + 2;
+		}
+
+		public int index(int x, int y) {
+			return (y - y0 + 1) * stride + x + 1;
+		}
+	}
+
+	/*
+	 * copies the values of row y into dst[offset, offset + width).
+	 */
+	private interface Rows {
+		void copy(int y, double[] dst, int offset);
+	}
+
+	private final int width;
+	private final int height;
+	private final int[] offsets;
+	private final Boundary boundary;
+	private final TileExecutor rows;
+	private final ThreadLocal<Block> blocks;
+
+	/**
+	 * @param grid
+	 * @param neighbors
+	 *            4 or 8.
+	 * @param boundary
+	 * @param threads
+	 *            as for {@link TileExecutor}.
+	 */
+	public Stencil(IGrid grid, int neighbors, Boundary boundary, int threads) {
+		this(grid.getXCells(), grid.getYCells(), neighbors, boundary, threads);
+	}
+
+	public Stencil(final int width, int height, int neighbors, Boundary boundary, int threads) {
+
+		if (neighbors != 4 && neighbors != 8) {
+			throw new IllegalArgumentException("stencil neighbors must be 4 or 8");
+		}
+
+		this.width = width;
+		this.height = height;
+		this.boundary = boundary;
+
+		int stride = width + 2;
+		this.offsets = neighbors == 4 ? new int[] { -stride, -1, 1, stride }
+				: new int[] { -stride - 1, -stride, -stride + 1, -1, 1, stride - 1, stride, stride + 1 };
+
+		/*
+		 * blocks of about as many cells as a default tile, in whole rows.
+		 */
+		this.rows = new TileExecutor(threads, Math.max(1, TileExecutor.DEFAULT_TILE_SIZE / Math.max(width, 1)));
+		this.blocks = ThreadLocal.withInitial(() -> new Block(width));
+	}
+
+	/**
+	 * Distances in a {@link Block} from a cell to each of its neighbors.
+	 */
+	public int[] offsets() {
+		return offsets;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * How many rows go in a block.
+	 */
+	public int getBlockRows() {
+		return rows.getTileSize();
+	}
+
+	/**
+	 * Compute all rows from the previous values, one block at a time. The
+	 * kernel must only write the cells of its rows in dst.
+	 * 
+	 * @param previous
+	 *            values indexed by cell; not modified.
+	 * @param dst
+	 * @param kernel
+	 */
+	public void run(final double[] previous, final double[] dst, final Kernel kernel) {
+		rows.run(height, (tile, y0, y1) -> {
+			Block block = blocks.get();
+			fill(block, (y, data, offset) -> System.arraycopy(previous, y * width, data, offset, width), y0, y1);
+			kernel.compute(block, y0, y1, dst);
+		});
+	}
+
+	/**
+	 * The block for rows [y0, y1) of a grid kept in a store. The block belongs
+	 * to the calling thread and is reused by its next call.
+	 */
+	public Block load(final TileStore previous, int y0, int y1) {
+		Block block = blocks.get();
+		fill(block, (y, data, offset) -> previous.read(y * width, (y + 1) * width, data, offset), y0, y1);
+		return block;
+	}
+
+	public void shutdown() {
+		rows.shutdown();
+	}
+
+	/*
+	 * copy rows y0 - 1 to y1 into the block, with the halo.
+	 */
+	private void fill(Block block, Rows previous, int y0, int y1) {
+
+		int stride = block.stride;
+		int size = (y1 - y0 + 2) * stride;
+		if (block.data == null || block.data.length < size) {
+			block.data = new double[size];
+		}
+		block.y0 = y0;
+		double[] data = block.data;
+
+		for (int y = y0 - 1; y <= y1; y++) {
+
+			int row = (y - y0 + 1) * stride;
+			int source = y;
+			if (y < 0 || y >= height) {
+				if (boundary == Boundary.NODATA) {
+					Arrays.fill(data, row, row + stride, Double.NaN);
+					continue;
+				}
+				source = y < 0 ? 0 : height - 1;
+			}
+
+			previous.copy(source, data, row + 1);
+			if (boundary == Boundary.NODATA) {
+				data[row] = Double.NaN;
+				data[row + stride - 1] = Double.NaN;
+			} else {
+				data[row] = data[row + 1];
+				data[row + stride - 1] = data[row + width];
+			}
+		}
+	}
+}
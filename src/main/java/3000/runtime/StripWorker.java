@@ -0,0 +1,150 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+
+/**
+ * The program that runs in each worker process started by
+ * {@link StripWorkers}. It computes the rows of the grid in its strip, reading
+ * the previous values and writing the new ones straight into the memory-mapped
+ * files of the outputs, which the engine and the other workers map too; the
+ * rows just outside the strip are read from the same files, so there is
+ * nothing else to exchange.
+ * 
+ * Arguments: seed, width, height, first row, last row + 1, neighborhood (0, 4
+ * or 8), multiplier, then two files per output. At step n the previous values are in the
+ * second file of each output if n is odd and in the first if it's even, and
+ * the new values go in the other one.
+ * 
+ * The engine sends one line per transition on stdin, "step n", and waits for
+ * "done n" (or "error message") on stdout, so that no worker starts a step
+ * before all have finished the previous one. Anything else goes to stderr.
+ * The worker exits at "exit" or at the end of its input.
+ */
+public class StripWorker {
+
+	private final CellRandom random;
+	private final int width;
+	private final int y0;
+	private final int y1;
+	private final TileStore[][] outputs;
+	private final Stencil stencil;
+	private final double multiplier;
+
+	StripWorker(long seed, int width, int height, int y0, int y1, int neighborhood, double multiplier,
+			TileStore[][] outputs) {
+		this.random = new CellRandom(seed);
+		this.multiplier = multiplier;
+		this.width = width;
+		this.y0 = y0;
+		this.y1 = y1;
+		this.outputs = outputs;
+		this.stencil = neighborhood > 0 ? new Stencil(width, height, neighborhood, Stencil.Boundary.NODATA, 1)
+				: null;
+	}
+
+	/*
+	 * compute one step for all outputs, one block of rows at a time.
+	 */
+	void step(int step) {
+
+		int rows = Math.max(1, TileExecutor.DEFAULT_TILE_SIZE / Math.max(width, 1));
+		double[] previous = new double[rows * width];
+		double[] current = new double[rows * width];
+
+		for (int o = 0; o < outputs.length; o++) {
+			TileStore from = outputs[o][step % 2 == 1 ? 1 : 0];
+			TileStore to = outputs[o][step % 2 == 1 ? 0 : 1];
+			for (int y = y0; y < y1; y += rows) {
+				int end = Math.min(y + rows, y1);
+				int first = y * width;
+				int last = end * width;
+				if (stencil == null) {
+					double[] deltas = PerturbKernel.scratch(last - first);
+					from.read(first, last, previous);
+					PerturbKernel.deltas(random, step, o, -50.0, 50.0, deltas, first, last);
+					PerturbKernel.perturb(previous, deltas, current, 0, last - first, multiplier);
+				} else {
+					Stencil.Block block = stencil.load(from, y, end);
+					PerturbKernel.diffuse(block, stencil.offsets(), width, y, end, random, step, o, -50.0, 50.0,
+							multiplier, current, first);
+				}
+				to.write(first, last, current);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		/*
+		 * keep stdout for the engine.
+		 */
+		PrintStream out = System.out;
+		System.setOut(System.err);
+
+		long seed = Long.parseLong(args[0]);
+		int width = Integer.parseInt(args[1]);
+		int height = Integer.parseInt(args[2]);
+		int y0 = Integer.parseInt(args[3]);
+		int y1 = Integer.parseInt(args[4]);
+		int neighborhood = Integer.parseInt(args[5]);
+		double multiplier = Double.parseDouble(args[6]);
+
+		TileStore[][] outputs = new TileStore[(args.length - 7) / 2][2];
+		for (int o = 0; o < outputs.length; o++) {
+			outputs[o][0] = TileStore.open(new File(args[7 + 2 * o]), width * height);
+			outputs[o][1] = TileStore.open(new File(args[8 + 2 * o]), width * height);
+		}
+
+		StripWorker worker = new StripWorker(seed, width, height, y0, y1, neighborhood, multiplier, outputs);
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+		String line;
+		while ((line = in.readLine()) != null && !line.equals("exit")) {
+			if (!line.startsWith("step ")) {
+				continue;
+			}
+			String step = line.substring(5).trim();
+			try {
+				worker.step(Integer.parseInt(step));
+				out.println("done " + step);
+			} catch (Throwable e) {
+				e.printStackTrace();
+				out.println("error " + e);
+			}
+			out.flush();
+		}
+
+		for (TileStore[] pair : outputs) {
+			pair[0].close();
+			pair[1].close();
+		}
+	}
+}
@@ -0,0 +1,267 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.integratedmodelling.exceptions.KlabException;
+import org.integratedmodelling.exceptions.KlabIOException;
+
+/**
+ * Runs the transitions of a grid process in separate JVMs on this machine,
+ * each computing one horizontal strip of rows with a {@link StripWorker}, so
+ * that a run is not limited by the heap and the garbage collector of the
+ * engine. The values live in the memory-mapped files of {@link TileStore}s
+ * shared by all processes: the workers read the rows they need across strip
+ * boundaries directly from them, and the engine reads the results from them
+ * to set the states.
+ * 
+ * The workers are started with the java executable and classpath of the
+ * engine, plus any options in the example.workers.jvm system property (e.g.
+ * "-Xmx2g"). A worker that hasn't finished a step within the number of
+ * seconds in the example.workers.timeout system property (default
+ * {@link #DEFAULT_TIMEOUT}) is taken as hung: all workers are killed and the
+ * step fails.
+ */
+public class StripWorkers {
+
+	public static final long DEFAULT_TIMEOUT = 600;
+
+	/*
+	 * what the reader threads put in the queue when a worker's output ends.
+	 */
+	private static final String EXITED = "exited";
+
+	private final List<Process> processes = new ArrayList<>();
+	private final List<Writer> commands = new ArrayList<>();
+	private final List<BlockingQueue<String>> replies = new ArrayList<>();
+	private long timeout = Long.getLong("example.workers.timeout", DEFAULT_TIMEOUT) * 1000;
+
+	/**
+	 * Start the workers. The initial values must be in the second store of
+	 * each pair, which must not have been swapped yet.
+	 * 
+	 * @param workers
+	 *            how many processes; no more than one per row.
+	 * @param width
+	 * @param height
+	 * @param seed
+	 *            of the {@link CellRandom} the values are computed with.
+	 * @param neighborhood
+	 *            0, 4 or 8.
+	 * @param multiplier
+	 *            what each new value is multiplied by.
+	 * @param outputs
+	 *            two stores per output, in stream order.
+	 * @throws KlabException
+	 *             if the processes can't be started.
+	 */
+	public StripWorkers(int workers, int width, int height, long seed, int neighborhood, double multiplier,
+			List<TileStore[]> outputs) throws KlabException {
+
+		workers = Math.max(1, Math.min(workers, height));
+
+		List<String> command = new ArrayList<>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		String options = System.getProperty("example.workers.jvm", "").trim();
+		if (!options.isEmpty()) {
+			for (String option : options.split("\\s+")) {
+				command.add(option);
+			}
+		}
+		command.add("-cp");
+		command.add(classpath());
+		command.add(StripWorker.class.getName());
+		command.add(Long.toString(seed));
+		command.add(Integer.toString(width));
+		command.add(Integer.toString(height));
+		int arguments = command.size();
+
+		try {
+			for (int w = 0; w < workers; w++) {
+				List<String> args = new ArrayList<>(command.subList(0, arguments));
+				args.add(Integer.toString((int) ((long) height * w / workers)));
+				args.add(Integer.toString((int) ((long) height * (w + 1) / workers)));
+				args.add(Integer.toString(neighborhood));
+				args.add(Double.toString(multiplier));
+				for (TileStore[] pair : outputs) {
+					args.add(pair[0].getFile().getAbsolutePath());
+					args.add(pair[1].getFile().getAbsolutePath());
+				}
+				Process process = new ProcessBuilder(args).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+				processes.add(process);
+				commands.add(new OutputStreamWriter(process.getOutputStream(), "UTF-8"));
+				replies.add(read(process, w));
+			}
+		} catch (IOException e) {
+			close();
+			throw new KlabIOException(e);
+		}
+	}
+
+	public int size() {
+		return processes.size();
+	}
+
+	/**
+	 * Change how long a step may take before the workers are killed.
+	 */
+	public void setTimeout(long milliseconds) {
+		this.timeout = milliseconds;
+	}
+
+	/**
+	 * Have all workers compute a step and wait until they're done, after which
+	 * the new values are in the stores.
+	 * 
+	 * @throws KlabException
+	 *             if any worker fails, dies or times out; the others are
+	 *             stopped.
+	 */
+	public void step(int step) throws KlabException {
+		try {
+			for (Writer writer : commands) {
+				writer.write("step " + step + "\n");
+				writer.flush();
+			}
+			long deadline = System.currentTimeMillis() + timeout;
+			for (int w = 0; w < replies.size(); w++) {
+				String reply = replies.get(w).poll(Math.max(0, deadline - System.currentTimeMillis()),
+						TimeUnit.MILLISECONDS);
+				if (reply == null) {
+					kill();
+					throw new KlabException("example.process: worker " + w + " did not finish step " + step
+							+ " within " + timeout + " ms");
+				}
+				if (!("done " + step).equals(reply)) {
+					close();
+					throw new KlabException(
+							"example.process: worker " + w + " failed at step " + step + ": " + reply);
+				}
+			}
+		} catch (IOException e) {
+			close();
+			throw new KlabIOException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			kill();
+			throw new KlabException("example.process: interrupted while waiting for the workers");
+		}
+	}
+
+	/**
+	 * Tell the workers to exit and stop any that don't within a few seconds.
+	 */
+	public void close() {
+		for (Writer writer : commands) {
+			try {
+				writer.write("exit\n");
+				writer.close();
+			} catch (IOException e) {
+				// already gone
+			}
+		}
+		for (Process process : processes) {
+			try {
+				process.waitFor(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			process.destroy();
+		}
+		processes.clear();
+		commands.clear();
+		replies.clear();
+	}
+
+	/*
+	 * stop the workers right away, e.g. when they have stopped answering.
+	 */
+	private void kill() {
+		for (Writer writer : commands) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				// already gone
+			}
+		}
+		for (Process process : processes) {
+			process.destroyForcibly();
+		}
+		processes.clear();
+		commands.clear();
+		replies.clear();
+	}
+
+	/*
+	 * read the replies of a worker in a thread of their own, so that we can
+	 * wait for them with a deadline.
+	 */
+	private static BlockingQueue<String> read(Process process, int worker) throws IOException {
+		final BlockingQueue<String> ret = new LinkedBlockingQueue<>();
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+		Thread thread = new Thread(() -> {
+			try {
+				for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+					ret.add(line);
+				}
+			} catch (IOException e) {
+				// same as exiting
+			}
+			ret.add(EXITED);
+		}, "strip-worker-" + worker);
+		thread.setDaemon(true);
+		thread.start();
+		return ret;
+	}
+
+	/*
+	 * where our classes came from (the plug-in) plus the classpath of the
+	 * engine.
+	 */
+	private static String classpath() {
+		String ret = System.getProperty("java.class.path");
+		try {
+			String own = new File(StripWorker.class.getProtectionDomain().getCodeSource().getLocation().toURI())
+					.getPath();
+			ret = own + File.pathSeparator + ret;
+		} catch (Exception e) {
+			// use the engine's
+		}
+		return ret;
+	}
+}
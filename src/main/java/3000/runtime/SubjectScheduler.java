@@ -0,0 +1,170 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.integratedmodelling.api.modelling.IObservation;
+import org.integratedmodelling.api.modelling.IState;
+import org.integratedmodelling.api.modelling.contextualization.ISubjectContextualizer;
+import org.integratedmodelling.api.modelling.scheduling.ITransition;
+import org.integratedmodelling.exceptions.KlabException;
+import org.integratedmodelling.exceptions.KlabRuntimeException;
+
+/**
+ * Runs compute() on many subject contextualizers (e.g. one per agent created
+ * by an instantiator) for the same transition, as concurrent tasks instead of
+ * one after the other.
+ * 
+ * Each call to {@link #compute} is a barrier: it returns when all subjects
+ * have computed the transition, so no subject sees the next transition before
+ * all others are done with this one. The results come back in the same order
+ * as the contextualizers were passed, whatever order they finished in, and at
+ * most the configured number of compute() calls run at the same time.
+ * 
+ * On a JVM that has virtual threads, each task gets its own virtual thread,
+ * so tens of thousands of subjects don't need tens of thousands of platform
+ * threads, and the concurrency bound is what limits the load on the engine.
+ * Otherwise, a pool with as many threads as the bound is used.
+ */
+public class SubjectScheduler {
+
+	private final ExecutorService executor;
+	private final Semaphore permits;
+	private final int concurrency;
+	private final boolean virtual;
+
+	/**
+	 * @param concurrency
+	 *            the most compute() calls that can run at the same time; 0 means
+	 *            as many as there are processors.
+	 */
+	public SubjectScheduler(int concurrency) {
+		this.concurrency = concurrency <= 0 ? Runtime.getRuntime().availableProcessors() : concurrency;
+		this.permits = new Semaphore(this.concurrency);
+		ExecutorService executor = virtualThreadExecutor();
+		this.virtual = executor != null;
+		this.executor = executor == null ? Executors.newFixedThreadPool(this.concurrency) : executor;
+	}
+
+	/*
+	 * Executors.newVirtualThreadPerTaskExecutor() if this JVM has it. Looked up
+	 * by name, as we build for JVMs that don't.
+	 */
+	private static ExecutorService virtualThreadExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * True if tasks run in virtual threads.
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * Call compute(transition, inputs) on all the passed contextualizers and
+	 * wait for all of them to finish.
+	 * 
+	 * @param transition
+	 * @param subjects
+	 * @param inputs
+	 *            the inputs for each contextualizer, in the same order, or null
+	 *            to pass null to all.
+	 * @return the results of each compute(), in the order of the
+	 *         contextualizers.
+	 * @throws KlabException
+	 *             the first exception thrown by a contextualizer, in their
+	 *             order, after all have finished.
+	 */
+	public List<Map<String, IObservation>> compute(final ITransition transition,
+			List<? extends ISubjectContextualizer> subjects, List<Map<String, IState>> inputs) throws KlabException {
+
+		List<Callable<Map<String, IObservation>>> tasks = new ArrayList<>(subjects.size());
+		for (int i = 0; i < subjects.size(); i++) {
+			final ISubjectContextualizer subject = subjects.get(i);
+			final Map<String, IState> input = inputs == null ? null : inputs.get(i);
+			tasks.add(() -> {
+				permits.acquire();
+				try {
+					return subject.compute(transition, input);
+				} finally {
+					permits.release();
+				}
+			});
+		}
+
+		List<Future<Map<String, IObservation>>> futures;
+		try {
+			futures = executor.invokeAll(tasks);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KlabRuntimeException(e);
+		}
+
+		List<Map<String, IObservation>> ret = new ArrayList<>(futures.size());
+		for (Future<Map<String, IObservation>> future : futures) {
+			try {
+				ret.add(future.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new KlabRuntimeException(e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof KlabException) {
+					throw (KlabException) e.getCause();
+				}
+				throw new KlabRuntimeException(e.getCause());
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Stop the threads. Call when the last transition has been computed.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
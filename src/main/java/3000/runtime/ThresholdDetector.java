@@ -0,0 +1,91 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import java.util.Arrays;
+
+/**
+ * Finds the cells whose value goes from below a threshold to at or above it
+ * (or from above to below, if falling is true). It keeps the last value seen
+ * for each cell, so each update is a constant-time comparison and the cost of
+ * a transition is proportional to the number of cells updated. No-data never
+ * crosses anything.
+ */
+public class ThresholdDetector {
+
+	private final double threshold;
+	private final boolean falling;
+	private final double[] last;
+	private int[] crossed = new int[64];
+	private int count = 0;
+
+	/**
+	 * @param cells
+	 *            number of cells, all starting as no-data.
+	 * @param threshold
+	 * @param falling
+	 *            if true, detect crossings from above the threshold to below
+	 *            it.
+	 */
+	public ThresholdDetector(int cells, double threshold, boolean falling) {
+		this.threshold = threshold;
+		this.falling = falling;
+		this.last = new double[cells];
+		Arrays.fill(last, Double.NaN);
+	}
+
+	/**
+	 * Set the value of a cell without detecting anything, e.g. to establish
+	 * the values before the first transition.
+	 */
+	public void reset(int cell, double value) {
+		last[cell] = value;
+	}
+
+	/**
+	 * Record the new value of a cell, and the crossing if there is one.
+	 */
+	public void update(int cell, double value) {
+		double previous = last[cell];
+		last[cell] = value;
+		if (falling ? (previous >= threshold && value < threshold) : (previous < threshold && value >= threshold)) {
+			if (count == crossed.length) {
+				crossed = Arrays.copyOf(crossed, count * 2);
+			}
+			crossed[count++] = cell;
+		}
+	}
+
+	/**
+	 * The cells that crossed the threshold since the last call.
+	 */
+	public int[] drain() {
+		int[] ret = Arrays.copyOf(crossed, count);
+		count = 0;
+		return ret;
+	}
+}
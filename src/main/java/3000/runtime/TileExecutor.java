@@ -0,0 +1,162 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a kernel over a range of cell positions split into fixed-size tiles,
+ * either sequentially or on a fork/join pool. Tiles are the unit of work in
+ * both cases and are numbered the same way, so a kernel that only depends on
+ * its tile number and range (e.g. by taking its random numbers from a
+ * {@link CellRandom}) gives the same results whatever the number of threads.
+ * 
+ * The default tile size keeps one tile of a double buffer (128k) within a
+ * typical L2 cache.
+ */
+public class TileExecutor {
+
+	public static final int DEFAULT_TILE_SIZE = 16 * 1024;
+
+	/**
+	 * The work done on one tile. Implementations must only write to the
+	 * positions in [from, to), so that tiles can run concurrently.
+	 */
+	public interface Kernel {
+		void run(int tile, int from, int to);
+	}
+
+	private final int threads;
+	private final int tileSize;
+	private ForkJoinPool pool;
+
+	/**
+	 * @param threads
+	 *            1 (or less than 0) for sequential execution, 0 for as many
+	 *            threads as there are available processors, or the number
+	 *            of threads to use.
+	 */
+	public TileExecutor(int threads) {
+		this(threads, DEFAULT_TILE_SIZE);
+	}
+
+	public TileExecutor(int threads, int tileSize) {
+		this.threads = threads == 0 ? Runtime.getRuntime().availableProcessors() : Math.max(threads, 1);
+		this.tileSize = tileSize;
+	}
+
+	/**
+	 * An executor whose tiles are as large as possible while all threads
+	 * together hold no more than the passed number of bytes, when each
+	 * position of a tile needs bytesPerCell bytes of working memory (e.g. 8
+	 * for each input and output column). Use to bound the working set of
+	 * out-of-core runs.
+	 */
+	public static TileExecutor withBudget(int threads, long bytes, int bytesPerCell) {
+		TileExecutor ret = new TileExecutor(threads);
+		long tileSize = bytes / ((long) ret.getThreads() * Math.max(bytesPerCell, 1));
+		return new TileExecutor(threads, (int) Math.max(1024, Math.min(Integer.MAX_VALUE / 16, tileSize)));
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	/**
+	 * Number of tiles needed to cover the passed number of positions.
+	 */
+	public int tiles(int size) {
+		return (size + tileSize - 1) / tileSize;
+	}
+
+	/**
+	 * Run the kernel over positions 0 to size - 1 and return when all tiles
+	 * have been computed.
+	 */
+	public void run(int size, Kernel kernel) {
+
+		int tiles = tiles(size);
+
+		if (threads == 1 || tiles < 2) {
+			for (int t = 0; t < tiles; t++) {
+				kernel.run(t, t * tileSize, Math.min(size, (t + 1) * tileSize));
+			}
+			return;
+		}
+
+		getPool().invoke(new Tiles(kernel, size, 0, tiles));
+	}
+
+	/**
+	 * Release the threads, if any. The executor can still be used afterwards
+	 * and will create a new pool if needed.
+	 */
+	public synchronized void shutdown() {
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+
+	private synchronized ForkJoinPool getPool() {
+		if (pool == null) {
+			pool = new ForkJoinPool(threads);
+		}
+		return pool;
+	}
+
+	@SuppressWarnings("serial")
+	class Tiles extends RecursiveAction {
+
+		Kernel kernel;
+		int size;
+		int first;
+		int last;
+
+		Tiles(Kernel kernel, int size, int first, int last) {
+			this.kernel = kernel;
+			this.size = size;
+			this.first = first;
+			this.last = last;
+		}
+
+		@Override
+		protected void compute() {
+			if (last - first == 1) {
+				kernel.run(first, first * tileSize, Math.min(size, (first + 1) * tileSize));
+			} else {
+				int middle = (first + last) >>> 1;
+				invokeAll(new Tiles(kernel, size, first, middle), new Tiles(kernel, size, middle, last));
+			}
+		}
+	}
+}
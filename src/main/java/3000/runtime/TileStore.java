@@ -0,0 +1,174 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.integratedmodelling.exceptions.KlabException;
+import org.integratedmodelling.exceptions.KlabIOException;
+
+/**
+ * The values of a whole grid kept in a memory-mapped temporary file instead
+ * of the heap, for grids whose buffers don't fit in memory. Ranges of cells
+ * (tiles) are copied in and out of ordinary arrays with {@link #read} and
+ * {@link #write}; the operating system decides which parts of the file stay
+ * in memory, and the heap only holds the tiles being worked on.
+ * 
+ * The file is mapped in segments of {@link #SEGMENT} values, so grids of any
+ * size can be mapped. Tiles can be read and written concurrently as long as
+ * they don't overlap.
+ * 
+ * Other processes on the same machine can map the same file with
+ * {@link #open(File, int)}: they see the values written here and we see
+ * theirs, which is how {@link StripWorkers} share a grid.
+ */
+public class TileStore {
+
+	/**
+	 * Values per mapped segment (128 MB).
+	 */
+	public static final int SEGMENT = 1 << 24;
+
+	private final int cells;
+	private final File file;
+	private final RandomAccessFile data;
+	private final DoubleBuffer[] segments;
+	private final boolean owned;
+
+	/**
+	 * @param cells
+	 *            number of values; all start at 0.
+	 * @throws KlabException
+	 *             if the file can't be created or mapped.
+	 */
+	public TileStore(int cells) throws KlabException {
+		this(null, cells);
+	}
+
+	/**
+	 * Map a file created by a TileStore in another process. Closing this one
+	 * leaves the file alone.
+	 */
+	public static TileStore open(File file, int cells) throws KlabException {
+		return new TileStore(file, cells);
+	}
+
+	private TileStore(File shared, int cells) throws KlabException {
+		this.cells = cells;
+		this.owned = shared == null;
+		this.segments = new DoubleBuffer[(cells + SEGMENT - 1) / SEGMENT];
+		try {
+			if (owned) {
+				this.file = File.createTempFile("tiles", ".bin");
+				this.file.deleteOnExit();
+			} else {
+				this.file = shared;
+			}
+			this.data = new RandomAccessFile(file, "rw");
+			if (owned) {
+				this.data.setLength((long) cells * 8);
+			}
+			FileChannel channel = data.getChannel();
+			for (int s = 0; s < segments.length; s++) {
+				long first = (long) s * SEGMENT;
+				long size = Math.min(SEGMENT, cells - first);
+				MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, first * 8, size * 8);
+				segments[s] = map.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+			}
+		} catch (IOException e) {
+			throw new KlabIOException(e);
+		}
+	}
+
+	public int size() {
+		return cells;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Copy cells [from, to) into dst, starting at dst[0].
+	 */
+	public void read(int from, int to, double[] dst) {
+		read(from, to, dst, 0);
+	}
+
+	/**
+	 * Copy cells [from, to) into dst, starting at dst[offset].
+	 */
+	public void read(int from, int to, double[] dst, int offset) {
+		for (int cell = from; cell < to;) {
+			int s = cell / SEGMENT;
+			int start = cell - s * SEGMENT;
+			int n = Math.min(to - cell, SEGMENT - start);
+			DoubleBuffer segment = segments[s].duplicate();
+			segment.position(start);
+			segment.get(dst, offset + cell - from, n);
+			cell += n;
+		}
+	}
+
+	/**
+	 * Copy src[0] to src[to - from - 1] into cells [from, to).
+	 */
+	public void write(int from, int to, double[] src) {
+		for (int cell = from; cell < to;) {
+			int s = cell / SEGMENT;
+			int start = cell - s * SEGMENT;
+			int n = Math.min(to - cell, SEGMENT - start);
+			DoubleBuffer segment = segments[s].duplicate();
+			segment.position(start);
+			segment.put(src, cell - from, n);
+			cell += n;
+		}
+	}
+
+	/**
+	 * Unmap (as far as Java allows) and delete the file if we created it.
+	 */
+	public void close() {
+		for (int s = 0; s < segments.length; s++) {
+			segments[s] = null;
+		}
+		try {
+			data.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+		if (owned) {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * The Flight Recorder event for one transition of a contextualizer, recorded
+ * by {@link Probe}. This is the only class that uses jdk.jfr, and it is only
+ * loaded when Flight Recorder is available.
+ */
+@Name("example.Transition")
+@Label("Contextualizer transition")
+@Category({ "k.LAB", "Example component" })
+class TransitionEvent extends Event {
+
+	@Label("Contextualizer")
+	String contextualizer;
+
+	@Label("Cells")
+	long cells;
+
+	@Label("Allocated")
+	@DataAmount
+	long allocated;
+
+	@Label("Time in States")
+	@Timespan
+	long states;
+
+	static Object start() {
+		TransitionEvent ret = new TransitionEvent();
+		ret.begin();
+		return ret;
+	}
+
+	static void finish(Object event, String contextualizer, long cells, long allocated, long states) {
+		TransitionEvent ret = (TransitionEvent) event;
+		ret.end();
+		if (ret.shouldCommit()) {
+			ret.contextualizer = contextualizer;
+			ret.cells = cells;
+			ret.allocated = allocated;
+			ret.states = states;
+			ret.commit();
+		}
+	}
+}
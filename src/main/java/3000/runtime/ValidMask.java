@@ -0,0 +1,171 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import org.integratedmodelling.api.modelling.IState;
+import org.integratedmodelling.common.states.States;
+
+/**
+ * A bitmap of the cells that have data, indexed by spatial offset. It is
+ * built once from the values of a state (or of a buffer) and can then be used
+ * to visit only the valid cells, either one by one or as runs of consecutive
+ * cells that the array kernels can process as ranges. Masked grids where most
+ * cells are no-data are visited in time proportional to the valid cells, plus
+ * one word test per 64 cells.
+ */
+public class ValidMask {
+
+	/**
+	 * Receives the runs of consecutive valid cells.
+	 */
+	public interface Runs {
+		void run(int from, int to);
+	}
+
+	private final long[] words;
+	private final int size;
+	private final int count;
+
+	private ValidMask(long[] words, int size) {
+		this.words = words;
+		this.size = size;
+		int count = 0;
+		for (long word : words) {
+			count += Long.bitCount(word);
+		}
+		this.count = count;
+	}
+
+	/**
+	 * Bytes taken by the mask of the passed number of cells.
+	 */
+	public static long bytes(int cells) {
+		return 8L * ((cells + 63) >>> 6);
+	}
+
+	/**
+	 * A mask where the cells whose value is not NaN are valid.
+	 */
+	public static ValidMask of(double[] values) {
+		long[] words = new long[(values.length + 63) >>> 6];
+		for (int i = 0; i < values.length; i++) {
+			if (!Double.isNaN(values[i])) {
+				words[i >>> 6] |= 1L << i;
+			}
+		}
+		return new ValidMask(words, values.length);
+	}
+
+	/**
+	 * A mask where the cells whose value in the state is not NaN at the
+	 * passed slice are valid.
+	 * 
+	 * @param state
+	 * @param slice
+	 * @param cells
+	 *            the number of cells in the spatial extent.
+	 */
+	public static ValidMask of(IState state, Slice slice, int cells) {
+		long[] words = new long[(cells + 63) >>> 6];
+		for (int i = 0; i < slice.size(); i++) {
+			int cell = slice.spaceOffset(i);
+			if (!Double.isNaN(States.getDouble(state, slice.offsets[i]))) {
+				words[cell >>> 6] |= 1L << cell;
+			}
+		}
+		return new ValidMask(words, cells);
+	}
+
+	/**
+	 * Number of cells covered.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Number of valid cells.
+	 */
+	public int count() {
+		return count;
+	}
+
+	public boolean isValid(int cell) {
+		return (words[cell >>> 6] & (1L << cell)) != 0;
+	}
+
+	/**
+	 * The first valid cell at or after the passed one, or size() if there is
+	 * none.
+	 */
+	public int nextValid(int cell) {
+		if (cell >= size) {
+			return size;
+		}
+		int w = cell >>> 6;
+		long word = words[w] & (-1L << cell);
+		while (word == 0) {
+			if (++w == words.length) {
+				return size;
+			}
+			word = words[w];
+		}
+		return Math.min(size, (w << 6) + Long.numberOfTrailingZeros(word));
+	}
+
+	/**
+	 * The first invalid cell at or after the passed one, or size() if there is
+	 * none.
+	 */
+	public int nextInvalid(int cell) {
+		if (cell >= size) {
+			return size;
+		}
+		int w = cell >>> 6;
+		long word = ~words[w] & (-1L << cell);
+		while (word == 0) {
+			if (++w == words.length) {
+				return size;
+			}
+			word = ~words[w];
+		}
+		return Math.min(size, (w << 6) + Long.numberOfTrailingZeros(word));
+	}
+
+	/**
+	 * Pass the runs of consecutive valid cells in [from, to) to the consumer,
+	 * in order.
+	 */
+	public void runs(int from, int to, Runs runs) {
+		int start = nextValid(from);
+		while (start < to) {
+			int end = Math.min(nextInvalid(start), to);
+			runs.run(start, end);
+			start = nextValid(end);
+		}
+	}
+}
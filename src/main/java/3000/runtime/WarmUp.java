@@ -0,0 +1,134 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Runs the kernels the contextualizers use over synthetic data, so that
+ * classes are loaded and the hot loops are compiled before the first model
+ * run needs them. Rounds of all the kernels are repeated until the time
+ * budget is spent (at least one round is always run).
+ * 
+ * The tiles are run by an executor of our own, which is shut down when we're
+ * done: each contextualizer starts its own threads, so there are none to keep
+ * for them, but the code that hands out and runs the tiles is compiled.
+ * 
+ * Caches that depend on the scale (e.g. {@link GeometryCache}) can't be
+ * built here, as there is no scale yet; their classes are loaded and their
+ * code paths compiled on first use.
+ */
+public class WarmUp {
+
+	private static final int WIDTH = 256;
+	private static final int HEIGHT = 256;
+
+	/**
+	 * Warm up for about the passed time.
+	 * 
+	 * @param budget
+	 *            milliseconds.
+	 * @return the number of rounds run.
+	 */
+	public static int run(long budget) {
+
+		long deadline = System.currentTimeMillis() + budget;
+		int cells = WIDTH * HEIGHT;
+		CellRandom random = new CellRandom(0);
+		TileExecutor executor = new TileExecutor(0);
+		double[] previous = new double[cells];
+		double[] current = new double[cells];
+		int rounds = 0;
+
+		/*
+		 * a field with some no-data, like the process contextualizer sees.
+		 */
+		for (int i = 0; i < cells; i++) {
+			previous[i] = (i % WIDTH) % 17 == 0 ? Double.NaN : random.uniform(i, 0, 0, 0.0, 500.0);
+		}
+		final ValidMask mask = ValidMask.of(previous);
+
+		try {
+			do {
+				final int step = ++rounds;
+				final double[] src = previous;
+				final double[] dst = current;
+
+				/*
+				 * perturb-and-clamp, over runs of valid cells, in tiles.
+				 */
+				executor.run(cells, (tile, from, to) -> {
+					final double[] deltas = PerturbKernel.scratch(to - from);
+					mask.runs(from, to, (start, end) -> {
+						PerturbKernel.deltas(random, step, 0, -50.0, 50.0, deltas, start, end);
+						PerturbKernel.perturb(src, deltas, dst, start, end, 1);
+					});
+				});
+				previous = dst;
+				current = src;
+
+				/*
+				 * threshold crossings and clusters.
+				 */
+				ThresholdDetector detector = new ThresholdDetector(cells, 250.0, false);
+				for (int i = 0; i < cells; i++) {
+					detector.reset(i, current[i]);
+					detector.update(i, previous[i]);
+				}
+				detector.drain();
+
+				final double[] values = previous;
+				new ClusterLabeler(WIDTH, HEIGHT, false, (cell) -> values[cell] > 250.0).label(0, (cluster) -> {
+				});
+
+				/*
+				 * checkpoint encoding.
+				 */
+				Map<String, double[]> outputs = new LinkedHashMap<>();
+				outputs.put("warmup", previous);
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(cells * 8 + 64);
+				new Checkpoint(step, Collections.<String, Long> emptyMap(), outputs).write(new DataOutputStream(bytes));
+				Checkpoint.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+			} while (System.currentTimeMillis() < deadline);
+
+		} catch (IOException e) {
+			// in-memory streams don't fail
+		} finally {
+			executor.shutdown();
+		}
+
+		return rounds;
+	}
+}
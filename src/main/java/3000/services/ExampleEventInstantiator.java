@@ -26,48 +26,235 @@
  *******************************************************************************/
 package 3000.services;
 
+import java.util.HashMap;
 import java.util.Map;
 
 import org.integratedmodelling.api.modelling.IActiveSubject;
 import org.integratedmodelling.api.modelling.IModel;
 import org.integratedmodelling.api.modelling.IObservable;
 import org.integratedmodelling.api.modelling.IObservation;
+import org.integratedmodelling.api.modelling.IScale;
 import org.integratedmodelling.api.modelling.IState;
 import org.integratedmodelling.api.modelling.contextualization.IEventInstantiator;
 import org.integratedmodelling.api.modelling.resolution.IResolutionScope;
 import org.integratedmodelling.api.modelling.scheduling.ITransition;
 import org.integratedmodelling.api.monitoring.IMonitor;
 import org.integratedmodelling.api.project.IProject;
+import org.integratedmodelling.common.states.States;
 import org.integratedmodelling.exceptions.KlabException;
+import org.integratedmodelling.exceptions.KlabValidationException;
 
+import 3000.runtime.ChangeFeed;
+import 3000.runtime.Extents;
+import 3000.runtime.Probe;
+import 3000.runtime.Slice;
+import 3000.runtime.ThresholdDetector;
+
+/**
+ * Creates an event each time a cell of the input state crosses a threshold
+ * (going up, or going down if falling = true), e.g. a flood when water depth
+ * goes above a level. The event is located in the cell, at the time of the
+ * transition.
+ * 
+ * Scanning the whole grid at each transition would cost the same whether one
+ * cell changed or all of them. Instead, we keep the last value of each cell in
+ * a {@link ThresholdDetector} and watch the state through a {@link ChangeFeed}:
+ * if the contextualizer that computes it reports the cells it changes (as
+ * ExampleProcessContextualizer does), we only read those. If nobody reports,
+ * we fall back to reading all cells, which gives the same events. The
+ * reported cells are only those of the transition if its process has written
+ * it before we run, which is the order k.LAB runs them in: if the feed says
+ * otherwise, we stop with an error rather than miss crossings.
+ * 
+ * Parameters: threshold (default 0) and falling (default false).
+ * 
+ * Running with -Dexample.instrument=true times each transition (see
+ * {@link Probe}) and reports a summary to the monitor after the last.
+ */
 public class ExampleEventInstantiator implements IEventInstantiator {
 
 	boolean finished;
-	
-    @Override
-    public boolean canDispose() {
-        // TODO Auto-generated method stub
-        return finished;
-    }
-
-    @Override
-    public void setContext(Map<String, Object> parameters, IModel model, IProject project) {
-        // TODO Auto-generated method stub
-
-    }
-
-    @Override
-    public Map<String, IObservation> createEvents(ITransition transition, Map<String, IState> inputs) throws KlabException {
-    	// TODO 
-    	finished = transition.isLast();
-    	return null;
-    }
+	double threshold = 0;
+	boolean falling = false;
+
+	IActiveSubject contextSubject;
+	IObservable observable;
+	IMonitor monitor;
+
+	/*
+	 * the state we are watching, and what we know about it.
+	 */
+	IState state;
+	ChangeFeed feed;
+	ThresholdDetector detector;
+	int step = 0;
+	Probe probe = new Probe("example.events");
+
+	/*
+	 * the slice of the first transition we've seen, and how far offsets move
+	 * at each transition after that (Integer.MIN_VALUE if they don't move by
+	 * a constant amount), once we know.
+	 */
+	Slice first;
+	int firstStep;
+	int stride;
+	boolean strideKnown;
+
+	@Override
+	public boolean canDispose() {
+		return finished;
+	}
+
+	@Override
+	public void setContext(Map<String, Object> parameters, IModel model, IProject project) {
+
+		if (parameters.containsKey("threshold")) {
+			threshold = ((Number) parameters.get("threshold")).doubleValue();
+		}
+		if (parameters.containsKey("falling")) {
+			falling = (Boolean) parameters.get("falling");
+		}
+	}
+
+	@Override
+	public Map<String, IObservation> createEvents(ITransition transition, Map<String, IState> inputs)
+			throws KlabException {
+
+		finished = transition.isLast();
+		Map<String, IObservation> ret = new HashMap<>();
+		int step = ++this.step;
+		int read = 0;
+		probe.begin();
+
+		IState input = null;
+		if (inputs != null && inputs.size() > 0) {
+			input = inputs.values().iterator().next();
+		} else if (contextSubject.getStates().size() > 0) {
+			input = contextSubject.getStates().iterator().next();
+		}
+		if (input == null) {
+			throw new KlabValidationException("example.events: no input state to watch");
+		}
+
+		IScale scale = contextSubject.getScale();
+
+		if (input != state) {
+
+			/*
+			 * first time (or the state has been replaced): start watching.
+			 * Changes may have been reported before we started watching, so we
+			 * read all cells this time. The first time, the initial values are
+			 * the ones before the first crossing; after a replacement, the
+			 * detector keeps the last values it has seen, so a cell only
+			 * crosses if it's on the other side in the new state.
+			 */
+			if (feed != null) {
+				feed.close();
+			}
+			state = input;
+			feed = ChangeFeed.watch(state, Slice.cells(scale));
+			if (detector == null) {
+				detector = new ThresholdDetector(Slice.cells(scale), threshold, falling);
+				Slice init = Slice.of(scale, null);
+				for (int i = 0; i < init.size(); i++) {
+					detector.reset(init.spaceOffset(i), States.getDouble(state, init.offsets[i]));
+				}
+			}
+			first = Slice.of(scale, transition);
+			firstStep = step;
+			strideKnown = false;
+			read = scan(first);
+
+		} else if (!feed.hasProducer() || !first.isContiguous()) {
+
+			/*
+			 * nobody tells us what changed, or cells aren't positions in the
+			 * slice: read them all.
+			 */
+			read = scan(Slice.of(scale, transition));
+
+		} else {
+
+			/*
+			 * only read the cells reported as changed. We need their offsets
+			 * at this transition: the second time we build the slice and see
+			 * if offsets move by a constant stride, and if they do we never
+			 * need to build one again.
+			 */
+			if (feed.getStep() != step) {
+				throw new KlabValidationException("example.events: the watched state has not been written at step "
+						+ step + " yet: the process computing it must run before the events");
+			}
+			Slice slice = null;
+			if (!strideKnown) {
+				slice = Slice.of(scale, transition);
+				stride = Slice.stride(first, slice);
+				strideKnown = true;
+			} else if (stride == Integer.MIN_VALUE) {
+				slice = Slice.of(scale, transition);
+			}
+			int[] changed = feed.take();
+			long reading = probe.statesBegin();
+			for (int cell : changed) {
+				int offset = slice == null ? first.offsets[cell] + (step - firstStep) * stride : slice.offsets[cell];
+				detector.update(cell, States.getDouble(state, offset));
+			}
+			probe.statesEnd(reading);
+			read = changed.length;
+		}
+
+		for (int cell : detector.drain()) {
+			String name = "crossing_" + step + "_" + cell;
+			ret.put(name, createEvent(cell, transition, name));
+		}
+
+		probe.end(read);
+		if (finished) {
+			feed.close();
+			probe.report(monitor);
+		}
+
+		return ret;
+	}
+
+	/*
+	 * read all cells in the slice; return how many.
+	 */
+	private int scan(Slice slice) {
+		long reading = probe.statesBegin();
+		for (int i = 0; i < slice.size(); i++) {
+			detector.update(slice.spaceOffset(i), States.getDouble(state, slice.offsets[i]));
+		}
+		probe.statesEnd(reading);
+		return slice.size();
+	}
+
+	/**
+	 * Create the event for a crossing. This one creates it in the context
+	 * subject with the observable of our output, in the cell that crossed
+	 * the threshold at the time of the transition.
+	 * 
+	 * @param cell
+	 *            the spatial offset of the cell.
+	 * @param transition
+	 * @param name
+	 * @return the new event
+	 * @throws KlabException
+	 */
+	protected IObservation createEvent(int cell, ITransition transition, String name) throws KlabException {
+		return contextSubject.newEvent(observable, Extents.cell(transition, cell), name);
+	}
 
 	@Override
 	public void initialize(IActiveSubject contextSubject, IResolutionScope context, IModel callingModel,
 			Map<String, IObservable> expectedInputs, Map<String, IObservable> expectedOutputs, IMonitor monitor)
 			throws KlabException {
-		// TODO Auto-generated method stub
-		finished = contextSubject.getScale().isTemporallyDistributed();
+
+		finished = !contextSubject.getScale().isTemporallyDistributed();
+		this.contextSubject = contextSubject;
+		this.monitor = monitor;
+		if (expectedOutputs.size() > 0) {
+			this.observable = expectedOutputs.values().iterator().next();
+		}
 	}
 }
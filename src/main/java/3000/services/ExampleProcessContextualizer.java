@@ -26,7 +26,13 @@
  *******************************************************************************/
 package 3000.services;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
@@ -44,15 +50,37 @@ import org.integratedmodelling.api.modelling.resolution.IResolutionScope;
 import org.integratedmodelling.api.modelling.scheduling.ITransition;
 import org.integratedmodelling.api.monitoring.IMonitor;
 import org.integratedmodelling.api.project.IProject;
-import org.integratedmodelling.api.services.annotations.Prototype;
+import org.integratedmodelling.api.space.IGrid;
 import org.integratedmodelling.api.space.ISpatialExtent;
+import org.integratedmodelling.api.services.annotations.Prototype;
 import org.integratedmodelling.common.space.IGeometricShape;
 import org.integratedmodelling.common.states.States;
 import org.integratedmodelling.common.vocabulary.NS;
 import org.integratedmodelling.exceptions.KlabException;
 import org.integratedmodelling.exceptions.KlabValidationException;
 
-import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Envelope;
+
+import 3000.runtime.CellRandom;
+import 3000.runtime.ChangeFeed;
+import 3000.runtime.Checkpoint;
+import 3000.runtime.CheckpointWriter;
+import 3000.runtime.DeltaCodec;
+import 3000.runtime.DeltaStream;
+import 3000.runtime.GeometryCache;
+import 3000.runtime.HistoryBuffer;
+import 3000.runtime.InputPrefetcher;
+import 3000.runtime.PerturbKernel;
+import 3000.runtime.Precision;
+import 3000.runtime.Probe;
+import 3000.runtime.ResultCache;
+import 3000.runtime.Slice;
+import 3000.runtime.StateBuffer;
+import 3000.runtime.Stencil;
+import 3000.runtime.StripWorkers;
+import 3000.runtime.TileExecutor;
+import 3000.runtime.TileStore;
+import 3000.runtime.ValidMask;
 
 /**
  * This class implements a process contextualizer. The @Prototype annotation,
@@ -87,15 +115,98 @@ import com.vividsolutions.jts.geom.Point;
  * 
  * Here we provide a demonstrational service that will create any outputs by
  * summing the values of any inputs, all of which need to have numeric
- * observers. If a multiplier parameter is given, the process will also multiply
- * the outputs by it. Each transition will add a random value to the output,
- * chosen between zero and the multiplier (or 1 if not passed).
+ * observers. Each transition will add a random value between -50 and 50 to
+ * the output, clamp it at zero and, if a multiplier parameter is given,
+ * multiply the result by it.
  * 
  * It's a process model so the semantics is for the "value summing" process;
  * this example could also be implemented with a quality model using a
  * {@link IStateContextualizer}. Process models are of course used for
  * observables that describe meaningful processes.
  * 
+ * The loops over space are split into tiles that can be computed in parallel:
+ * pass threads = 0 to use all available processors, or the number of threads
+ * wanted. The default (1) computes all tiles sequentially, with the same
+ * results. The random values are a function of the cell, the timestep and the
+ * output, so passing a seed makes runs reproducible.
+ * 
+ * Each step perturbs the value at the previous step, so only the current and
+ * previous values of each output are kept in memory by default. The smooth = n
+ * option changes the model: each step perturbs instead the mean of the
+ * previous value and the n before it (those there are, in the first steps),
+ * which smooths the random walk. The n older steps are then kept in a
+ * {@link HistoryBuffer} and read back at each transition: in memory, or with
+ * spill = true all but the most recent on disk, in a file of n - 1 steps.
+ * They are stored as double unless precision = "float" (half the memory and
+ * disk) or "short" (16 bits scaled to the range of each step, a quarter); as
+ * the values read back are the stored ones, this changes the results a
+ * little, by less than the perturbations computed here. Smoothing needs all
+ * values in memory and every step computed in turn, so it can't be used out
+ * of core, with checkpoints (which only save the last step) or with temporal
+ * blocking, which is turned off.
+ * 
+ * Long runs can be made to survive a crash by passing checkpoint = n: every n
+ * steps, the outputs are saved (in the background) to a file named after a
+ * hash of the cells, the outputs, the parameters and the input values. A
+ * later run with the same ones will find the file at initialize() and skip
+ * straight to the step it was saved at, then carry on from there with the
+ * same random numbers it would have used. The file is removed when the last
+ * transition is computed. Only the last step is saved, so the steps skipped
+ * on resuming get no values in the output states: a resumed run has its
+ * initial values and those from the checkpoint on, and no-data in between.
+ * 
+ * With a seed, the initial values only depend on the scale, the inputs, the
+ * parameters and the seed, so they are kept in a {@link ResultCache} and
+ * reused when the same model is run again over the same inputs. Pass cache =
+ * false to always compute them.
+ * 
+ * Without inputs to compute(), each step only depends on the previous one, so
+ * with block = k we compute k steps for each tile before moving to the next
+ * tile, while its values are still in the processor cache, instead of
+ * sweeping the whole grid at each step. The following k - 1 transitions only
+ * write the values already computed into the states.
+ * 
+ * With nodata = true, the cells where any input to compute() has no data at a
+ * transition get no data in the outputs from then on; this means reading all
+ * the inputs at each transition, which we don't do otherwise. With prefetch =
+ * true as well, the inputs for the next transition are read in the
+ * background while we compute the current one (see {@link InputPrefetcher});
+ * only use it when the inputs are there before their transition is computed,
+ * e.g. when they come from data.
+ * 
+ * Grids too large for the heap can be run out of core by passing memory = the
+ * megabytes we may use: if the buffers of all outputs don't fit, they are
+ * kept in memory-mapped files (see {@link TileStore}) and each transition
+ * reads, computes and writes back one tile at a time, with tiles sized so
+ * that all threads together stay within the budget. Only the offsets of the
+ * cells at initialization and the no-data mask stay in memory: as long as
+ * each transition is the same cells at a constant distance in the scale, we
+ * don't collect its offsets but shift those. Out of core, there is no
+ * smoothing, checkpointing, caching or temporal blocking, and the outputs can't
+ * be streamed to a remote engine.
+ * 
+ * On a grid, neighborhood = 4 or 8 makes each step a diffusion: the new value
+ * of a cell is the perturbed mean of its previous value and those of its
+ * neighbors that have data, computed by a {@link Stencil} in blocks of rows.
+ * As each step then depends on the neighbors of each tile, this turns off
+ * temporal blocking, and out of core it needs workers (see below).
+ * 
+ * On a grid, workers = n runs the transitions in n separate JVMs (see
+ * {@link StripWorkers}), each computing a strip of rows, so that a run can
+ * use more memory than the heap of the engine and does not load its garbage
+ * collector. This implies running out of core: the values are in files that
+ * all processes map, and we only read them back to set the states.
+ * 
+ * When the prototype is published and the outputs go to a remote engine, the
+ * publishing layer can install a {@link DeltaStream} factory for it, which
+ * gives each run its own sink: we then send a keyframe of each initial state
+ * and, at each transition, only the cells that changed, which the other end
+ * applies to its copy of the states. After resuming from a checkpoint we send
+ * keyframes again, as the other end has nothing to apply changes to.
+ * 
+ * Running with -Dexample.instrument=true times each transition (see
+ * {@link Probe}) and reports a summary to the monitor when we're done.
+ * 
  * @author ferdinando.villa
  *
  */
@@ -105,14 +216,118 @@ import com.vividsolutions.jts.geom.Point;
 		// leave published to false or this will be advertised on all servers of the
 		// network
 		published = false, 
-		args = { "? m|multiplier", Prototype.INT })
+		args = { "? m|multiplier", Prototype.INT, "? t|threads", Prototype.INT, "? s|seed", Prototype.INT,
+				"? sm|smooth", Prototype.INT, "? sp|spill", Prototype.BOOLEAN, "? c|checkpoint", Prototype.INT,
+				"? ca|cache", Prototype.BOOLEAN,
+				"? b|block", Prototype.INT,
+				"? pr|precision", Prototype.TEXT,
+				"? mem|memory", Prototype.INT,
+				"? n|neighborhood", Prototype.INT,
+				"? w|workers", Prototype.INT,
+				"? nd|nodata", Prototype.BOOLEAN,
+				"? pf|prefetch", Prototype.BOOLEAN })
 public class ExampleProcessContextualizer implements IProcessContextualizer {
 
 	boolean canDispose = false;
 	int multiplier = 1;
+	int threads = 1;
+	int smooth = 0;
+	boolean spill = false;
+	Precision precision = Precision.DOUBLE;
+	int checkpoint = 0;
+	boolean cache = true;
+	int block = 1;
+	int memory = 0;
+	int neighborhood = 0;
+	int workers = 0;
+	boolean nodata = false;
+	boolean prefetch = false;
+	Long seed = null;
+	int step = 0;
+	CellRandom random = null;
 	IScale scale = null;
+	TileExecutor executor = null;
+
+	/*
+	 * the lon/lat of each cell, built by geometry() the first time it's
+	 * needed, which is never on a grid.
+	 */
+	GeometryCache geometry = null;
+
+	/*
+	 * the cells that have data, or null if all do.
+	 */
+	ValidMask mask = null;
 	Map<String, IObservation> outputStates = new HashMap<>();
 
+	/*
+	 * primitive current/previous values for each output, in the same order as
+	 * they were created. The states in outputStates only get written in bulk at
+	 * the end of each initialize() or compute().
+	 */
+	Map<String, StateBuffer> buffers = new LinkedHashMap<>();
+
+	/*
+	 * where we save checkpoints if asked to, and the one we are resuming
+	 * from until compute() reaches its step.
+	 */
+	CheckpointWriter checkpoints = null;
+	Checkpoint resume = null;
+
+	IMonitor monitor = null;
+	Probe probe = new Probe("example.p");
+
+	/*
+	 * where to send the changes to the outputs of this run, if we're serving
+	 * a remote engine.
+	 */
+	DeltaStream.Sink sink = null;
+
+	/*
+	 * with temporal blocking, the values for the steps from blockStart to
+	 * blockStart + blockLength - 1, per output, and the arrays we can reuse
+	 * for the next block.
+	 */
+	double[][][] ahead = null;
+	List<ArrayDeque<double[]>> pools = new ArrayList<>();
+	int blockStart = 0;
+	int blockLength = 0;
+
+	/*
+	 * out of core, the previous and current values of each output are in
+	 * these instead of the buffers.
+	 */
+	boolean outOfCore = false;
+	Map<String, TileStore[]> tiles = new LinkedHashMap<>();
+
+	/*
+	 * out of core, the cells of the initialization slice and, once we have
+	 * seen the first transition, how far the offsets move at each step
+	 * (Integer.MIN_VALUE if they don't move the same for all cells).
+	 */
+	Slice first = null;
+	int stride = Integer.MIN_VALUE;
+	boolean strideKnown = false;
+
+	/*
+	 * the worker processes computing the tiles, if we were asked for any.
+	 */
+	StripWorkers strips = null;
+
+	InputPrefetcher prefetcher = null;
+
+	/*
+	 * the neighborhood, if we were asked for one.
+	 */
+	Stencil stencil = null;
+
+	/*
+	 * when smoothing, the mean of the steps we perturb for each output, and
+	 * where we read each back step into.
+	 */
+	double[][] window = null;
+	double[] back = null;
+
 	@Override
 	public boolean canDispose() {
 		return canDispose;
@@ -149,7 +364,93 @@ public class ExampleProcessContextualizer implements IProcessContextualizer {
 			IResolutionScope resolutionContext, Map<String, IObservable> expectedInputs,
 			Map<String, IObservable> expectedOutputs, IMonitor monitor) throws KlabException {
 
+		/*
+		 * if anything is wrong, let go of the threads, files and stream opened
+		 * so far: nobody will call compute() to get to dispose().
+		 */
+		try {
+			return start(process, context, expectedInputs, expectedOutputs, monitor);
+		} catch (KlabException | RuntimeException e) {
+			try {
+				release();
+			} catch (KlabException r) {
+				e.addSuppressed(r);
+			}
+			throw e;
+		}
+	}
+
+	private Map<String, IObservation> start(IActiveProcess process, IActiveDirectObservation context,
+			Map<String, IObservable> expectedInputs, Map<String, IObservable> expectedOutputs, IMonitor monitor)
+			throws KlabException {
+
+		probe.begin();
 		this.scale = process.getScale();
+		this.monitor = monitor;
+		this.executor = new TileExecutor(threads);
+		this.sink = DeltaStream.open("example.p", context);
+		this.prefetcher = new InputPrefetcher(prefetch);
+
+		/*
+		 * collect the offsets of the initialization slice once; all outputs
+		 * are computed over the same cells.
+		 */
+		final Slice slice = Slice.of(scale, null);
+
+		/*
+		 * see if we need to run out of core: only on grids, and only if what
+		 * we hold for the whole grid doesn't fit in the memory we've been
+		 * given: two buffers per output, the offsets of the initialization
+		 * slice and of the one of a transition, and the mask of the cells
+		 * with data. If so, tiles are sized so that each thread can hold the
+		 * previous values, the new values and the random deltas of a tile.
+		 * Workers always share the values through files.
+		 */
+		long budget = memory * 1024L * 1024L;
+		boolean onGrid = scale.getSpace() != null && scale.getSpace().getGrid() != null;
+		if (workers > 0 && !onGrid) {
+			throw new KlabValidationException("example.process: workers require a grid");
+		}
+		long inMemory = 2L * expectedOutputs.size() * Slice.cells(scale) * 8 + 2 * slice.bytes()
+				+ ValidMask.bytes(Slice.cells(scale));
+		if (workers > 0 || (memory > 0 && onGrid && inMemory > budget)) {
+			outOfCore = true;
+			if (memory > 0) {
+				executor = TileExecutor.withBudget(threads, budget, 3 * 8);
+			}
+		}
+
+		/*
+		 * the deltas are computed from the buffers, which we don't have out of
+		 * core.
+		 */
+		if (outOfCore && sink != null) {
+			sink.close();
+			sink = null;
+			throw new KlabValidationException(
+					"example.process: outputs can't be streamed to a remote engine out of core");
+		}
+
+		/*
+		 * a neighborhood needs a grid, and all the previous values in memory
+		 * unless the workers compute it.
+		 */
+		if (smooth > 0 && outOfCore) {
+			throw new KlabValidationException("example.process: smooth requires the outputs to fit in memory");
+		}
+		if (neighborhood > 0) {
+			IGrid grid = scale.getSpace() == null ? null : scale.getSpace().getGrid();
+			if (grid == null || (outOfCore && workers == 0)) {
+				throw new KlabValidationException(
+						"example.process: neighborhood requires a grid that fits in memory, or workers");
+			}
+			if (neighborhood != 4 && neighborhood != 8) {
+				throw new KlabValidationException("example.process: neighborhood must be 4 or 8");
+			}
+			if (!outOfCore) {
+				stencil = new Stencil(grid, neighborhood, Stencil.Boundary.NODATA, threads);
+			}
+		}
 
 		/**
 		 * Standard way of proceeding: we can dispose of the object at this
@@ -206,14 +507,81 @@ public class ExampleProcessContextualizer implements IProcessContextualizer {
 		 * getStates() - if getState(IObservable) is called, non-existing states
 		 * would be created.
 		 */
-		IState inputState = null;
-		if (context.getStates().size() > 0) {
-			/*
-			 * use the first dependency just to get some numbers. In a real-life
-			 * contextualizer, we would most likely know the expected states by
-			 * observable.
-			 */
-			inputState = context.getStates().iterator().next();
+		final IState inputState = context.getStates().size() > 0
+				/*
+				 * use the first dependency just to get some numbers. In a
+				 * real-life contextualizer, we would most likely know the
+				 * expected states by observable.
+				 */
+				? context.getStates().iterator().next()
+				: null;
+
+		if (outOfCore && !slice.isContiguous()) {
+			throw new KlabValidationException("example.process: cannot run out of core on this grid");
+		}
+		if (outOfCore) {
+			first = slice;
+		}
+		if (stencil != null && !slice.isContiguous()) {
+			throw new KlabValidationException("example.process: cannot compute neighborhoods on this grid");
+		}
+
+		/*
+		 * the initial values and the run only depend on the cells, the inputs
+		 * and the parameters, so a hash of all of these (the geometry of the
+		 * cells standing for the scale) keys both the cached initial values
+		 * and the checkpoints.
+		 */
+		String setup = null;
+		if (!outOfCore && ((cache && seed != null) || (checkpoint > 0 && !canDispose))) {
+			setup = setup(expectedOutputs.keySet(), inputState, slice);
+		}
+
+		/*
+		 * if we checkpoint, see if a previous run with the same setup has left
+		 * one to resume from. The outputs must be the same and of the same
+		 * size, or we start from scratch.
+		 */
+		if (checkpoint > 0 && !canDispose && !outOfCore) {
+			checkpoints = new CheckpointWriter(CheckpointWriter.defaultDirectory(), setup);
+			resume = checkpoints.latest();
+			if (resume != null && !resume.values.keySet().equals(expectedOutputs.keySet())) {
+				resume = null;
+			}
+			for (double[] values : resume == null ? new ArrayList<double[]>() : resume.values.values()) {
+				if (values.length != Slice.cells(scale)) {
+					resume = null;
+					break;
+				}
+			}
+			if (resume != null && monitor != null) {
+				monitor.info("resuming from checkpoint at step " + resume.step, null);
+			}
+		}
+
+		/*
+		 * all random numbers come from here. Without a seed parameter, each
+		 * run gets a different one, unless we resume from a checkpoint, which
+		 * remembers it.
+		 */
+		if (resume != null) {
+			this.random = new CellRandom(resume.parameters.get("seed"));
+		} else {
+			this.random = new CellRandom(seed == null ? new Random().nextLong() : seed);
+		}
+
+		/*
+		 * if we have a seed, see if the initial values have been computed
+		 * already for the same setup.
+		 */
+		String cacheKey = null;
+		Map<String, double[]> cached = null;
+		if (cache && seed != null && !outOfCore) {
+			cacheKey = setup;
+			cached = ResultCache.get(cacheKey);
+			if (cached != null && !cached.keySet().equals(expectedOutputs.keySet())) {
+				cached = null;
+			}
 		}
 
 		/*
@@ -239,9 +607,19 @@ public class ExampleProcessContextualizer implements IProcessContextualizer {
 			 * allowed to make. At the moment the system automatically keeps
 			 * full history for outputs, and assumes that inputs don't need to.
 			 * Later we will be able to use a parameter to getState() to
-			 * indicate the lenght of the history we need.
+			 * indicate the lenght of the history we need, which for us is the
+			 * previous step, plus n more with smooth = n. Our own buffers keep
+			 * the previous step in memory, and a history of the n others in
+			 * memory or spilled to disk; older steps are dropped.
 			 */
 			IState outState = context.getState(obs);
+			final int stream = buffers.size() + tiles.size();
+
+			if (outOfCore) {
+				initializeTiles(out, outState, inputState, slice, stream);
+				outputStates.put(out, outState);
+				continue;
+			}
 
 			/**
 			 * To access all the states within a transition (e.g. all points in
@@ -250,40 +628,65 @@ public class ExampleProcessContextualizer implements IProcessContextualizer {
 			 * "locks" one or more dimensions and returns an iterator for the
 			 * states along the others. We pass a null here, which is understood
 			 * as the initialization transition. There are locators for space.
+			 * Here we have done it once already, collecting the offsets into
+			 * the slice, and we write the values into a primitive buffer indexed
+			 * by spatial offset, one tile of the slice at a time. The random
+			 * numbers for each cell only depend on the seed, the cell, the step
+			 * (0 for initialization) and the output, so tiles can run in any
+			 * order.
 			 */
-			Random random = new Random();
-			for (int n : scale.getIndex((IScale.Locator) null)) {
+			StateBuffer buffer = new StateBuffer(Slice.cells(scale));
+			if (smooth > 0) {
+				buffer.setHistory(spill ? new HistoryBuffer(Slice.cells(scale), 1, smooth - 1, precision)
+						: new HistoryBuffer(Slice.cells(scale), smooth, 0, precision));
+			}
+			final double[] values = buffer.current();
+			final double[] known = cached == null ? null : cached.get(out);
+			if (known != null && known.length == values.length) {
+				System.arraycopy(known, 0, values, 0, values.length);
+			} else {
+				executor.run(slice.size(), (tile, from, to) -> {
 
-				/*
-				 * we set the output values to a scrambled version of the first
-				 * input if the model has inputs, or to a number between 0 and
-				 * 500 if not.
-				 */
-				double value = 0;
-				if (inputState != null) {
+					for (int i = from; i < to; i++) {
 
-					/**
-					 * use States.getDouble() to keep state access simple. It
-					 * can be also passed a transition so that the "current"
-					 * value is retrieved; this one retrieves the initial value.
-					 */
-					double m = random.nextDouble() * 100.0 - 50.0;
-					value = States.getDouble(inputState, n);
-					if (!Double.isNaN(value)) {
-						value += m;
-						if (value < 0) {
-							value = 0;
+						int n = slice.offsets[i];
+						int spaceOffset = slice.spaceOffset(i);
+
+						/*
+						 * once the first output has told us where the no-data
+						 * is, don't bother with those cells.
+						 */
+						if (mask != null && !mask.isValid(spaceOffset)) {
+							values[spaceOffset] = Double.NaN;
+							continue;
 						}
+
+						values[spaceOffset] = initial(inputState, n, spaceOffset, stream);
 					}
-				} else {
-					value = random.nextDouble() * 500.0;
-				}
+				});
+			}
 
-				/**
-				 * Set the value in the state using methods in the utility class
-				 * States.
-				 */
-				States.set(outState, value, n);
+			/**
+			 * Set the values in the state using methods in the utility class
+			 * States. The buffer does it for all cells at once, and keeps the
+			 * values around so that compute() won't need to read them back.
+			 */
+			long writing = probe.statesBegin();
+			buffer.flush(outState, slice);
+			probe.statesEnd(writing);
+			buffers.put(out, buffer);
+
+			/*
+			 * the cells where the input has no data will have no data in all
+			 * outputs, forever. We build a mask of the others from the first
+			 * output and use it to skip the no-data cells from now on. If we
+			 * have no input, all cells are valid and we don't need one.
+			 */
+			if (inputState != null && mask == null) {
+				mask = ValidMask.of(values);
+			}
+			if (mask != null) {
+				buffer.clear(mask);
 			}
 
 			/**
@@ -295,6 +698,23 @@ public class ExampleProcessContextualizer implements IProcessContextualizer {
 
 		}
 
+		initialized(cached == null ? cacheKey : null);
+
+		/*
+		 * start the workers now that the initial values are in the files.
+		 */
+		if (workers > 0 && !canDispose) {
+			IGrid grid = scale.getSpace().getGrid();
+			strips = new StripWorkers(workers, grid.getXCells(), grid.getYCells(), random.getSeed(), neighborhood,
+					multiplier, new ArrayList<>(tiles.values()));
+		}
+
+		probe.end(slice.size());
+
+		if (canDispose) {
+			dispose();
+		}
+
 		/**
 		 * the software will take care of setting these inputs in the context or
 		 * streaming them back to the calling engine if we're a remote service.
@@ -320,26 +740,509 @@ public class ExampleProcessContextualizer implements IProcessContextualizer {
 		 * around.
 		 */
 		canDispose = transition.isLast();
+		probe.begin();
+
+		/*
+		 * if we are resuming from a checkpoint, there is nothing to compute
+		 * until we get to its step, where we set the values saved in it. The
+		 * states are not written before then, as we have nothing to write.
+		 */
+		if (resume != null) {
+			if (++step == resume.step) {
+				Slice slice = Slice.of(scale, transition);
+				for (Map.Entry<String, StateBuffer> entry : buffers.entrySet()) {
+					IState state = (IState) outputStates.get(entry.getKey());
+					entry.getValue().restore(step, resume.values.get(entry.getKey()));
+					entry.getValue().flush(state, slice, ChangeFeed.get(state));
+					if (sink != null) {
+						sink.send(entry.getKey(), DeltaCodec.keyframe(step, entry.getValue().current()));
+					}
+				}
+				resume = null;
+			}
+			probe.end(0);
+			if (canDispose) {
+				dispose();
+			}
+			ret.putAll(outputStates);
+			return ret;
+		}
 
 		/**
 		 * We will use the value at the previous transition to modify it. The
 		 * index we take from the scale.getIndex() iterator is the full offset
-		 * that considers all extents, so we will need to pass the transition to
-		 * access the value. Because transition.previous() builds a new
-		 * transition, we do it once outside the loop.
+		 * that considers all extents, so we would need to pass the previous
+		 * transition to States.getDouble() to access it. Instead, the buffers
+		 * still hold the values we computed last time: swapping them makes
+		 * those the previous values, indexed by spatial offset, and gives us
+		 * an array to write the new ones into.
+		 */
+		final int step = ++this.step;
+		final Slice slice = needsSlice(inputs) ? Slice.of(scale, transition) : null;
+		final int size = slice == null ? first.size() : slice.size();
+
+		/*
+		 * if input no-data masks the outputs, the values of the inputs at this
+		 * transition, one column per input indexed by position in the slice.
 		 */
-		final ITransition previous = transition.previous();
-		Random random = new Random();
+		double[][] columns = null;
+		if (nodata && inputs != null && !inputs.isEmpty()) {
+			long reading = probe.statesBegin();
+			columns = prefetcher.read(inputs, slice, !canDispose);
+			probe.statesEnd(reading);
+		}
+
+		if (outOfCore) {
+
+			/*
+			 * tile by tile, from and to the files; this also sets the states.
+			 * Once we know the stride, the offsets are those of the first slice
+			 * shifted by it, computed as they are written.
+			 */
+			if (slice == null) {
+				computeTiles(first, stride * step, step, columns);
+			} else {
+				if (!strideKnown) {
+					stride = Slice.stride(first, slice);
+					strideKnown = true;
+				}
+				computeTiles(slice, 0, step, columns);
+			}
+
+		} else if (block > 1 && stencil == null && smooth == 0 && (inputs == null || inputs.isEmpty())) {
+
+			/*
+			 * temporal blocking: compute the next block of steps if we've used
+			 * up the last one, then take the values for this step from it.
+			 */
+			if (step >= blockStart + blockLength) {
+				computeBlock(slice, step);
+			}
+			int k = 0;
+			for (StateBuffer buffer : buffers.values()) {
+				pools.get(k).push(buffer.swap(ahead[k][step - blockStart]));
+				k++;
+			}
+
+		} else {
+
+			blockLength = 0;
+			final double[][] previous = new double[buffers.size()][];
+			final double[][] current = new double[buffers.size()][];
+			int k = 0;
+			for (StateBuffer buffer : buffers.values()) {
+				buffer.swap();
+				previous[k] = smooth > 0 ? window(buffer, step, k) : buffer.previous();
+				current[k] = buffer.current();
+				k++;
+			}
+
+			/**
+			 * Simply perturb the output states. Use the iterator for the
+			 * spatial dimension in the time slice identified by the transition
+			 * (collected in the slice above). This returns the actual offsets
+			 * in the full scale, which we can pass to States.set() and get() to
+			 * ensure proper addressing, along with the spatial offset we use
+			 * for the buffers. The slice is processed in tiles, possibly in
+			 * parallel; each tile only writes the cells in its own range.
+			 */
+			if (stencil == null) {
+				executor.run(slice.size(), (tile, from, to) -> perturb(slice, step, previous, current, from, to));
+			} else {
+				for (int o = 0; o < current.length; o++) {
+					final int stream = o;
+					stencil.run(previous[o], current[o], (b, y0, y1, dst) -> diffuse(b, step, stream, y0, y1, dst));
+				}
+			}
+
+			if (columns != null) {
+				for (int i = 0; i < slice.size(); i++) {
+					if (missing(columns, i)) {
+						for (double[] values : current) {
+							values[slice.spaceOffset(i)] = Double.NaN;
+						}
+					}
+				}
+			}
+		}
 
 		/**
-		 * Simply perturb the output states. Use the iterator for the spatial
-		 * dimension in the time slice identified by the transition. This will
-		 * return the actual offsets in the full scale, which we can pass to
-		 * States.set() and get() to ensure proper addressing. Previous states
-		 * (including the one we're modifying) are accessed by passing the
-		 * previous transition.
+		 * To set the current state values, the buffers use States.set. If
+		 * anyone (e.g. an event instantiator) is watching an output for
+		 * changes, the buffer also tells them which cells have changed, so
+		 * they don't need to look at the others.
+		 */
+		long writing = probe.statesBegin();
+		for (Map.Entry<String, StateBuffer> entry : buffers.entrySet()) {
+			IState state = (IState) outputStates.get(entry.getKey());
+			entry.getValue().flush(state, slice, ChangeFeed.get(state));
+		}
+		probe.statesEnd(writing);
+
+		/*
+		 * send what changed since the previous transition, if anyone wants
+		 * it.
+		 */
+		if (sink != null) {
+			for (Map.Entry<String, StateBuffer> entry : buffers.entrySet()) {
+				sink.send(entry.getKey(), DeltaCodec.encode(step, entry.getValue().previous(),
+						entry.getValue().current(), DeltaCodec.XOR));
+			}
+		}
+
+		/*
+		 * save the buffers every so often if asked to. The writer copies the
+		 * values and writes them in the background while we carry on.
 		 */
-		for (int n : scale.getIndex(transition)) {
+		if (checkpoints != null && !canDispose && step % checkpoint == 0) {
+			Map<String, Long> parameters = new HashMap<>();
+			parameters.put("seed", random.getSeed());
+			Map<String, double[]> values = new LinkedHashMap<>();
+			for (Map.Entry<String, StateBuffer> entry : buffers.entrySet()) {
+				values.put(entry.getKey(), entry.getValue().current());
+			}
+			checkpoints.save(step, parameters, values);
+		}
+
+		probe.end(size);
+
+		if (canDispose) {
+			dispose();
+		}
+
+		ret.putAll(outputStates);
+
+		return ret;
+	}
+
+	/*
+	 * hash everything the values of a run depend on: the cells, the outputs,
+	 * the parameters that change the numbers and the values of the input in
+	 * the initialization slice. A run without a seed hashes to the same key
+	 * whatever seed it draws, so that it can find its checkpoints, which
+	 * remember the seed.
+	 */
+	private String setup(Collection<String> outputs, IState inputState, Slice slice) {
+		ResultCache.Digest digest = new ResultCache.Digest().add("example.p").add(scale.getMultiplicity())
+				.add(Slice.cells(scale)).add(outputs).add(multiplier).add(seed).add(smooth).add(precision)
+				.add(neighborhood).add(nodata);
+		ISpatialExtent space = scale.getSpace();
+		if (space != null && space.getGrid() != null) {
+			/*
+			 * a grid is fixed by its size and its corner cells, so we don't
+			 * need a polygon for each cell.
+			 */
+			IGrid grid = space.getGrid();
+			digest.add(grid.getXCells()).add(grid.getYCells());
+			add(digest, space.getExtent(0));
+			add(digest, space.getExtent(grid.getXCells() * grid.getYCells() - 1));
+		} else if (space != null) {
+			digest.add(geometry().lon).add(geometry().lat);
+		}
+		if (inputState != null) {
+			long reading = probe.statesBegin();
+			for (int i = 0; i < slice.size(); i++) {
+				digest.add(States.getDouble(inputState, slice.offsets[i]));
+			}
+			probe.statesEnd(reading);
+		}
+		return digest.hex();
+	}
+
+	private static void add(ResultCache.Digest digest, ISpatialExtent cell) {
+		Envelope envelope = ((IGeometricShape) cell).getStandardizedGeometry().getEnvelopeInternal();
+		digest.add(envelope.getMinX()).add(envelope.getMinY()).add(envelope.getMaxX()).add(envelope.getMaxY());
+	}
+
+	/*
+	 * build (or get, if another contextualizer has built it already) the
+	 * lon/lat of each cell, so that we don't need to ask the spatial extent
+	 * for a polygon each time. Only for extents that are not grids: a grid
+	 * cell is known by its offsets.
+	 */
+	private GeometryCache geometry() {
+		if (geometry == null) {
+			geometry = GeometryCache.get(scale.getSpace());
+		}
+		return geometry;
+	}
+
+	/*
+	 * once the initial values are final: the remote end starts with nothing,
+	 * so it gets a keyframe, and the cache gets them if they weren't there.
+	 */
+	private void initialized(String cacheKey) {
+
+		if (sink != null) {
+			for (Map.Entry<String, StateBuffer> entry : buffers.entrySet()) {
+				sink.send(entry.getKey(), DeltaCodec.keyframe(0, entry.getValue().current()));
+			}
+		}
+
+		if (cacheKey != null) {
+			Map<String, double[]> values = new LinkedHashMap<>();
+			for (Map.Entry<String, StateBuffer> entry : buffers.entrySet()) {
+				values.put(entry.getKey(), entry.getValue().current());
+			}
+			ResultCache.put(cacheKey, values);
+		}
+	}
+
+	/*
+	 * the initial value of one cell.
+	 */
+	private double initial(IState inputState, int n, int spaceOffset, int stream) {
+
+		/*
+		 * we set the output values to a scrambled version of the first input if
+		 * the model has inputs, or to a number between 0 and 500 if not.
+		 */
+		double value = 0;
+		if (inputState != null) {
+
+			/**
+			 * use States.getDouble() to keep state access simple. It can be also
+			 * passed a transition so that the "current" value is retrieved; this
+			 * one retrieves the initial value.
+			 */
+			double m = random.uniform(spaceOffset, 0, stream, -50.0, 50.0);
+			value = States.getDouble(inputState, n);
+			if (!Double.isNaN(value)) {
+				value += m;
+				if (value < 0) {
+					value = 0;
+				}
+			}
+		} else {
+			value = random.uniform(spaceOffset, 0, stream, 0.0, 500.0);
+		}
+		return value;
+	}
+
+	/*
+	 * true if we have to collect the offsets of the next transition: always in
+	 * memory, and out of core until we know they are those of the first slice
+	 * at a constant stride, or if the inputs are read, as they are read
+	 * through a slice.
+	 */
+	private boolean needsSlice(Map<String, IState> inputs) {
+		return !outOfCore || !strideKnown || stride == Integer.MIN_VALUE
+				|| (nodata && inputs != null && !inputs.isEmpty());
+	}
+
+	/*
+	 * out of core initialization of one output: each tile is computed into an
+	 * array, written to the file and set in the state. The no-data mask is
+	 * built from the state once the first output is done.
+	 */
+	private void initializeTiles(String out, final IState state, final IState inputState, final Slice slice,
+			final int stream) throws KlabException {
+
+		final TileStore[] pair = { new TileStore(Slice.cells(scale)), new TileStore(Slice.cells(scale)) };
+		tiles.put(out, pair);
+
+		executor.run(slice.size(), (tile, from, to) -> {
+			double[] values = new double[to - from];
+			for (int i = from; i < to; i++) {
+				values[i - from] = mask != null && !mask.isValid(i) ? Double.NaN
+						: initial(inputState, slice.offsets[i], i, stream);
+			}
+			pair[1].write(from, to, values);
+			write(state, slice, 0, values, from, to);
+		});
+
+		if (inputState != null && mask == null) {
+			mask = ValidMask.of(state, slice, Slice.cells(scale));
+		}
+	}
+
+	/*
+	 * out of core transition: for each tile and output, read the previous
+	 * values from the file, compute the new ones, write them back and set them
+	 * in the state. Positions are cells, as we only do this on grids. With
+	 * workers, they compute the new values and we only set them in the states.
+	 * The offsets in the states are those of the slice plus shift.
+	 */
+	private void computeTiles(final Slice slice, final int shift, final int step, final double[][] columns)
+			throws KlabException {
+
+		final TileStore[][] pairs = tiles.values().toArray(new TileStore[tiles.size()][]);
+		final IState[] states = new IState[pairs.length];
+		int o = 0;
+		for (String out : tiles.keySet()) {
+			TileStore tmp = pairs[o][0];
+			pairs[o][0] = pairs[o][1];
+			pairs[o][1] = tmp;
+			states[o++] = (IState) outputStates.get(out);
+		}
+
+		if (strips != null) {
+			strips.step(step);
+			executor.run(slice.size(), (tile, from, to) -> {
+				final double[] current = new double[to - from];
+				for (int k = 0; k < pairs.length; k++) {
+					pairs[k][1].read(from, to, current);
+					if (columns != null && missing(columns, current, from, to)) {
+						pairs[k][1].write(from, to, current);
+					}
+					write(states[k], slice, shift, current, from, to);
+				}
+			});
+			return;
+		}
+
+		executor.run(slice.size(), (tile, from, to) -> {
+			final double[] previous = new double[to - from];
+			final double[] current = new double[to - from];
+			final double[] deltas = PerturbKernel.scratch(to - from);
+			for (int k = 0; k < pairs.length; k++) {
+				final int stream = k;
+				pairs[k][0].read(from, to, previous);
+				if (mask == null) {
+					perturbTile(step, stream, previous, current, deltas, from, from, to);
+				} else {
+					Arrays.fill(current, Double.NaN);
+					mask.runs(from, to,
+							(start, end) -> perturbTile(step, stream, previous, current, deltas, from, start, end));
+				}
+				if (columns != null) {
+					missing(columns, current, from, to);
+				}
+				pairs[k][1].write(from, to, current);
+				write(states[k], slice, shift, current, from, to);
+			}
+		});
+	}
+
+	/*
+	 * true if any input has no data at position i.
+	 */
+	private static boolean missing(double[][] columns, int i) {
+		for (double[] column : columns) {
+			if (Double.isNaN(column[i])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * set no data in the values of a tile of positions [from, to) where any
+	 * input has none, and tell if there were any.
+	 */
+	private static boolean missing(double[][] columns, double[] values, int from, int to) {
+		boolean ret = false;
+		for (int i = from; i < to; i++) {
+			if (missing(columns, i) && !Double.isNaN(values[i - from])) {
+				values[i - from] = Double.NaN;
+				ret = true;
+			}
+		}
+		return ret;
+	}
+
+	/*
+	 * the kernels over cells [from, to) of a tile whose arrays start at cell
+	 * base.
+	 */
+	private void perturbTile(int step, int stream, double[] previous, double[] current, double[] deltas, int base,
+			int from, int to) {
+		PerturbKernel.deltas(random, step, stream, -50.0, 50.0, deltas, from, to);
+		PerturbKernel.perturb(previous, deltas, current, from - base, to - base, multiplier);
+	}
+
+	/*
+	 * set the values of a tile in a state, at the offsets of the slice plus
+	 * shift. We don't know if states take concurrent writes.
+	 */
+	private void write(IState state, Slice slice, int shift, double[] values, int from, int to) {
+		long writing = probe.statesBegin();
+		synchronized (state) {
+			for (int i = from; i < to; i++) {
+				States.set(state, values[i - from], slice.offsets[i] + shift);
+			}
+		}
+		probe.statesEnd(writing);
+	}
+
+	/*
+	 * compute up to block steps starting at start, all steps for each tile
+	 * before the next tile. The cells are the same at all steps, so the slice
+	 * of the first serves for all.
+	 */
+	private void computeBlock(final Slice slice, final int start) {
+
+		long steps = scale.getTime() == null ? 1 : scale.getTime().getMultiplicity();
+		final int length = (int) Math.max(1, Math.min(block, steps - start));
+		final int outputs = buffers.size();
+		if (ahead == null) {
+			ahead = new double[outputs][block][];
+			for (int o = 0; o < outputs; o++) {
+				pools.add(new ArrayDeque<double[]>());
+			}
+		}
+
+		/*
+		 * chain[k] holds the values at step start + k - 1 for each output:
+		 * the current buffer, then the arrays for the block.
+		 */
+		final double[][][] chain = new double[length + 1][outputs][];
+		int o = 0;
+		for (StateBuffer buffer : buffers.values()) {
+			chain[0][o] = buffer.current();
+			for (int k = 0; k < length; k++) {
+				double[] values = pools.get(o).poll();
+				if (values == null) {
+					values = new double[Slice.cells(scale)];
+					Arrays.fill(values, Double.NaN);
+				}
+				chain[k + 1][o] = ahead[o][k] = values;
+			}
+			o++;
+		}
+
+		executor.run(slice.size(), (tile, from, to) -> {
+			for (int k = 0; k < length; k++) {
+				perturb(slice, start + k, chain[k], chain[k + 1], from, to);
+			}
+		});
+
+		blockStart = start;
+		blockLength = length;
+	}
+
+	/*
+	 * compute the values for the cells in positions [from, to) of the slice.
+	 */
+	private void perturb(Slice slice, int step, double[][] previous, double[][] current, int from, int to) {
+
+		/*
+		 * on a regular grid, positions are cells and we can run the array
+		 * kernels on whole ranges, one output at a time: first all the random
+		 * deltas, then the arithmetic.
+		 */
+		if (slice.isContiguous()) {
+			final double[] deltas = PerturbKernel.scratch(to - from);
+			for (int o = 0; o < current.length; o++) {
+				final int stream = o;
+				if (mask == null) {
+					perturb(step, stream, previous[o], current[o], deltas, from, to);
+				} else {
+					/*
+					 * only the runs of cells with data
+					 */
+					mask.runs(from, to, (start, end) -> perturb(step, stream, previous[stream], current[stream],
+							deltas, start, end));
+				}
+			}
+			return;
+		}
+
+		/*
+		 * otherwise go cell by cell; this is also where we would do any work
+		 * that needs the position of each cell.
+		 */
+		for (int i = from; i < to; i++) {
 
 			/**
 			 * If a specific extent offset is needed, e.g. the offset in space,
@@ -349,38 +1252,32 @@ public class ExampleProcessContextualizer implements IProcessContextualizer {
 			 * additional extents beyond time and space, although these are not
 			 * used at the moment.
 			 */
-			int spaceOffset = scale.getExtentOffset(scale.getSpace(), n);
-			/**
-			 * The spatial offset can be converted to an IExtent like so: (this
-			 * works also at initialize() of course)
-			 */
-			ISpatialExtent currentSpace = scale.getSpace().getExtent(spaceOffset);
-
-			/*
-			 * if you need a point in space in lat/lon, use the centroid of the
-			 * standardized geometry (guaranteed to have x = lon and y = lat);
-			 */
-			Point point = ((IGeometricShape) currentSpace).getStandardizedGeometry().getCentroid();
+			int spaceOffset = slice.spaceOffset(i);
+			if (mask != null && !mask.isValid(spaceOffset)) {
+				continue;
+			}
 
 			/**
+			 * The spatial offset can be converted to an IExtent with
+			 * scale.getSpace().getExtent(spaceOffset) (this works also at
+			 * initialize() of course), and if you need a point in space in
+			 * lat/lon, you can use the centroid of its standardized geometry
+			 * (guaranteed to have x = lon and y = lat):
+			 * 
+			 * ((IGeometricShape) extent).getStandardizedGeometry().getCentroid()
+			 * 
 			 * The Extent will be the 1-dimensional portion of the whole
 			 * topology, so a grid cell in a grid, or a polygon in a set of
 			 * polygons, a period in a time grid etc.
 			 * 
-			 * However, the above may be inefficient: for example, currently in
-			 * gridded space, the above will build a polygon (the only generic
-			 * spatial extent) for each cell. I will eventually have a GridCell
-			 * type that will allow the above with more efficiency. But if we
-			 * assume that the model will usually be run on gridded space, we
-			 * can write the very fast code below:
+			 * However, the above is inefficient: for example, currently in
+			 * gridded space, it will build a polygon (the only generic spatial
+			 * extent) for each cell, at each transition. A model that needs
+			 * the position of each cell should read geometry().lon and
+			 * geometry().lat at spaceOffset, which build them once. On a grid,
+			 * the x/y offsets can be asked to the grid with
+			 * getXYOffsets(spaceOffset). This one doesn't use either.
 			 */
-			if (scale.getSpace().getGrid() != null) {
-				int[] xy = scale.getSpace().getGrid().getXYOffsets(spaceOffset);
-
-				// uncommenting this will increase run time enormously!
-				// Thinklab.logger().info("running on grid cell (" + xy[0] + ","
-				// + xy[1] + ")");
-			}
 
 			/**
 			 * This will give us the x,y coordinates (Thinklab forces x to be
@@ -403,47 +1300,183 @@ public class ExampleProcessContextualizer implements IProcessContextualizer {
 			 */
 			double value = 0;
 
-			for (IObservation o : outputStates.values()) {
+			for (int o = 0; o < current.length; o++) {
 
-				/**
-				 * use States.getDouble() to keep state access simple. We must
-				 * pass the transition when it's not initializing, or we get a
-				 * nasty access error.
-				 */
-				double m = random.nextDouble() * 100.0 - 50.0;
+				double m = random.uniform(spaceOffset, step, o, -50.0, 50.0);
 
 				/**
-				 * This gets the value correspondent to the offset n at the
-				 * passed transition. What we're asking for here is the
+				 * This gets the value correspondent to this cell at the
+				 * previous transition. What we're asking for here is the
 				 * "current" value before the new one is computed and set below.
+				 * If we didn't keep the buffers, we would use
+				 * States.getDouble((IState) o, n, transition.previous()) - and
+				 * we must pass the transition when it's not initializing, or we
+				 * get a nasty access error.
 				 */
-				value = States.getDouble((IState) o, n, previous);
-				if (!Double.isNaN(value)) {
-					value += m;
-					if (value < 0) {
-						value = 0;
-					}
-				}
-
-				/**
-				 * To set the current state value, use States.set.
-				 */
-				States.set((IState) o, value, n);
+				value = previous[o][spaceOffset];
+				current[o][spaceOffset] = PerturbKernel.perturb(value, m, multiplier);
 			}
-
 		}
+	}
 
-		ret.putAll(outputStates);
+	/*
+	 * the mean of the values of an output at the previous step and the
+	 * smooth steps before it that have been computed. Cells without data are
+	 * NaN at all steps, so they stay NaN.
+	 */
+	private double[] window(StateBuffer buffer, int step, int output) throws KlabException {
+
+		int cells = Slice.cells(scale);
+		if (window == null) {
+			window = new double[buffers.size()][cells];
+			back = new double[cells];
+		}
 
+		double[] ret = window[output];
+		System.arraycopy(buffer.previous(), 0, ret, 0, cells);
+		int n = 1;
+		for (int s = step - 2; s >= step - 1 - smooth && s >= 0; s--) {
+			buffer.read(s, back);
+			for (int c = 0; c < cells; c++) {
+				ret[c] += back[c];
+			}
+			n++;
+		}
+		if (n > 1) {
+			for (int c = 0; c < cells; c++) {
+				ret[c] /= n;
+			}
+		}
 		return ret;
 	}
 
+	/*
+	 * run the array kernels on cells [from, to) of one output.
+	 */
+	private void perturb(int step, int stream, double[] previous, double[] current, double[] deltas, int from,
+			int to) {
+		PerturbKernel.deltas(random, step, stream, -50.0, 50.0, deltas, from, to);
+		PerturbKernel.perturb(previous, deltas, current, from, to, multiplier);
+	}
+
+	/*
+	 * the perturbed mean of each cell in rows [y0, y1) and its neighbors with
+	 * data. Cells without data are NaN in the block, so they stay NaN and
+	 * don't count as neighbors; neither do the cells outside the grid.
+	 */
+	private void diffuse(Stencil.Block block, int step, int stream, int y0, int y1, double[] dst) {
+		PerturbKernel.diffuse(block, stencil.offsets(), stencil.getWidth(), y0, y1, random, step, stream, -50.0,
+				50.0, multiplier, dst, 0);
+	}
+
+	/*
+	 * release threads and history when we're done. A run that got to the end
+	 * has nothing to resume, so its checkpoint goes.
+	 */
+	private void dispose() throws KlabException {
+		probe.report(monitor);
+		if (checkpoints != null) {
+			checkpoints.delete();
+		}
+		release();
+	}
+
+	/*
+	 * release whatever has been opened so far.
+	 */
+	private void release() throws KlabException {
+		if (executor != null) {
+			executor.shutdown();
+		}
+		if (prefetcher != null) {
+			prefetcher.close();
+		}
+		if (stencil != null) {
+			stencil.shutdown();
+		}
+		for (StateBuffer buffer : buffers.values()) {
+			buffer.close();
+		}
+		if (strips != null) {
+			strips.close();
+		}
+		for (TileStore[] pair : tiles.values()) {
+			pair[0].close();
+			pair[1].close();
+		}
+		if (sink != null) {
+			sink.close();
+		}
+		if (checkpoints != null) {
+			checkpoints.close();
+		}
+	}
+
 	@Override
-	public void setContext(Map<String, Object> parameters, IModel model, IProject project) {
+	public void setContext(Map<String, Object> parameters, IModel model, IProject project)
+			throws KlabValidationException {
 
 		if (parameters.containsKey("multiplier")) {
 			multiplier = ((Number) parameters.get("multiplier")).intValue();
 		}
+		if (parameters.containsKey("threads")) {
+			threads = ((Number) parameters.get("threads")).intValue();
+		}
+		if (parameters.containsKey("smooth")) {
+			smooth = ((Number) parameters.get("smooth")).intValue();
+			if (smooth < 0) {
+				throw new KlabValidationException("example.process: smooth must be 0 or more");
+			}
+		}
+		if (parameters.containsKey("spill")) {
+			spill = (Boolean) parameters.get("spill");
+		}
+		if (parameters.containsKey("precision")) {
+			try {
+				precision = Precision.valueOf(parameters.get("precision").toString().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new KlabValidationException(
+						"example.process: precision must be double, float or short: " + parameters.get("precision"));
+			}
+		}
+		if (parameters.containsKey("checkpoint")) {
+			checkpoint = ((Number) parameters.get("checkpoint")).intValue();
+		}
+		if (parameters.containsKey("cache")) {
+			cache = (Boolean) parameters.get("cache");
+		}
+		if (parameters.containsKey("block")) {
+			block = Math.max(1, ((Number) parameters.get("block")).intValue());
+		}
+		if (parameters.containsKey("memory")) {
+			memory = ((Number) parameters.get("memory")).intValue();
+		}
+		if (parameters.containsKey("neighborhood")) {
+			neighborhood = ((Number) parameters.get("neighborhood")).intValue();
+		}
+		if (parameters.containsKey("workers")) {
+			workers = ((Number) parameters.get("workers")).intValue();
+		}
+		if (parameters.containsKey("nodata")) {
+			nodata = (Boolean) parameters.get("nodata");
+		}
+		if (parameters.containsKey("prefetch")) {
+			prefetch = (Boolean) parameters.get("prefetch");
+		}
+		if ((spill || parameters.containsKey("precision")) && smooth == 0) {
+			throw new KlabValidationException("example.process: spill and precision only apply to smooth");
+		}
+		if (smooth > 0 && checkpoint > 0) {
+			throw new KlabValidationException(
+					"example.process: checkpoints only save the last step and can't be used with smooth");
+		}
+		if (prefetch && !nodata) {
+			throw new KlabValidationException(
+					"example.process: prefetch only applies to the inputs read with nodata = true");
+		}
+		if (parameters.containsKey("seed")) {
+			seed = ((Number) parameters.get("seed")).longValue();
+		}
 	}
 
 }
@@ -26,44 +26,310 @@
  *******************************************************************************/
 package 3000.services;
 
+import java.util.Arrays;
 import java.util.Map;
 
 import org.integratedmodelling.api.modelling.scheduling.ITransition;
 import org.integratedmodelling.api.monitoring.IMonitor;
-import org.integratedmodelling.common.model.runtime.AbstractStateContextualizer;
 import org.integratedmodelling.exceptions.KlabException;
+import org.integratedmodelling.exceptions.KlabValidationException;
 
-public class ExampleStateContextualizer extends AbstractStateContextualizer {
+import 3000.runtime.BlockStateContextualizer;
+import 3000.runtime.CellRandom;
+
+/**
+ * A state contextualizer that sets its output to the sum of all its numeric
+ * inputs, ignoring no-data values (the output is no-data only if all inputs
+ * are). It is written against the block API in {@link BlockStateContextualizer},
+ * which computes a range of cells at a time from primitive columns; the
+ * per-index methods the engine calls are provided by the superclass.
+ * 
+ * Built with more than one realization, it is probabilistic: each realization
+ * multiplies the sum by a random factor in [1 - spread, 1 + spread), and the
+ * outputs are the mean of the realizations in each cell, their variance and
+ * any quantiles asked for, instead of a single value. All realizations of a
+ * block are computed from one read of its inputs, one array per realization
+ * over the cells of the block, so each pass is a simple loop over arrays.
+ * Blocks are spread across threads by
+ * {@link BlockStateContextualizer#run}. The random numbers only depend on the
+ * seed, the cell, the transition and the realization, so the results don't
+ * depend on how the cells are split. Transitions are numbered from 1 as they
+ * come, as the engine computes them in order and passes the same transition
+ * for all the cells of one.
+ * 
+ * Models get one through the example.s function (see
+ * {@link ExampleStateFunction}), whose parameters are passed to
+ * {@link #create(Map, IMonitor)}.
+ */
+public class ExampleStateContextualizer extends BlockStateContextualizer {
+
+	public static final String OUTPUT = "value";
+	public static final String VARIANCE = OUTPUT + "_variance";
+
+	private final int realizations;
+	private final double[] quantiles;
+	private CellRandom random = new CellRandom(0);
+	private double spread = 0.1;
+
+	/*
+	 * per-thread realizations, one array per realization, and the values of
+	 * one cell for the quantiles.
+	 */
+	private final ThreadLocal<double[][]> ensembles = new ThreadLocal<>();
+	private final ThreadLocal<double[]> sorted = new ThreadLocal<>();
+
+	/*
+	 * the transition being computed and its number, counting from 1. All the
+	 * blocks of a transition get the same transition, so a different one is
+	 * the next.
+	 */
+	private ITransition transition = null;
+	private int step = 0;
 
 	protected ExampleStateContextualizer(IMonitor monitor) {
-		super(monitor);
-		// TODO Auto-generated constructor stub
+		this(monitor, 1);
+	}
+
+	/**
+	 * @param monitor
+	 * @param realizations
+	 *            how many; 1 for the plain sum.
+	 * @param quantiles
+	 *            in [0, 1], each giving an output named by
+	 *            {@link #quantileKey(double)}.
+	 */
+	protected ExampleStateContextualizer(IMonitor monitor, int realizations, double... quantiles) {
+		super(monitor, outputKeys(realizations, quantiles));
+		this.realizations = realizations;
+		this.quantiles = quantiles.clone();
+	}
+
+	/**
+	 * Build a contextualizer from the parameters of a function call:
+	 * realizations (default 1), quantiles (a comma-separated list of numbers
+	 * in [0, 1], only with more than one realization), seed and spread
+	 * (default 0.1).
+	 * 
+	 * @throws KlabValidationException
+	 *             if the parameters don't make sense.
+	 */
+	public static ExampleStateContextualizer create(Map<String, Object> parameters, IMonitor monitor)
+			throws KlabValidationException {
+
+		int realizations = 1;
+		double[] quantiles = new double[0];
+		if (parameters.containsKey("realizations")) {
+			realizations = ((Number) parameters.get("realizations")).intValue();
+		}
+		if (parameters.containsKey("quantiles")) {
+			String[] values = parameters.get("quantiles").toString().split("\\s*,\\s*");
+			quantiles = new double[values.length];
+			try {
+				for (int q = 0; q < values.length; q++) {
+					quantiles[q] = Double.parseDouble(values[q].trim());
+				}
+			} catch (NumberFormatException e) {
+				throw new KlabValidationException(
+						"example.s: quantiles must be a list of numbers: " + parameters.get("quantiles"));
+			}
+			if (realizations < 2) {
+				throw new KlabValidationException("example.s: quantiles need more than one realization");
+			}
+		}
+
+		ExampleStateContextualizer ret;
+		try {
+			ret = new ExampleStateContextualizer(monitor, realizations, quantiles);
+		} catch (IllegalArgumentException e) {
+			throw new KlabValidationException(e.getMessage());
+		}
+		if (parameters.containsKey("seed")) {
+			ret.setSeed(((Number) parameters.get("seed")).longValue());
+		}
+		if (parameters.containsKey("spread")) {
+			ret.setSpread(((Number) parameters.get("spread")).doubleValue());
+		}
+		return ret;
+	}
+
+	/**
+	 * Set the seed of the random numbers, so that runs can be repeated.
+	 */
+	public void setSeed(long seed) {
+		this.random = new CellRandom(seed);
+	}
+
+	/**
+	 * Set how far from the sum (as a fraction of it) realizations can go.
+	 */
+	public void setSpread(double spread) {
+		this.spread = spread;
+	}
+
+	public int getRealizations() {
+		return realizations;
+	}
+
+	/**
+	 * The name of the output for a quantile, e.g. value_q05 for 0.05 or
+	 * value_q2.5 for 0.025. Percentages are rounded to one decimal, as
+	 * quantile * 100 is not exact in binary (0.07 * 100 is 7.000000000000001).
+	 */
+	public static String quantileKey(double quantile) {
+		long permille = Math.round(quantile * 1000);
+		return permille % 10 == 0 ? String.format("%s_q%02d", OUTPUT, permille / 10)
+				: OUTPUT + "_q" + (permille / 10) + "." + (permille % 10);
 	}
 
 	@Override
-	public Map<String, Object> initialize(int index, Map<String, Object> inputs) throws KlabException {
-		// TODO Auto-generated method stub
-		return null;
+	public void initialize(int from, int to, double[][] inputs, double[][] outputs) throws KlabException {
+		synchronized (this) {
+			transition = null;
+			step = 0;
+		}
+		sum(to - from, inputs, outputs[0]);
+		if (realizations > 1) {
+			ensemble(from, to - from, 0, outputs);
+		}
 	}
 
 	@Override
-	public Map<String, Object> compute(int index, ITransition transition, Map<String, Object> inputs)
+	public void compute(int from, int to, ITransition transition, double[][] inputs, double[][] outputs)
 			throws KlabException {
-		// TODO Auto-generated method stub
-		return null;
+		sum(to - from, inputs, outputs[0]);
+		if (realizations > 1) {
+			ensemble(from, to - from, step(transition), outputs);
+		}
 	}
 
 	@Override
 	public boolean isProbabilistic() {
-		// TODO Auto-generated method stub
-		return false;
+		return realizations > 1;
 	}
 
 	@Override
 	public String getLabel() {
-		// TODO Auto-generated method stub
-		return null;
+		return "example state";
+	}
+
+	/*
+	 * column-wise so that each pass is a simple loop over two arrays.
+	 */
+	private static void sum(int n, double[][] inputs, double[] output) {
+		Arrays.fill(output, 0, n, Double.NaN);
+		for (double[] input : inputs) {
+			for (int i = 0; i < n; i++) {
+				double value = input[i];
+				if (!Double.isNaN(value)) {
+					output[i] = Double.isNaN(output[i]) ? value : output[i] + value;
+				}
+			}
+		}
 	}
 
+	/*
+	 * replace the sums in outputs[0] with the mean of the realizations, and
+	 * fill in the variance and the quantiles. No-data stays no-data.
+	 */
+	private void ensemble(int from, int n, int step, double[][] outputs) {
+
+		double[][] x = ensembles.get();
+		if (x == null || x[0].length < n) {
+			x = new double[realizations][n];
+			ensembles.set(x);
+		}
+
+		double[] mean = outputs[0];
+		for (int r = 0; r < realizations; r++) {
+			double[] realization = x[r];
+			for (int i = 0; i < n; i++) {
+				realization[i] = mean[i] * (1 + spread * (2 * random.uniform(from + i, step, r) - 1));
+			}
+		}
+
+		Arrays.fill(mean, 0, n, 0);
+		for (int r = 0; r < realizations; r++) {
+			double[] realization = x[r];
+			for (int i = 0; i < n; i++) {
+				mean[i] += realization[i];
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			mean[i] /= realizations;
+		}
 
+		double[] variance = outputs[1];
+		Arrays.fill(variance, 0, n, 0);
+		for (int r = 0; r < realizations; r++) {
+			double[] realization = x[r];
+			for (int i = 0; i < n; i++) {
+				double d = realization[i] - mean[i];
+				variance[i] += d * d;
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			variance[i] /= realizations - 1;
+		}
+
+		if (quantiles.length == 0) {
+			return;
+		}
+
+		double[] values = sorted.get();
+		if (values == null) {
+			values = new double[realizations];
+			sorted.set(values);
+		}
+		for (int i = 0; i < n; i++) {
+			if (Double.isNaN(mean[i])) {
+				for (int q = 0; q < quantiles.length; q++) {
+					outputs[2 + q][i] = Double.NaN;
+				}
+				continue;
+			}
+			for (int r = 0; r < realizations; r++) {
+				values[r] = x[r][i];
+			}
+			Arrays.sort(values);
+			for (int q = 0; q < quantiles.length; q++) {
+				/*
+				 * linear interpolation between the closest ranks
+				 */
+				double h = (realizations - 1) * quantiles[q];
+				int lo = (int) h;
+				outputs[2 + q][i] = lo + 1 < realizations ? values[lo] + (h - lo) * (values[lo + 1] - values[lo])
+						: values[lo];
+			}
+		}
+	}
+
+	/*
+	 * the number of a transition, counting from 1.
+	 */
+	private synchronized int step(ITransition transition) {
+		if (transition != this.transition) {
+			this.transition = transition;
+			step++;
+		}
+		return step;
+	}
+
+	private static String[] outputKeys(int realizations, double[] quantiles) {
+		if (realizations < 1) {
+			throw new IllegalArgumentException("example state: realizations must be at least 1");
+		}
+		if (realizations == 1) {
+			return new String[] { OUTPUT };
+		}
+		String[] ret = new String[2 + quantiles.length];
+		ret[0] = OUTPUT;
+		ret[1] = VARIANCE;
+		for (int q = 0; q < quantiles.length; q++) {
+			if (!(quantiles[q] >= 0 && quantiles[q] <= 1)) {
+				throw new IllegalArgumentException("example state: quantiles must be in [0, 1]");
+			}
+			ret[2 + q] = quantileKey(quantiles[q]);
+		}
+		return ret;
+	}
 }
@@ -0,0 +1,61 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.services;
+
+import java.util.Map;
+
+import org.integratedmodelling.api.knowledge.IConcept;
+import org.integratedmodelling.api.knowledge.IExpression;
+import org.integratedmodelling.api.monitoring.IMonitor;
+import org.integratedmodelling.api.services.annotations.Prototype;
+import org.integratedmodelling.common.vocabulary.NS;
+import org.integratedmodelling.exceptions.KlabException;
+
+/**
+ * The function that gives models an {@link ExampleStateContextualizer}. State
+ * contextualizers need the monitor when they are built, so unlike the process
+ * contextualizer they are not registered directly: this function is, and the
+ * engine calls it to get one for each run, passing the parameters of the call
+ * in the model, e.g. example.s(realizations = 32, quantiles = "0.05,0.5,0.95").
+ * 
+ * Parameters: realizations (1 for the plain sum, more for an ensemble whose
+ * mean, variance and quantiles are the outputs), quantiles, seed and spread.
+ * See {@link ExampleStateContextualizer#create(Map, IMonitor)}.
+ */
+@Prototype(
+		id = "example.s",
+		returnTypes = { NS.STATE_CONTEXTUALIZER },
+		published = false,
+		args = { "? r|realizations", Prototype.INT, "? q|quantiles", Prototype.TEXT, "? s|seed", Prototype.INT,
+				"? sp|spread", Prototype.FLOAT })
+public class ExampleStateFunction implements IExpression {
+
+	@Override
+	public Object eval(Map<String, Object> parameters, IMonitor monitor, IConcept... context) throws KlabException {
+		return ExampleStateContextualizer.create(parameters, monitor);
+	}
+}
@@ -26,6 +26,7 @@
  *******************************************************************************/
 package 3000.services;
 
+import java.util.HashMap;
 import java.util.Map;
 
 import org.integratedmodelling.api.modelling.IActiveSubject;
@@ -41,37 +42,49 @@ import org.integratedmodelling.api.project.IProject;
 import org.integratedmodelling.exceptions.KlabException;
 import org.integratedmodelling.exceptions.KlabValidationException;
 
+/**
+ * One of these is created for each subject it contextualizes, so an
+ * instantiator that creates many agents will end up with as many of these.
+ * Each only keeps the state of its own subject, so compute() can run for
+ * different subjects at the same time: {@link ExampleSubjectInstantiator}
+ * with agents = true makes one for each subject it creates and runs them all
+ * at each transition through a {@link 3000.runtime.SubjectScheduler}, which
+ * also times them.
+ * 
+ * This example makes no observations of its own: it only follows the
+ * transitions, so that it can be disposed of after the last.
+ */
 public class ExampleSubjectContextualizer implements ISubjectContextualizer {
 
     boolean dispose;
 
 	@Override
 	public boolean canDispose() {
-		// TODO Auto-generated method stub
 		return dispose;
 	}
 
 	@Override
 	public void setContext(Map<String, Object> parameters, IModel model, IProject project)
 			throws KlabValidationException {
-		// TODO Auto-generated method stub
-		
+		// no parameters
 	}
 
 	@Override
-	public Map<String, IObservation> initialize(IActiveSubject process, IActiveSubject contextSubject,
+	public Map<String, IObservation> initialize(IActiveSubject subject, IActiveSubject contextSubject,
 			IResolutionScope context, Map<String, IObservable> expectedInputs, Map<String, IObservable> expectedOutputs,
 			IMonitor monitor) throws KlabException {
-		// TODO Auto-generated method stub
-		dispose = contextSubject.getScale().isTemporallyDistributed();
-		return null;
+
+		/*
+		 * without time there will be no transitions, and we're done.
+		 */
+		dispose = !subject.getScale().isTemporallyDistributed();
+		return new HashMap<>();
 	}
 
 	@Override
 	public Map<String, IObservation> compute(ITransition transition, Map<String, IState> inputs) throws KlabException {
-		// TODO Auto-generated method stub
 		dispose = transition.isLast();
-		return null;
+		return new HashMap<>();
 	}
 
 }
@@ -26,32 +26,113 @@
  *******************************************************************************/
 package 3000.services;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
-import org.integratedmodelling.api.knowledge.IConcept;
 import org.integratedmodelling.api.modelling.IActiveSubject;
 import org.integratedmodelling.api.modelling.IModel;
 import org.integratedmodelling.api.modelling.IObservable;
 import org.integratedmodelling.api.modelling.IObservation;
+import org.integratedmodelling.api.modelling.IScale;
 import org.integratedmodelling.api.modelling.IState;
 import org.integratedmodelling.api.modelling.contextualization.ISubjectInstantiator;
 import org.integratedmodelling.api.modelling.resolution.IResolutionScope;
 import org.integratedmodelling.api.modelling.scheduling.ITransition;
 import org.integratedmodelling.api.monitoring.IMonitor;
 import org.integratedmodelling.api.project.IProject;
+import org.integratedmodelling.api.space.IGrid;
+import org.integratedmodelling.common.states.States;
 import org.integratedmodelling.exceptions.KlabException;
+import org.integratedmodelling.exceptions.KlabRuntimeException;
 import org.integratedmodelling.exceptions.KlabValidationException;
 
+import 3000.runtime.ClusterLabeler;
+import 3000.runtime.ClusterLabeler.Cluster;
+import 3000.runtime.Extents;
+import 3000.runtime.Probe;
+import 3000.runtime.Slice;
+import 3000.runtime.SubjectScheduler;
+
+/**
+ * Creates one subject for each connected region of cells whose value in the
+ * input state is above a threshold (e.g. patches of habitat, settlements from
+ * a built-up raster). The regions are found by {@link ClusterLabeler}, in
+ * parallel strips, along with their extent in grid cells.
+ * 
+ * The map returned by createSubjects() is filled while it's read: subjects are
+ * created in batches as the labeler finds the regions, so the first subjects
+ * are available before the grid has been fully scanned. It is an ordinary
+ * map otherwise: it can be iterated any number of times, each iteration
+ * going on with the search only past the subjects already created, and
+ * size(), get() or containsKey() create as many of the others as they need
+ * to answer (size() all of them).
+ * 
+ * Each subject has the scale of the box of cells covered by its region, with
+ * the time of the context.
+ * 
+ * Parameters: threshold (default 0), diagonal (true to connect cells touching
+ * at a corner), threads (as in the process contextualizer), batch (number of
+ * subjects created at a time, default 256) and agents (see below).
+ * 
+ * With agents = true and a context with time, each subject created gets an
+ * {@link ExampleSubjectContextualizer}, and at each later transition all of
+ * them compute it as concurrent tasks of a {@link SubjectScheduler}, at most
+ * threads at a time (0 for as many as there are processors). The call
+ * returns when all have computed the transition, so none sees the next
+ * before the others are done with this one. The contextualizers hold their
+ * subjects, so these are kept in memory for the whole run.
+ * 
+ * Running with -Dexample.instrument=true times the whole search, from the
+ * call to createSubjects() to the last subject created (see {@link Probe}),
+ * and reports it to the monitor. With agents, the transitions of all the
+ * contextualizers are timed together and reported after the last.
+ */
 public class ExampleSubjectInstantiator implements ISubjectInstantiator {
 	
 	boolean finished;
+	boolean created;
+	double threshold = 0;
+	boolean diagonal = false;
+	int threads = 1;
+	int batch = 256;
+	boolean agents = false;
+
+	IActiveSubject contextSubject;
+	IResolutionScope context;
+	IObservable observable;
+	IMonitor monitor;
+	Probe probe = new Probe("example.subjects");
+
+	/*
+	 * with agents, the contextualizers of the subjects created so far and
+	 * what runs them.
+	 */
+	List<ExampleSubjectContextualizer> contextualizers = new ArrayList<>();
+	SubjectScheduler scheduler = null;
+	Probe agentProbe = new Probe("example.agents");
 	
 	@Override
 	public void initialize(IActiveSubject contextSubject, IResolutionScope context, IModel callingModel,
 			Map<String, IObservable> expectedInputs, Map<String, IObservable> expectedOutputs, IMonitor monitor)
 			throws KlabException {
-		// TODO Auto-generated method stub
-		finished = contextSubject.getScale().isTemporallyDistributed();
+
+		finished = !contextSubject.getScale().isTemporallyDistributed();
+		this.contextSubject = contextSubject;
+		this.context = context;
+		this.monitor = monitor;
+		if (agents && !finished) {
+			scheduler = new SubjectScheduler(threads);
+		}
+		if (expectedOutputs.size() > 0) {
+			this.observable = expectedOutputs.values().iterator().next();
+		}
 	}
 
 	@Override
@@ -62,8 +143,22 @@ public class ExampleSubjectInstantiator implements ISubjectInstantiator {
 	@Override
 	public void setContext(Map<String, Object> parameters, IModel model, IProject project)
 			throws KlabValidationException {
-		// TODO Auto-generated method stub
-		
+
+		if (parameters.containsKey("threshold")) {
+			threshold = ((Number) parameters.get("threshold")).doubleValue();
+		}
+		if (parameters.containsKey("diagonal")) {
+			diagonal = (Boolean) parameters.get("diagonal");
+		}
+		if (parameters.containsKey("threads")) {
+			threads = ((Number) parameters.get("threads")).intValue();
+		}
+		if (parameters.containsKey("batch")) {
+			batch = Math.max(1, ((Number) parameters.get("batch")).intValue());
+		}
+		if (parameters.containsKey("agents")) {
+			agents = (Boolean) parameters.get("agents");
+		}
 	}
 
 	@Override
@@ -71,8 +166,161 @@ public class ExampleSubjectInstantiator implements ISubjectInstantiator {
 			throws KlabException {
 		
 		finished = transition.isLast();
-		// TODO Auto-generated method stub
-		return null;
+
+		/*
+		 * subjects are created once, from the first state we get. After that,
+		 * their contextualizers compute each transition, if we have any.
+		 */
+		if (created) {
+			if (scheduler != null) {
+				agentProbe.begin();
+				scheduler.compute(transition, contextualizers, null);
+				agentProbe.end(contextualizers.size());
+				if (finished) {
+					scheduler.shutdown();
+					agentProbe.report(monitor);
+				}
+			}
+			return new HashMap<>();
+		}
+		created = true;
+		probe.begin();
+
+		IState input = null;
+		if (inputs != null && inputs.size() > 0) {
+			input = inputs.values().iterator().next();
+		} else if (contextSubject.getStates().size() > 0) {
+			input = contextSubject.getStates().iterator().next();
+		}
+		if (input == null) {
+			throw new KlabValidationException("example.subjects: no input state to find subjects in");
+		}
+
+		IScale scale = contextSubject.getScale();
+		IGrid grid = scale.getSpace() == null ? null : scale.getSpace().getGrid();
+		final Slice slice = Slice.of(scale, transition);
+		if (grid == null || !slice.isContiguous()) {
+			throw new KlabValidationException("example.subjects: subjects can only be found on a regular grid");
+		}
+
+		/*
+		 * the cell test runs once per cell in the strips of the labeler, so
+		 * it is not timed on its own: the probe times the whole search, state
+		 * reads included.
+		 */
+		final IState state = input;
+		ClusterLabeler labeler = new ClusterLabeler(grid.getXCells(), grid.getYCells(), diagonal,
+				(cell) -> States.getDouble(state, slice.offsets[cell]) > threshold);
+
+		return new Subjects(labeler.stream(threads, batch), slice.size());
+	}
+
+	/**
+	 * Create the subject for a cluster. This one creates it in the context
+	 * subject with the observable of our output, over the box of grid cells
+	 * covered by the cluster.
+	 * 
+	 * @param cluster
+	 * @param name
+	 * @return the new subject
+	 * @throws KlabException
+	 */
+	protected IObservation createSubject(Cluster cluster, String name) throws KlabException {
+		IScale scale = Extents.box(contextSubject.getScale(), cluster.minX, cluster.minY, cluster.maxX,
+				cluster.maxY);
+		IObservation ret = contextSubject.newSubject(observable, scale, name, null);
+		if (scheduler != null && ret instanceof IActiveSubject) {
+			ExampleSubjectContextualizer contextualizer = new ExampleSubjectContextualizer();
+			contextualizer.initialize((IActiveSubject) ret, contextSubject, context, new HashMap<>(),
+					new HashMap<>(), monitor);
+			contextualizers.add(contextualizer);
+		}
+		return ret;
 	}
 
+	/*
+	 * a map that creates the subjects in batches as it's iterated, and keeps
+	 * those created so far for the next iterations.
+	 */
+	class Subjects extends AbstractMap<String, IObservation> {
+
+		ClusterLabeler.Labeling clusters;
+		List<Map.Entry<String, IObservation>> entries = new ArrayList<>();
+		int cells;
+		boolean done;
+
+		Subjects(ClusterLabeler.Labeling clusters, int cells) {
+			this.clusters = clusters;
+			this.cells = cells;
+		}
+
+		/*
+		 * create the next batch of subjects; return false if there are no
+		 * more.
+		 */
+		boolean more() {
+			if (done) {
+				return false;
+			}
+			int n = 0;
+			try {
+				while (n < batch && clusters.hasNext()) {
+					Cluster cluster = clusters.next();
+					String name = "cluster_" + cluster.first;
+					entries.add(new SimpleImmutableEntry<>(name, createSubject(cluster, name)));
+					n++;
+				}
+			} catch (KlabException e) {
+				clusters.close();
+				throw new KlabRuntimeException(e);
+			}
+			if (n == 0) {
+				done = true;
+				clusters.close();
+				probe.end(cells);
+				probe.report(monitor);
+			}
+			return n > 0;
+		}
+
+		@Override
+		public int size() {
+			while (more()) {
+				// create them all
+			}
+			return entries.size();
+		}
+
+		@Override
+		public Set<Map.Entry<String, IObservation>> entrySet() {
+			return new AbstractSet<Map.Entry<String, IObservation>>() {
+
+				@Override
+				public Iterator<Map.Entry<String, IObservation>> iterator() {
+					return new Iterator<Map.Entry<String, IObservation>>() {
+
+						int next;
+
+						@Override
+						public boolean hasNext() {
+							return next < entries.size() || (more() && next < entries.size());
+						}
+
+						@Override
+						public Map.Entry<String, IObservation> next() {
+							if (!hasNext()) {
+								throw new NoSuchElementException();
+							}
+							return entries.get(next++);
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return Subjects.this.size();
+				}
+			};
+		}
+	}
 }
@@ -0,0 +1,53 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * The settings the component reads when it's registered.
+ */
+public class ExampleComponentTest {
+
+	@After
+	public void clear() {
+		System.clearProperty("example.warmup.enabled");
+		System.clearProperty("example.warmup.budget");
+	}
+
+	@Test
+	public void badWarmUpBudgetFallsBackToTheDefault() {
+		System.setProperty("example.warmup.enabled", "true");
+		System.setProperty("example.warmup.budget", "2s");
+		long start = System.currentTimeMillis();
+		assertTrue(new ExampleComponent().initialize());
+		assertTrue(System.currentTimeMillis() - start >= 2000);
+	}
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.integratedmodelling.api.modelling.scheduling.ITransition;
+import org.junit.Test;
+
+/**
+ * The per-index methods of a block contextualizer, called from several
+ * threads at once.
+ */
+public class BlockStateContextualizerTest {
+
+	private static final int THREADS = 8;
+	private static final int CELLS = 20000;
+
+	/*
+	 * a - b in each cell, so that the order of the inputs matters.
+	 */
+	static class Difference extends BlockStateContextualizer {
+
+		Difference() {
+			super(null, "d");
+		}
+
+		@Override
+		public void initialize(int from, int to, double[][] inputs, double[][] outputs) {
+			for (int i = 0; i < to - from; i++) {
+				outputs[0][i] = inputs[0][i] - inputs[1][i];
+			}
+		}
+
+		@Override
+		public void compute(int from, int to, ITransition transition, double[][] inputs, double[][] outputs) {
+			initialize(from, to, inputs, outputs);
+		}
+
+		@Override
+		public boolean isProbabilistic() {
+			return false;
+		}
+
+		@Override
+		public String getLabel() {
+			return "difference";
+		}
+	}
+
+	@Test
+	public void threadsAgreeOnTheInputs() throws Exception {
+
+		for (int run = 0; run < 20; run++) {
+
+			final Difference contextualizer = new Difference();
+			ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+			List<Future<double[]>> results = new ArrayList<>();
+			for (int t = 0; t < THREADS; t++) {
+				results.add(threads.submit(new Callable<double[]>() {
+					@Override
+					public double[] call() throws Exception {
+						double[] ret = new double[CELLS / THREADS];
+						Map<String, Object> inputs = new HashMap<>();
+						for (int i = 0; i < ret.length; i++) {
+							inputs.put("a", (double) i);
+							inputs.put("b", 1.0);
+							ret[i] = (Double) contextualizer.initialize(i, inputs).get("d");
+						}
+						return ret;
+					}
+				}));
+			}
+			threads.shutdown();
+
+			double[] expected = new double[CELLS / THREADS];
+			for (int i = 0; i < expected.length; i++) {
+				expected[i] = i - 1;
+			}
+			for (Future<double[]> result : results) {
+				assertArrayEquals(expected, result.get(), 0);
+			}
+			assertArrayEquals(new String[] { "a", "b" }, contextualizer.getInputKeys());
+		}
+	}
+
+	@Test
+	public void resultsCanBeKept() throws Exception {
+		Difference contextualizer = new Difference();
+		Map<String, Object> inputs = new HashMap<>();
+		inputs.put("a", 3.0);
+		inputs.put("b", 1.0);
+		Map<String, Object> first = contextualizer.initialize(0, inputs);
+		assertEquals(2.0, (Double) first.get("d"), 0);
+		inputs.put("a", 5.0);
+		Map<String, Object> second = contextualizer.compute(1, null, inputs);
+		assertNotSame(first, second);
+		assertEquals(2.0, (Double) first.get("d"), 0);
+		assertEquals(4.0, (Double) second.get("d"), 0);
+	}
+}
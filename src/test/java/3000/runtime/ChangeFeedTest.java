@@ -0,0 +1,94 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+
+import org.integratedmodelling.api.modelling.IState;
+import org.junit.Test;
+
+public class ChangeFeedTest {
+
+	private static IState state() {
+		return (IState) Proxy.newProxyInstance(ChangeFeedTest.class.getClassLoader(), new Class<?>[] { IState.class },
+				(proxy, method, args) -> method.getName().equals("equals") ? proxy == args[0]
+						: method.getName().equals("hashCode") ? System.identityHashCode(proxy) : null);
+	}
+
+	@Test
+	public void eachWatcherGetsAllChanges() {
+		IState state = state();
+		assertNull(ChangeFeed.get(state));
+
+		ChangeFeed a = ChangeFeed.watch(state, 100);
+		ChangeFeed b = ChangeFeed.watch(state, 100);
+		ChangeFeed.Channel channel = ChangeFeed.get(state);
+		assertFalse(a.hasProducer());
+
+		channel.changed(new int[] { 5, 7, 5, 99 }, 3);
+		channel.changed(new int[] { 7, 42 }, 2);
+		assertFalse(a.hasProducer());
+		assertEquals(-1, a.getStep());
+		channel.produced(1);
+		assertTrue(a.hasProducer() && b.hasProducer());
+		assertEquals(1, b.getStep());
+
+		assertArrayEquals(new int[] { 5, 7, 42 }, a.take());
+		assertArrayEquals(new int[0], a.take());
+		assertArrayEquals(new int[] { 5, 7, 42 }, b.take());
+	}
+
+	@Test
+	public void watchersOnlySeeLaterChanges() {
+		IState state = state();
+		ChangeFeed a = ChangeFeed.watch(state, 10);
+		ChangeFeed.get(state).changed(new int[] { 1 }, 1);
+		ChangeFeed b = ChangeFeed.watch(state, 10);
+		ChangeFeed.get(state).changed(new int[] { 2 }, 1);
+		assertArrayEquals(new int[] { 1, 2 }, a.take());
+		assertArrayEquals(new int[] { 2 }, b.take());
+	}
+
+	@Test
+	public void closedFeedsGetNothing() {
+		IState state = state();
+		ChangeFeed a = ChangeFeed.watch(state, 10);
+		ChangeFeed b = ChangeFeed.watch(state, 10);
+		a.close();
+		ChangeFeed.get(state).changed(new int[] { 3 }, 1);
+		assertArrayEquals(new int[0], a.take());
+		assertArrayEquals(new int[] { 3 }, b.take());
+		assertSame(ChangeFeed.get(state), ChangeFeed.get(state));
+	}
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Test;
+
+import 3000.runtime.ClusterLabeler.Cluster;
+
+public class ClusterLabelerTest {
+
+	/*
+	 * a grid of 3 x 3 blocks separated by empty rows and columns, so that
+	 * there are (width / 4) x (height / 4) clusters.
+	 */
+	private static ClusterLabeler blocks(int width, int height) {
+		ClusterLabeler ret = new ClusterLabeler(width, height, false,
+				(cell) -> (cell % width) % 4 != 3 && (cell / width) % 4 != 3);
+		ret.setStripRows(8);
+		return ret;
+	}
+
+	private static List<String> sorted(List<Cluster> clusters) {
+		List<String> ret = new ArrayList<>();
+		for (Cluster cluster : clusters) {
+			ret.add(cluster.toString());
+		}
+		Collections.sort(ret);
+		return ret;
+	}
+
+	private static int labelers() {
+		int ret = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals("cluster-labeler") && thread.isAlive()) {
+				ret++;
+			}
+		}
+		return ret;
+	}
+
+	@Test
+	public void findsEachBlockWithItsExtent() {
+		List<Cluster> clusters = Collections.synchronizedList(new ArrayList<>());
+		blocks(40, 40).label(4, clusters::add);
+		assertEquals(100, clusters.size());
+		clusters.sort(Comparator.comparingInt((Cluster c) -> c.first));
+		Cluster last = clusters.get(99);
+		assertEquals(9, last.count);
+		assertEquals(36, last.minX);
+		assertEquals(36, last.minY);
+		assertEquals(38, last.maxX);
+		assertEquals(38, last.maxY);
+	}
+
+	@Test
+	public void streamFindsTheSameClusters() {
+		List<Cluster> labeled = Collections.synchronizedList(new ArrayList<>());
+		blocks(40, 40).label(4, labeled::add);
+		List<Cluster> streamed = new ArrayList<>();
+		try (ClusterLabeler.Labeling stream = blocks(40, 40).stream(4, 4)) {
+			while (stream.hasNext()) {
+				streamed.add(stream.next());
+			}
+		}
+		assertEquals(sorted(labeled), sorted(streamed));
+	}
+
+	@Test
+	public void closingStopsTheLabeling() throws InterruptedException {
+		int before = labelers();
+		ClusterLabeler.Labeling stream = blocks(400, 400).stream(2, 1);
+		assertTrue(stream.hasNext());
+		stream.next();
+		stream.close();
+		for (int i = 0; i < 100 && labelers() > before; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(before, labelers());
+	}
+
+	@Test
+	public void readingToTheEndStopsTheLabeling() throws InterruptedException {
+		int before = labelers();
+		ClusterLabeler.Labeling stream = blocks(40, 40).stream(2, 1);
+		while (stream.hasNext()) {
+			stream.next();
+		}
+		assertFalse(stream.hasNext());
+		for (int i = 0; i < 100 && labelers() > before; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(before, labelers());
+	}
+}
@@ -0,0 +1,135 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DeltaCodecTest {
+
+	private static double[] field(int cells, long seed) {
+		Random random = new Random(seed);
+		double[] ret = new double[cells];
+		for (int i = 0; i < cells; i++) {
+			ret[i] = random.nextInt(4) == 0 ? Double.NaN : random.nextDouble() * 100;
+		}
+		return ret;
+	}
+
+	/*
+	 * the next step of a field: some cells move a little, some become or stop
+	 * being no-data, the rest stay.
+	 */
+	private static double[] next(double[] previous, long seed) {
+		Random random = new Random(seed);
+		double[] ret = previous.clone();
+		for (int i = 0; i < ret.length; i++) {
+			switch (random.nextInt(5)) {
+			case 0:
+				ret[i] = Double.isNaN(ret[i]) ? random.nextDouble() : ret[i] * 1.001;
+				break;
+			case 1:
+				ret[i] = Double.NaN;
+				break;
+			}
+		}
+		return ret;
+	}
+
+	private static void assertSameBits(double[] expected, double[] actual) {
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals("cell " + i, Double.doubleToRawLongBits(expected[i]), Double.doubleToRawLongBits(actual[i]));
+		}
+	}
+
+	@Test
+	public void deltasRebuildEachStep() {
+		for (int encoding : new int[] { DeltaCodec.RAW, DeltaCodec.XOR }) {
+			double[] previous = null;
+			double[] current = field(1000, 1);
+			double[] received = DeltaCodec.empty(1000);
+			for (int step = 0; step < 5; step++) {
+				byte[] record = DeltaCodec.encode(step, previous, current, encoding);
+				assertEquals(encoding, DeltaCodec.type(record));
+				assertEquals(step, DeltaCodec.decode(record, received));
+				assertSameBits(current, received);
+				previous = current;
+				current = next(current, step);
+			}
+		}
+	}
+
+	@Test
+	public void unchangedCellsCostNothing() {
+		double[] values = field(1000, 2);
+		byte[] record = DeltaCodec.encode(3, values, values.clone(), DeltaCodec.XOR);
+		double[] received = values.clone();
+		assertEquals(3, DeltaCodec.decode(record, received));
+		assertSameBits(values, received);
+		assertEquals(3, record.length);
+	}
+
+	@Test
+	public void noDataRoundTrips() {
+		double[] previous = { 1, Double.NaN, 3, Double.NaN };
+		double[] current = { Double.NaN, 2, 3, Double.NaN };
+		double[] received = previous.clone();
+		DeltaCodec.decode(DeltaCodec.encode(1, previous, current, DeltaCodec.XOR), received);
+		assertSameBits(current, received);
+
+		received = DeltaCodec.empty(4);
+		DeltaCodec.decode(DeltaCodec.encode(0, null, current, DeltaCodec.XOR), received);
+		assertSameBits(current, received);
+	}
+
+	@Test
+	public void keyframeReplacesWhateverTheReceiverHas() {
+		double[] values = field(1000, 3);
+		double[] received = field(1000, 4);
+		byte[] record = DeltaCodec.keyframe(7, values);
+		assertEquals(DeltaCodec.KEYFRAME, DeltaCodec.type(record));
+		assertEquals(1000, DeltaCodec.cells(record));
+		assertEquals(7, DeltaCodec.decode(record, received));
+		assertSameBits(values, received);
+
+		/*
+		 * and deltas apply on top of it as usual.
+		 */
+		double[] later = next(values, 5);
+		DeltaCodec.decode(DeltaCodec.encode(8, values, later, DeltaCodec.XOR), received);
+		assertSameBits(later, received);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void keyframeOfTheWrongSizeIsRejected() {
+		DeltaCodec.decode(DeltaCodec.keyframe(0, new double[4]), new double[5]);
+	}
+}
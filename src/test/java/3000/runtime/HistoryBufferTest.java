@@ -0,0 +1,107 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.integratedmodelling.exceptions.KlabIOException;
+import org.junit.Test;
+
+/**
+ * Steps kept in memory and on disk, both in rings of fixed depth.
+ */
+public class HistoryBufferTest {
+
+	private static final int CELLS = 1000;
+	private static final int STEPS = 50;
+
+	private static double[] step(int step) {
+		double[] ret = new double[CELLS];
+		for (int i = 0; i < CELLS; i++) {
+			ret[i] = step * 10000 + i;
+		}
+		ret[step % CELLS] = Double.NaN;
+		return ret;
+	}
+
+	@Test
+	public void lastStepsAreKeptInMemoryAndOnDisk() throws Exception {
+
+		HistoryBuffer history = new HistoryBuffer(CELLS, 1, 3, Precision.DOUBLE);
+		try {
+			double[] values = new double[CELLS];
+			for (int step = 0; step < STEPS; step++) {
+				history.push(step, step(step));
+
+				/*
+				 * the newest in memory, the three before on disk, wrapping
+				 * around the file many times over the run.
+				 */
+				for (int s = Math.max(0, step - 3); s <= step; s++) {
+					assertTrue(history.contains(s));
+					history.read(s, values);
+					assertArrayEquals(step(s), values, 0);
+				}
+				assertFalse(history.contains(step - 4));
+				assertFalse(history.contains(step + 1));
+			}
+		} finally {
+			history.close();
+		}
+	}
+
+	@Test
+	public void stepsCanAllGoToDisk() throws Exception {
+		HistoryBuffer history = new HistoryBuffer(CELLS, 0, 2, Precision.FLOAT);
+		try {
+			double[] values = new double[CELLS];
+			for (int step = 0; step < 10; step++) {
+				history.push(step, step(step));
+			}
+			history.read(8, values);
+			assertArrayEquals(step(8), values, 0);
+			history.read(9, values);
+			assertArrayEquals(step(9), values, 0);
+			assertFalse(history.contains(7));
+		} finally {
+			history.close();
+		}
+	}
+
+	@Test(expected = KlabIOException.class)
+	public void forgottenStepsCantBeRead() throws Exception {
+		HistoryBuffer history = new HistoryBuffer(CELLS, 2);
+		for (int step = 0; step < 5; step++) {
+			history.push(step, step(step));
+		}
+		assertEquals(true, history.contains(3));
+		history.read(2, new double[CELLS]);
+	}
+}
@@ -0,0 +1,156 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.integratedmodelling.api.modelling.IActiveSubject;
+import org.integratedmodelling.api.modelling.IModel;
+import org.integratedmodelling.api.modelling.IObservable;
+import org.integratedmodelling.api.modelling.IObservation;
+import org.integratedmodelling.api.modelling.IState;
+import org.integratedmodelling.api.modelling.contextualization.ISubjectContextualizer;
+import org.integratedmodelling.api.modelling.resolution.IResolutionScope;
+import org.integratedmodelling.api.modelling.scheduling.ITransition;
+import org.integratedmodelling.api.monitoring.IMonitor;
+import org.integratedmodelling.api.project.IProject;
+import org.junit.Test;
+
+/**
+ * Subjects computed as concurrent tasks: they overlap, no more than the
+ * bound at a time, and a transition is over for all before the next starts.
+ */
+public class SubjectSchedulerTest {
+
+	private static final int SUBJECTS = 24;
+	private static final int CONCURRENCY = 4;
+	private static final int TRANSITIONS = 3;
+
+	/*
+	 * what all the subjects of a test share.
+	 */
+	static class Shared {
+
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger mostRunning = new AtomicInteger();
+		final AtomicInteger clock = new AtomicInteger();
+	}
+
+	/*
+	 * takes a while to compute, and notes when it started and finished each
+	 * transition on the shared clock.
+	 */
+	static class Subject implements ISubjectContextualizer {
+
+		final Shared shared;
+		final Map<String, IObservation> result = Collections.emptyMap();
+		final List<int[]> computed = Collections.synchronizedList(new ArrayList<int[]>());
+
+		Subject(Shared shared) {
+			this.shared = shared;
+		}
+
+		@Override
+		public Map<String, IObservation> compute(ITransition transition, Map<String, IState> inputs) {
+			int start = shared.clock.incrementAndGet();
+			int running = shared.running.incrementAndGet();
+			shared.mostRunning.accumulateAndGet(running, Math::max);
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			shared.running.decrementAndGet();
+			computed.add(new int[] { start, shared.clock.incrementAndGet() });
+			return result;
+		}
+
+		@Override
+		public boolean canDispose() {
+			return false;
+		}
+
+		@Override
+		public void setContext(Map<String, Object> parameters, IModel model, IProject project) {
+		}
+
+		@Override
+		public Map<String, IObservation> initialize(IActiveSubject subject, IActiveSubject contextSubject,
+				IResolutionScope context, Map<String, IObservable> expectedInputs,
+				Map<String, IObservable> expectedOutputs, IMonitor monitor) {
+			return null;
+		}
+	}
+
+	@Test
+	public void subjectsOverlapWithinTheBoundAndWaitForEachOther() throws Exception {
+
+		Shared shared = new Shared();
+		List<Subject> subjects = new ArrayList<>();
+		for (int i = 0; i < SUBJECTS; i++) {
+			subjects.add(new Subject(shared));
+		}
+
+		SubjectScheduler scheduler = new SubjectScheduler(CONCURRENCY);
+		try {
+			for (int t = 0; t < TRANSITIONS; t++) {
+				List<Map<String, IObservation>> results = scheduler.compute(null, subjects, null);
+				assertEquals(SUBJECTS, results.size());
+				for (int i = 0; i < SUBJECTS; i++) {
+					assertSame(subjects.get(i).result, results.get(i));
+				}
+			}
+		} finally {
+			scheduler.shutdown();
+		}
+
+		assertTrue(shared.mostRunning.get() > 1);
+		assertTrue(shared.mostRunning.get() <= CONCURRENCY);
+
+		/*
+		 * everything of transition t has finished before anything of t + 1
+		 * has started.
+		 */
+		for (int t = 0; t + 1 < TRANSITIONS; t++) {
+			int lastEnd = 0;
+			int firstStart = Integer.MAX_VALUE;
+			for (Subject subject : subjects) {
+				lastEnd = Math.max(lastEnd, subject.computed.get(t)[1]);
+				firstStart = Math.min(firstStart, subject.computed.get(t + 1)[0]);
+			}
+			assertTrue(lastEnd < firstStart);
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.integratedmodelling.api.modelling.IActiveProcess;
+import org.integratedmodelling.api.modelling.IObservation;
+import org.integratedmodelling.api.modelling.IScale;
+import org.integratedmodelling.api.modelling.IState;
+import org.integratedmodelling.api.modelling.scheduling.ITransition;
+import org.integratedmodelling.api.monitoring.IMonitor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Interrupted and resumed runs of the example process.
+ */
+public class CheckpointTest {
+
+	private static final int WIDTH = 50;
+	private static final int HEIGHT = 40;
+	private static final int CELLS = WIDTH * HEIGHT;
+	private static final int STEPS = 8;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final List<Object> messages = Collections.synchronizedList(new ArrayList<>());
+	private final IMonitor monitor = StandIns.proxy(new Object() {
+		@SuppressWarnings("unused")
+		void info(Object message, String category) {
+			messages.add(message);
+		}
+	}, IMonitor.class);
+	private String checkpointDir;
+
+	@Before
+	public void redirect() {
+		checkpointDir = System.getProperty("example.checkpoint.dir");
+		System.setProperty("example.checkpoint.dir", folder.getRoot().getPath());
+	}
+
+	@After
+	public void restore() {
+		if (checkpointDir == null) {
+			System.clearProperty("example.checkpoint.dir");
+		} else {
+			System.setProperty("example.checkpoint.dir", checkpointDir);
+		}
+	}
+
+	/*
+	 * run the first transitions of the process and return its states.
+	 */
+	private Map<String, IObservation> run(IScale scale, IState input, int transitions, IMonitor monitor)
+			throws Exception {
+		ExampleProcessContextualizer contextualizer = new ExampleProcessContextualizer();
+		Map<String, Object> parameters = new HashMap<>();
+		parameters.put("seed", 7);
+		parameters.put("cache", false);
+		parameters.put("checkpoint", 3);
+		contextualizer.setContext(parameters, null, null);
+		IActiveProcess process = StandIns.process(scale, input);
+		Map<String, IObservation> ret = contextualizer.initialize(process, process, null,
+				StandIns.observables("in", 1), StandIns.observables("out", 2), monitor);
+		ITransition[] all = StandIns.transitions(scale);
+		for (int i = 0; i < transitions; i++) {
+			ret = contextualizer.compute(all[i], Collections.emptyMap());
+		}
+		return ret;
+	}
+
+	private static double[] step(Map<String, IObservation> states, String output, int step) {
+		return Arrays.copyOfRange(StandIns.values((IState) states.get(output)), step * CELLS, (step + 1) * CELLS);
+	}
+
+	private void awaitCheckpoint() throws InterruptedException {
+		for (int i = 0; i < 500; i++) {
+			File[] files = folder.getRoot().listFiles((dir, name) -> !name.endsWith(".tmp"));
+			if (files != null && files.length > 0) {
+				return;
+			}
+			Thread.sleep(10);
+		}
+		throw new AssertionError("no checkpoint was written");
+	}
+
+	@Test
+	public void resumedRunEndsLikeAFullOne() throws Exception {
+
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, STEPS);
+		IState input = StandIns.input(scale, 0.1);
+		Map<String, IObservation> full = run(scale, input, STEPS, monitor);
+		assertTrue(messages.isEmpty());
+
+		run(scale, input, 5, monitor);
+		awaitCheckpoint();
+		Map<String, IObservation> resumed = run(scale, input, STEPS, monitor);
+		assertEquals(Collections.singletonList("resuming from checkpoint at step 3"), messages);
+
+		for (String output : full.keySet()) {
+			assertArrayEquals(step(full, output, STEPS), step(resumed, output, STEPS), 0);
+			for (int step = 1; step < 3; step++) {
+				for (double value : step(resumed, output, step)) {
+					assertTrue(Double.isNaN(value));
+				}
+			}
+		}
+		assertEquals(0, folder.getRoot().list().length);
+	}
+
+	@Test
+	public void otherInputsDoNotResume() throws Exception {
+
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, STEPS);
+		run(scale, StandIns.input(scale, 0.1), 5, monitor);
+		awaitCheckpoint();
+
+		IState other = StandIns.input(scale, 0.1);
+		StandIns.values(other)[CELLS - 1] += 1;
+		run(scale, other, STEPS, monitor);
+		assertTrue(messages.isEmpty());
+	}
+
+	@Test
+	public void resumingWorksWithoutAMonitor() throws Exception {
+
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, STEPS);
+		IState input = StandIns.input(scale, 0.1);
+		Map<String, IObservation> full = run(scale, input, STEPS, null);
+		run(scale, input, 5, null);
+		awaitCheckpoint();
+		Map<String, IObservation> resumed = run(scale, input, STEPS, null);
+		for (String output : full.keySet()) {
+			assertArrayEquals(step(full, output, STEPS), step(resumed, output, STEPS), 0);
+		}
+	}
+}
@@ -0,0 +1,228 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.integratedmodelling.api.modelling.IActiveProcess;
+import org.integratedmodelling.api.modelling.IObservation;
+import org.integratedmodelling.api.modelling.IScale;
+import org.integratedmodelling.api.modelling.IState;
+import org.integratedmodelling.api.modelling.scheduling.ITransition;
+import org.integratedmodelling.api.monitoring.IMonitor;
+import org.integratedmodelling.exceptions.KlabValidationException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import 3000.runtime.DeltaStream;
+
+/**
+ * Runs the example process with a loopback sink installed and checks that
+ * what the other end rebuilds from the records is what was computed.
+ */
+public class DeltaStreamTest {
+
+	private static final int WIDTH = 60;
+	private static final int HEIGHT = 40;
+	private static final int CELLS = WIDTH * HEIGHT;
+	private static final int STEPS = 6;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final List<Loopback> sinks = Collections.synchronizedList(new ArrayList<>());
+	private String checkpointDir;
+
+	@Before
+	public void install() {
+		DeltaStream.install("example.p", context -> {
+			Loopback ret = new Loopback();
+			sinks.add(ret);
+			return ret;
+		});
+		checkpointDir = System.getProperty("example.checkpoint.dir");
+		System.setProperty("example.checkpoint.dir", folder.getRoot().getPath());
+	}
+
+	@After
+	public void remove() {
+		DeltaStream.remove("example.p");
+		if (checkpointDir == null) {
+			System.clearProperty("example.checkpoint.dir");
+		} else {
+			System.setProperty("example.checkpoint.dir", checkpointDir);
+		}
+	}
+
+	private static ExampleProcessContextualizer contextualizer(long seed, int checkpoint) throws Exception {
+		ExampleProcessContextualizer ret = new ExampleProcessContextualizer();
+		Map<String, Object> parameters = new HashMap<>();
+		parameters.put("seed", seed);
+		parameters.put("cache", false);
+		parameters.put("checkpoint", checkpoint);
+		ret.setContext(parameters, null, null);
+		return ret;
+	}
+
+	private static Map<String, IObservation> initialize(ExampleProcessContextualizer contextualizer,
+			IActiveProcess process) throws Exception {
+		IMonitor monitor = StandIns.proxy(new Object(), IMonitor.class);
+		return contextualizer.initialize(process, process, null, StandIns.observables("in", 1),
+				StandIns.observables("out", 2), monitor);
+	}
+
+	private static void assertReceived(Map<String, IObservation> states, Loopback sink, int step) {
+		for (Map.Entry<String, IObservation> entry : states.entrySet()) {
+			double[] expected = Arrays.copyOfRange(StandIns.values((IState) entry.getValue()), step * CELLS,
+					(step + 1) * CELLS);
+			double[] received = sink.values(entry.getKey());
+			for (int i = 0; i < CELLS; i++) {
+				assertEquals(entry.getKey() + " cell " + i + " at step " + step,
+						Double.doubleToRawLongBits(expected[i]), Double.doubleToRawLongBits(received[i]));
+			}
+			assertEquals(step, sink.step(entry.getKey()));
+		}
+	}
+
+	@Test
+	public void everyTransitionIsRebuilt() throws Exception {
+
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, STEPS);
+		IActiveProcess process = StandIns.process(scale, StandIns.input(scale, 0.1));
+		ExampleProcessContextualizer contextualizer = contextualizer(3, 0);
+		Map<String, IObservation> states = initialize(contextualizer, process);
+
+		assertEquals(1, sinks.size());
+		Loopback sink = sinks.get(0);
+		assertReceived(states, sink, 0);
+
+		int step = 0;
+		for (ITransition transition : StandIns.transitions(scale)) {
+			states = contextualizer.compute(transition, Collections.emptyMap());
+			assertReceived(states, sink, ++step);
+		}
+		assertTrue(sink.isClosed());
+		assertTrue(sink.bytes() < 2L * (STEPS + 1) * CELLS * 8);
+	}
+
+	@Test
+	public void failedInitializationClosesTheSink() throws Exception {
+
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, STEPS);
+		IActiveProcess process = StandIns.process(scale, StandIns.input(scale, 0.1));
+		ExampleProcessContextualizer contextualizer = contextualizer(1, 0);
+		contextualizer.setContext(Collections.singletonMap("neighborhood", 5), null, null);
+		try {
+			initialize(contextualizer, process);
+		} catch (KlabValidationException e) {
+			assertEquals(1, sinks.size());
+			assertTrue(sinks.get(0).isClosed());
+			return;
+		}
+		throw new AssertionError("neighborhood = 5 was accepted");
+	}
+
+	@Test
+	public void concurrentRunsHaveTheirOwnSink() throws Exception {
+
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, STEPS);
+		IActiveProcess first = StandIns.process(scale, StandIns.input(scale, 0.1));
+		IActiveProcess second = StandIns.process(scale, StandIns.input(scale, 0));
+		ExampleProcessContextualizer a = contextualizer(1, 0);
+		ExampleProcessContextualizer b = contextualizer(2, 0);
+		Map<String, IObservation> as = initialize(a, first);
+		Map<String, IObservation> bs = initialize(b, second);
+
+		assertEquals(2, sinks.size());
+		assertNotSame(sinks.get(0), sinks.get(1));
+
+		int step = 0;
+		for (ITransition transition : StandIns.transitions(scale)) {
+			as = a.compute(transition, Collections.emptyMap());
+			bs = b.compute(transition, Collections.emptyMap());
+			step++;
+			assertReceived(as, sinks.get(0), step);
+			assertReceived(bs, sinks.get(1), step);
+		}
+	}
+
+	@Test
+	public void resumingSendsAKeyframe() throws Exception {
+
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, STEPS);
+		IActiveProcess process = StandIns.process(scale, StandIns.input(scale, 0.1));
+
+		/*
+		 * a run that stops after step 4, leaving the checkpoint of step 3.
+		 */
+		ExampleProcessContextualizer crashed = contextualizer(5, 3);
+		initialize(crashed, process);
+		ITransition[] transitions = StandIns.transitions(scale);
+		for (int i = 0; i < 4; i++) {
+			crashed.compute(transitions[i], Collections.emptyMap());
+		}
+		awaitCheckpoint();
+
+		/*
+		 * the rerun starts from it: the other end must get the values of step
+		 * 3 whatever it was holding, and deltas from there.
+		 */
+		ExampleProcessContextualizer resumed = contextualizer(5, 3);
+		Map<String, IObservation> states = initialize(resumed, process);
+		Loopback sink = sinks.get(1);
+		for (int step = 1; step <= STEPS; step++) {
+			states = resumed.compute(transitions[step - 1], Collections.emptyMap());
+			if (step >= 3) {
+				assertReceived(states, sink, step);
+			}
+		}
+	}
+
+	private void awaitCheckpoint() throws InterruptedException {
+		for (int i = 0; i < 500; i++) {
+			File[] files = folder.getRoot().listFiles((dir, name) -> !name.endsWith(".tmp"));
+			if (files != null && files.length > 0) {
+				return;
+			}
+			Thread.sleep(10);
+		}
+		throw new AssertionError("no checkpoint was written");
+	}
+}
@@ -0,0 +1,176 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.integratedmodelling.api.modelling.IActiveProcess;
+import org.integratedmodelling.api.modelling.IActiveSubject;
+import org.integratedmodelling.api.modelling.IObservation;
+import org.integratedmodelling.api.modelling.IScale;
+import org.integratedmodelling.api.modelling.IState;
+import org.integratedmodelling.api.modelling.scheduling.ITransition;
+import org.integratedmodelling.exceptions.KlabValidationException;
+import org.junit.Test;
+
+public class EventInstantiatorTest {
+
+	private static final int WIDTH = 60;
+	private static final int HEIGHT = 40;
+
+	private static ExampleEventInstantiator instantiator(IActiveSubject subject) throws Exception {
+		ExampleEventInstantiator ret = new ExampleEventInstantiator();
+		Map<String, Object> parameters = new HashMap<>();
+		parameters.put("threshold", 250.0);
+		ret.setContext(parameters, null, null);
+		ret.initialize(subject, null, null, null, StandIns.observables("event", 1), null);
+		return ret;
+	}
+
+	/**
+	 * Two instantiators watching the state written by the process each get
+	 * all the crossings, the same ones found by scanning a copy of it.
+	 */
+	@Test
+	public void watchersDoNotStealChanges() throws Exception {
+
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, 8);
+		IActiveProcess process = StandIns.process(scale, StandIns.input(scale, 0.1));
+		ExampleProcessContextualizer contextualizer = new ExampleProcessContextualizer();
+		Map<String, Object> parameters = new HashMap<>();
+		parameters.put("seed", 42);
+		parameters.put("cache", false);
+		contextualizer.setContext(parameters, null, null);
+		Map<String, IObservation> states = contextualizer.initialize(process, process, null,
+				StandIns.observables("in", 1), StandIns.observables("out", 1), null);
+		IState out = (IState) states.values().iterator().next();
+
+		IActiveSubject subject = StandIns.subject(scale);
+		ExampleEventInstantiator first = instantiator(subject);
+		ExampleEventInstantiator second = instantiator(subject);
+		Map<String, IObservation> a = new TreeMap<>();
+		Map<String, IObservation> b = new TreeMap<>();
+		for (ITransition transition : StandIns.transitions(scale)) {
+			contextualizer.compute(transition, Collections.emptyMap());
+			a.putAll(first.createEvents(transition, Collections.singletonMap("out", out)));
+			b.putAll(second.createEvents(transition, Collections.singletonMap("out", out)));
+		}
+
+		IState copy = StandIns.state(scale);
+		System.arraycopy(StandIns.values(out), 0, StandIns.values(copy), 0, StandIns.values(out).length);
+		ExampleEventInstantiator scanning = instantiator(subject);
+		Map<String, IObservation> c = new TreeMap<>();
+		for (ITransition transition : StandIns.transitions(scale)) {
+			c.putAll(scanning.createEvents(transition, Collections.singletonMap("out", copy)));
+		}
+
+		assertFalse(c.isEmpty());
+		assertEquals(c.keySet(), a.keySet());
+		assertEquals(c.keySet(), b.keySet());
+	}
+
+	/**
+	 * Taking the changes before the process has written the transition would
+	 * miss its crossings.
+	 */
+	@Test(expected = KlabValidationException.class)
+	public void eventsBeforeTheProcessFail() throws Exception {
+
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, 3);
+		IActiveProcess process = StandIns.process(scale, StandIns.input(scale, 0.1));
+		ExampleProcessContextualizer contextualizer = new ExampleProcessContextualizer();
+		Map<String, Object> parameters = new HashMap<>();
+		parameters.put("seed", 42);
+		parameters.put("cache", false);
+		contextualizer.setContext(parameters, null, null);
+		Map<String, IObservation> states = contextualizer.initialize(process, process, null,
+				StandIns.observables("in", 1), StandIns.observables("out", 1), null);
+		Map<String, IState> inputs = Collections.singletonMap("out",
+				(IState) states.values().iterator().next());
+
+		ExampleEventInstantiator instantiator = instantiator(StandIns.subject(scale));
+		ITransition[] transitions = StandIns.transitions(scale);
+		for (int i = 0; i < 2; i++) {
+			contextualizer.compute(transitions[i], Collections.emptyMap());
+			instantiator.createEvents(transitions[i], inputs);
+		}
+		instantiator.createEvents(transitions[2], inputs);
+	}
+
+	/**
+	 * A state replaced by one with the same values as the last ones seen
+	 * gives no crossings: the detector is not taken back to the initial
+	 * values.
+	 */
+	@Test
+	public void replacedStatesContinueFromTheLastValues() throws Exception {
+
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, 2);
+		int cells = WIDTH * HEIGHT;
+		IState first = StandIns.state(scale);
+		Arrays.fill(StandIns.values(first), 0);
+		Arrays.fill(StandIns.values(first), cells, 3 * cells, 500);
+		IState second = StandIns.state(scale);
+		System.arraycopy(StandIns.values(first), 0, StandIns.values(second), 0, 3 * cells);
+
+		ExampleEventInstantiator instantiator = instantiator(StandIns.subject(scale));
+		ITransition[] transitions = StandIns.transitions(scale);
+		assertEquals(cells, instantiator.createEvents(transitions[0], Collections.singletonMap("in", first)).size());
+		assertTrue(instantiator.createEvents(transitions[1], Collections.singletonMap("in", second)).isEmpty());
+	}
+
+	@Test
+	public void eventsAreInTheirCell() throws Exception {
+
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, 1);
+		IState input = StandIns.state(scale);
+		double[] values = StandIns.values(input);
+		int cells = WIDTH * HEIGHT;
+		Arrays.fill(values, 0);
+		values[cells + 3 * WIDTH + 5] = 500;
+
+		ExampleEventInstantiator instantiator = instantiator(StandIns.subject(scale, input));
+		ITransition transition = StandIns.transition(scale, 1);
+		Map<String, IObservation> events = instantiator.createEvents(transition,
+				Collections.singletonMap("in", input));
+
+		assertEquals(Collections.singleton("crossing_1_" + (3 * WIDTH + 5)), events.keySet());
+		IObservation event = events.values().iterator().next();
+		assertArrayEquals(new int[] { 5, 3, 5, 3 }, StandIns.box(event.getScale().getSpace()));
+		assertSame(transition.getTime(), event.getScale().getTime());
+	}
+}
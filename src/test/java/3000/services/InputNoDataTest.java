@@ -0,0 +1,192 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.integratedmodelling.api.modelling.IActiveProcess;
+import org.integratedmodelling.api.modelling.IObservation;
+import org.integratedmodelling.api.modelling.IScale;
+import org.integratedmodelling.api.modelling.IState;
+import org.integratedmodelling.api.modelling.scheduling.ITransition;
+import org.integratedmodelling.exceptions.KlabValidationException;
+import org.junit.Test;
+
+import 3000.runtime.InputPrefetcher;
+import 3000.runtime.Slice;
+
+/**
+ * Inputs with no data passed to compute(), which only mask the outputs when
+ * asked to.
+ */
+public class InputNoDataTest {
+
+	private static final int WIDTH = 60;
+	private static final int HEIGHT = 40;
+	private static final int CELLS = WIDTH * HEIGHT;
+	private static final int STEPS = 5;
+
+	/*
+	 * counts the values read from a state.
+	 */
+	static class Counting {
+
+		final IState state;
+		final AtomicInteger reads = new AtomicInteger();
+
+		Counting(IState state) {
+			this.state = state;
+		}
+
+		Object getValue(int offset) {
+			reads.incrementAndGet();
+			return state.getValue(offset);
+		}
+	}
+
+	private static ExampleProcessContextualizer contextualizer(Map<String, Object> options) throws Exception {
+		ExampleProcessContextualizer ret = new ExampleProcessContextualizer();
+		Map<String, Object> parameters = new HashMap<>(options);
+		parameters.put("seed", 42);
+		parameters.put("cache", false);
+		ret.setContext(parameters, null, null);
+		return ret;
+	}
+
+	private static double[] run(IScale scale, IState input, Map<String, Object> options) throws Exception {
+		return run(contextualizer(options), scale, input);
+	}
+
+	private static double[] run(ExampleProcessContextualizer contextualizer, IScale scale, IState input)
+			throws Exception {
+
+		IActiveProcess process = StandIns.process(scale);
+		Map<String, IObservation> states = contextualizer.initialize(process, process, null,
+				Collections.emptyMap(), StandIns.observables("out", 1), null);
+		Map<String, IState> inputs = input == null ? Collections.emptyMap() : Collections.singletonMap("in", input);
+		for (ITransition transition : StandIns.transitions(scale)) {
+			states = contextualizer.compute(transition, inputs);
+		}
+		return StandIns.values((IState) states.values().iterator().next());
+	}
+
+	@Test
+	public void inputsAreNotReadByDefault() throws Exception {
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, STEPS);
+		Counting input = new Counting(StandIns.input(scale, 0.1));
+		double[] with = run(scale, StandIns.proxy(input, IState.class), Collections.emptyMap());
+		assertEquals(0, input.reads.get());
+		assertArrayEquals(run(scale, null, Collections.emptyMap()), with, 0);
+	}
+
+	@Test
+	public void noDataMasksTheOutputsWhenAskedTo() throws Exception {
+
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, STEPS);
+		IState input = StandIns.input(scale, 0.1);
+		double[] free = run(scale, null, Collections.emptyMap());
+		double[] masked = run(scale, input, Collections.singletonMap("nodata", true));
+		double[] in = StandIns.values(input);
+
+		int nodata = 0;
+		for (int step = 1; step <= STEPS; step++) {
+			for (int cell = 0; cell < CELLS; cell++) {
+				int offset = step * CELLS + cell;
+				if (Double.isNaN(in[offset])) {
+					assertTrue(Double.isNaN(masked[offset]));
+					nodata++;
+				} else {
+					assertEquals(Double.doubleToLongBits(free[offset]), Double.doubleToLongBits(masked[offset]));
+				}
+			}
+		}
+		assertTrue(nodata > 0);
+	}
+
+	@Test
+	public void prefetchingGivesTheSameValues() throws Exception {
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, STEPS);
+		IState input = StandIns.input(scale, 0.1);
+		Map<String, Object> prefetch = new HashMap<>();
+		prefetch.put("nodata", true);
+		prefetch.put("prefetch", true);
+		assertArrayEquals(run(scale, input, Collections.singletonMap("nodata", true)), run(scale, input, prefetch),
+				0);
+	}
+
+	@Test
+	public void prefetchesAreUsedOnARegularRun() throws Exception {
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, STEPS);
+		Map<String, Object> prefetch = new HashMap<>();
+		prefetch.put("nodata", true);
+		prefetch.put("prefetch", true);
+		ExampleProcessContextualizer contextualizer = contextualizer(prefetch);
+		run(contextualizer, scale, StandIns.input(scale, 0.1));
+
+		/*
+		 * the first two transitions give the stride, the others are read
+		 * ahead.
+		 */
+		assertEquals(STEPS - 2, contextualizer.prefetcher.getHits());
+		assertEquals(2, contextualizer.prefetcher.getMisses());
+	}
+
+	@Test
+	public void wrongPredictionsAreReadAgain() throws Exception {
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, STEPS);
+		Map<String, IState> inputs = Collections.singletonMap("in", StandIns.input(scale, 0.1));
+		ITransition[] transitions = StandIns.transitions(scale);
+		InputPrefetcher prefetcher = new InputPrefetcher(true);
+		try {
+			prefetcher.read(inputs, Slice.of(scale, transitions[0]), true);
+			prefetcher.read(inputs, Slice.of(scale, transitions[1]), true);
+
+			/*
+			 * transitions[2] was read ahead, so going back is a miss.
+			 */
+			Slice back = Slice.of(scale, transitions[0]);
+			double[][] values = prefetcher.read(inputs, back, true);
+			assertEquals(0, prefetcher.getHits());
+			assertEquals(3, prefetcher.getMisses());
+			assertArrayEquals(new InputPrefetcher(false).read(inputs, back, false)[0], values[0], 0);
+		} finally {
+			prefetcher.close();
+		}
+	}
+
+	@Test(expected = KlabValidationException.class)
+	public void prefetchNeedsNoData() throws Exception {
+		new ExampleProcessContextualizer().setContext(Collections.singletonMap("prefetch", true), null, null);
+	}
+}
@@ -0,0 +1,208 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.integratedmodelling.api.modelling.IActiveProcess;
+import org.integratedmodelling.api.modelling.IObservation;
+import org.integratedmodelling.api.modelling.IScale;
+import org.integratedmodelling.api.modelling.IState;
+import org.integratedmodelling.api.modelling.scheduling.ITransition;
+import org.integratedmodelling.api.space.ISpatialExtent;
+import org.integratedmodelling.api.time.ITemporalExtent;
+import org.integratedmodelling.exceptions.KlabValidationException;
+import org.junit.Test;
+
+import 3000.runtime.DeltaStream;
+
+/**
+ * Runs of the example process with outputs that don't fit in the memory
+ * they're given, kept in files instead.
+ */
+public class OutOfCoreTest {
+
+	/*
+	 * 75000 cells: one output (two buffers) takes more than 1 MB.
+	 */
+	private static final int WIDTH = 300;
+	private static final int HEIGHT = 250;
+	private static final int STEPS = 5;
+
+	/*
+	 * counts the slices collected over the scale it stands in for, except
+	 * the one for initialization.
+	 */
+	static class Counting {
+
+		final IScale scale;
+		int transitions;
+
+		Counting(IScale scale) {
+			this.scale = scale;
+		}
+
+		Iterable<Integer> getIndex(Object locator) {
+			if (locator != null) {
+				transitions++;
+			}
+			return scale.getIndex((IScale.Locator) locator);
+		}
+
+		int getExtentOffset(Object extent, int offset) {
+			return scale.getExtentOffset((ISpatialExtent) extent, offset);
+		}
+
+		ISpatialExtent getSpace() {
+			return scale.getSpace();
+		}
+
+		ITemporalExtent getTime() {
+			return scale.getTime();
+		}
+
+		long getMultiplicity() {
+			return scale.getMultiplicity();
+		}
+
+		boolean isTemporallyDistributed() {
+			return scale.isTemporallyDistributed();
+		}
+	}
+
+	/*
+	 * a process over a counting scale, whose states are over the scale
+	 * counted.
+	 */
+	static class Process {
+
+		final Counting counting;
+
+		Process(Counting counting) {
+			this.counting = counting;
+		}
+
+		IScale getScale() {
+			return StandIns.proxy(counting, IScale.class);
+		}
+
+		Collection<IState> getStates() {
+			return Collections.emptyList();
+		}
+
+		IState getState(Object observable) {
+			return StandIns.state(counting.scale);
+		}
+	}
+
+	private static double[] run(IScale scale, IActiveProcess process, IState input, Map<String, Object> options)
+			throws Exception {
+
+		ExampleProcessContextualizer contextualizer = new ExampleProcessContextualizer();
+		Map<String, Object> parameters = new HashMap<>(options);
+		parameters.put("seed", 9);
+		parameters.put("cache", false);
+		contextualizer.setContext(parameters, null, null);
+
+		Map<String, IObservation> states = contextualizer.initialize(process, process, null,
+				Collections.emptyMap(), StandIns.observables("out", 1), null);
+		Map<String, IState> inputs = input == null ? Collections.emptyMap() : Collections.singletonMap("in", input);
+		for (ITransition transition : StandIns.transitions(scale)) {
+			states = contextualizer.compute(transition, inputs);
+		}
+		return StandIns.values((IState) states.values().iterator().next());
+	}
+
+	@Test
+	public void sameValuesAsInMemory() throws Exception {
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, STEPS);
+		assertArrayEquals(run(scale, StandIns.process(scale), null, Collections.emptyMap()),
+				run(scale, StandIns.process(scale), null, Collections.singletonMap("memory", 1)), 0);
+	}
+
+	@Test
+	public void onlyTheFirstTransitionIsCollected() throws Exception {
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, STEPS);
+		Counting counting = new Counting(scale);
+		double[] values = run(scale, StandIns.proxy(new Process(counting), IActiveProcess.class), null,
+				Collections.singletonMap("memory", 1));
+		assertEquals(1, counting.transitions);
+		assertArrayEquals(run(scale, StandIns.process(scale), null, Collections.emptyMap()), values, 0);
+	}
+
+	@Test
+	public void offsetsCountInTheBudget() throws Exception {
+
+		/*
+		 * the two buffers of one output take exactly 1 MB; the offsets and
+		 * the mask don't fit with them.
+		 */
+		IScale scale = StandIns.scale(256, 256, STEPS);
+		Counting counting = new Counting(scale);
+		double[] values = run(scale, StandIns.proxy(new Process(counting), IActiveProcess.class), null,
+				Collections.singletonMap("memory", 1));
+		assertEquals(1, counting.transitions);
+		assertArrayEquals(run(scale, StandIns.process(scale), null, Collections.emptyMap()), values, 0);
+	}
+
+	@Test
+	public void inputsAreReadThroughTheSlices() throws Exception {
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, STEPS);
+		IState input = StandIns.input(scale, 0.1);
+		Map<String, Object> options = new HashMap<>();
+		options.put("nodata", true);
+		double[] expected = run(scale, StandIns.process(scale), input, options);
+		options.put("memory", 1);
+		Counting counting = new Counting(scale);
+		double[] values = run(scale, StandIns.proxy(new Process(counting), IActiveProcess.class), input, options);
+		assertEquals(STEPS, counting.transitions);
+		assertArrayEquals(expected, values, 0);
+	}
+
+	@Test
+	public void outputsCantBeStreamedOutOfCore() throws Exception {
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, STEPS);
+		final Loopback[] sink = new Loopback[1];
+		DeltaStream.install("example.p", context -> sink[0] = new Loopback());
+		try {
+			run(scale, StandIns.process(scale), null, Collections.singletonMap("memory", 1));
+		} catch (KlabValidationException e) {
+			assertTrue(sink[0].isClosed());
+			return;
+		} finally {
+			DeltaStream.remove("example.p");
+		}
+		throw new AssertionError("streaming out of core was accepted");
+	}
+}
@@ -0,0 +1,142 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.integratedmodelling.api.modelling.IActiveProcess;
+import org.integratedmodelling.api.modelling.IObservation;
+import org.integratedmodelling.api.modelling.IScale;
+import org.integratedmodelling.api.modelling.IState;
+import org.integratedmodelling.api.modelling.scheduling.ITransition;
+import org.integratedmodelling.exceptions.KlabValidationException;
+import org.junit.Test;
+
+import 3000.runtime.CellRandom;
+
+/**
+ * With smooth = n, each step perturbs the mean of the previous n + 1 steps,
+ * read back from memory or from disk.
+ */
+public class SmoothTest {
+
+	private static final int WIDTH = 30;
+	private static final int HEIGHT = 20;
+	private static final int CELLS = WIDTH * HEIGHT;
+	private static final int STEPS = 6;
+	private static final int SEED = 42;
+
+	private static double[] run(Map<String, Object> options) throws Exception {
+
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, STEPS);
+		IActiveProcess process = StandIns.process(scale);
+		ExampleProcessContextualizer contextualizer = new ExampleProcessContextualizer();
+		Map<String, Object> parameters = new HashMap<>(options);
+		parameters.put("seed", SEED);
+		parameters.put("cache", false);
+		contextualizer.setContext(parameters, null, null);
+
+		Map<String, IObservation> states = contextualizer.initialize(process, process, null,
+				Collections.emptyMap(), StandIns.observables("out", 1), null);
+		for (ITransition transition : StandIns.transitions(scale)) {
+			states = contextualizer.compute(transition, Collections.emptyMap());
+		}
+		return StandIns.values((IState) states.values().iterator().next());
+	}
+
+	private static Map<String, Object> options(Object... keyValues) {
+		Map<String, Object> ret = new HashMap<>();
+		for (int i = 0; i < keyValues.length; i += 2) {
+			ret.put((String) keyValues[i], keyValues[i + 1]);
+		}
+		return ret;
+	}
+
+	@Test
+	public void stepsPerturbTheMeanOfThePreviousSteps() throws Exception {
+
+		int smooth = 2;
+		double[] values = run(options("smooth", smooth));
+		CellRandom random = new CellRandom(SEED);
+
+		for (int step = 1; step <= STEPS; step++) {
+			for (int cell = 0; cell < CELLS; cell++) {
+				double mean = 0;
+				int n = 0;
+				for (int s = step - 1; s >= step - 1 - smooth && s >= 0; s--) {
+					mean += values[s * CELLS + cell];
+					n++;
+				}
+				double expected = Math.max(0, mean / n + random.uniform(cell, step, 0, -50.0, 50.0));
+				assertEquals(expected, values[step * CELLS + cell], 1e-9);
+			}
+		}
+	}
+
+	@Test
+	public void smoothingChangesTheValuesFromTheSecondStep() throws Exception {
+		double[] plain = run(Collections.emptyMap());
+		double[] smoothed = run(options("smooth", 2));
+		int second = 2 * CELLS;
+		assertArrayEquals(Arrays.copyOf(plain, second), Arrays.copyOf(smoothed, second), 0);
+		assertNotEquals(plain[plain.length - 1], smoothed[smoothed.length - 1], 0);
+	}
+
+	@Test
+	public void spilledHistoryIsReadBack() throws Exception {
+		assertArrayEquals(run(options("smooth", 3)), run(options("smooth", 3, "spill", true)), 0);
+	}
+
+	@Test
+	public void lowerPrecisionStaysClose() throws Exception {
+		double[] exact = run(options("smooth", 3));
+		double[] single = run(options("smooth", 3, "precision", "float", "spill", true));
+		assertArrayEquals(exact, single, 1e-3);
+	}
+
+	@Test(expected = KlabValidationException.class)
+	public void spillNeedsSmoothing() throws Exception {
+		new ExampleProcessContextualizer().setContext(options("spill", true), null, null);
+	}
+
+	@Test(expected = KlabValidationException.class)
+	public void precisionNeedsSmoothing() throws Exception {
+		new ExampleProcessContextualizer().setContext(options("precision", "float"), null, null);
+	}
+
+	@Test(expected = KlabValidationException.class)
+	public void checkpointsCantBeSmoothed() throws Exception {
+		new ExampleProcessContextualizer().setContext(options("smooth", 2, "checkpoint", 2), null, null);
+	}
+}
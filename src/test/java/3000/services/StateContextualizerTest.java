@@ -0,0 +1,256 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.integratedmodelling.api.modelling.IScale;
+import org.integratedmodelling.api.modelling.scheduling.ITransition;
+import org.integratedmodelling.exceptions.KlabValidationException;
+import org.junit.Test;
+
+import 3000.runtime.CellRandom;
+
+/**
+ * The ensemble statistics of the example state contextualizer, checked
+ * against the same realizations computed here from the random numbers.
+ */
+public class StateContextualizerTest {
+
+	private static final long SEED = 7;
+	private static final int REALIZATIONS = 5;
+	private static final double SPREAD = 0.5;
+	private static final double[] QUANTILES = { 0, 0.25, 0.5, 0.9, 1 };
+
+	/*
+	 * cells 10 to 15 of a larger grid, so the random numbers depend on the
+	 * offset and not on the position in the block.
+	 */
+	private static final int FROM = 10;
+	private static final double[][] INPUTS = { { 1, 2, Double.NaN, 4, -3, Double.NaN },
+			{ 10, Double.NaN, Double.NaN, 0.5, 3, 2 } };
+	private static final double[] SUMS = { 11, 2, Double.NaN, 4.5, 0, 2 };
+
+	private static ExampleStateContextualizer ensemble(double spread) {
+		ExampleStateContextualizer ret = new ExampleStateContextualizer(null, REALIZATIONS, QUANTILES);
+		ret.setSeed(SEED);
+		ret.setSpread(spread);
+		return ret;
+	}
+
+	private static double[][] initialize(ExampleStateContextualizer contextualizer) throws Exception {
+		double[][] outputs = new double[contextualizer.getOutputKeys().length][SUMS.length];
+		contextualizer.initialize(FROM, FROM + SUMS.length, INPUTS, outputs);
+		return outputs;
+	}
+
+	@Test
+	public void quantileKeysAreRounded() {
+		assertEquals("value_q05", ExampleStateContextualizer.quantileKey(0.05));
+		assertEquals("value_q50", ExampleStateContextualizer.quantileKey(0.5));
+		assertEquals("value_q100", ExampleStateContextualizer.quantileKey(1));
+		assertEquals("value_q2.5", ExampleStateContextualizer.quantileKey(0.025));
+		assertEquals("value_q97.5", ExampleStateContextualizer.quantileKey(0.975));
+		double[] inexact = { 0.07, 0.14, 0.28, 0.29, 0.55, 0.56, 0.57, 0.58 };
+		for (double q : inexact) {
+			assertEquals(String.format("value_q%02d", Math.round(q * 100)), ExampleStateContextualizer.quantileKey(q));
+		}
+	}
+
+	@Test
+	public void noSpreadGivesTheSum() throws Exception {
+		double[][] outputs = initialize(ensemble(0));
+		for (int i = 0; i < SUMS.length; i++) {
+			if (Double.isNaN(SUMS[i])) {
+				continue;
+			}
+			assertEquals(SUMS[i], outputs[0][i], 1e-12);
+			assertEquals(0, outputs[1][i], 1e-12);
+			for (int q = 0; q < QUANTILES.length; q++) {
+				assertEquals(SUMS[i], outputs[2 + q][i], 1e-12);
+			}
+		}
+	}
+
+	/*
+	 * the realizations of cell i at a step, as drawn by the contextualizer.
+	 */
+	private static double[] realizations(int i, int step) {
+		CellRandom random = new CellRandom(SEED);
+		double[] ret = new double[REALIZATIONS];
+		for (int r = 0; r < REALIZATIONS; r++) {
+			ret[r] = SUMS[i] * (1 + SPREAD * (2 * random.uniform(FROM + i, step, r) - 1));
+		}
+		return ret;
+	}
+
+	@Test
+	public void statisticsOfKnownRealizations() throws Exception {
+
+		double[][] outputs = initialize(ensemble(SPREAD));
+
+		for (int i = 0; i < SUMS.length; i++) {
+			if (Double.isNaN(SUMS[i])) {
+				continue;
+			}
+			double[] x = realizations(i, 0);
+			double mean = 0;
+			for (int r = 0; r < REALIZATIONS; r++) {
+				mean += x[r] / REALIZATIONS;
+			}
+			double variance = 0;
+			for (int r = 0; r < REALIZATIONS; r++) {
+				variance += (x[r] - mean) * (x[r] - mean) / (REALIZATIONS - 1);
+			}
+			Arrays.sort(x);
+
+			assertEquals(mean, outputs[0][i], 1e-9);
+			assertEquals(variance, outputs[1][i], 1e-9);
+			// with 5 realizations the quartiles fall on ranks 0, 1, 2, 3.6, 4
+			assertEquals(x[0], outputs[2][i], 1e-9);
+			assertEquals(x[1], outputs[3][i], 1e-9);
+			assertEquals(x[2], outputs[4][i], 1e-9);
+			assertEquals(x[3] + 0.6 * (x[4] - x[3]), outputs[5][i], 1e-9);
+			assertEquals(x[4], outputs[6][i], 1e-9);
+		}
+	}
+
+	@Test
+	public void transitionsAreNumberedFromOne() throws Exception {
+
+		ExampleStateContextualizer contextualizer = ensemble(SPREAD);
+		initialize(contextualizer);
+		IScale scale = StandIns.scale(FROM + SUMS.length, 1, 3);
+
+		for (int step = 1; step <= 3; step++) {
+			/*
+			 * two blocks of the same transition
+			 */
+			ITransition transition = StandIns.transition(scale, step);
+			double[][] outputs = new double[contextualizer.getOutputKeys().length][SUMS.length];
+			contextualizer.compute(FROM, FROM + 2, transition, INPUTS, outputs);
+			double[][] rest = new double[INPUTS.length][];
+			for (int k = 0; k < INPUTS.length; k++) {
+				rest[k] = Arrays.copyOfRange(INPUTS[k], 2, SUMS.length);
+			}
+			double[][] more = new double[outputs.length][SUMS.length - 2];
+			contextualizer.compute(FROM + 2, FROM + SUMS.length, transition, rest, more);
+			for (int o = 0; o < outputs.length; o++) {
+				System.arraycopy(more[o], 0, outputs[o], 2, more[o].length);
+			}
+
+			for (int i = 0; i < SUMS.length; i++) {
+				if (Double.isNaN(SUMS[i])) {
+					continue;
+				}
+				double mean = 0;
+				for (double x : realizations(i, step)) {
+					mean += x / REALIZATIONS;
+				}
+				assertEquals(mean, outputs[0][i], 1e-9);
+			}
+		}
+	}
+
+	@Test
+	public void noDataStaysNoData() throws Exception {
+		double[][] outputs = initialize(ensemble(SPREAD));
+		for (double[] output : outputs) {
+			assertTrue(Double.isNaN(output[2]));
+		}
+	}
+
+	@Test
+	public void cellsAgreeWithBlocks() throws Exception {
+
+		double[][] block = initialize(ensemble(SPREAD));
+		ExampleStateContextualizer contextualizer = ensemble(SPREAD);
+		String[] keys = contextualizer.getOutputKeys();
+
+		for (int i = 0; i < SUMS.length; i++) {
+			Map<String, Object> inputs = new HashMap<>();
+			inputs.put("a", INPUTS[0][i]);
+			inputs.put("b", INPUTS[1][i]);
+			Map<String, Object> values = contextualizer.initialize(FROM + i, inputs);
+			for (int c = 0; c < keys.length; c++) {
+				assertEquals(keys[c], block[c][i], (Double) values.get(keys[c]), 1e-12);
+			}
+		}
+	}
+
+	@Test
+	public void createReadsTheParameters() throws Exception {
+
+		Map<String, Object> parameters = new HashMap<>();
+		parameters.put("realizations", 5);
+		parameters.put("quantiles", "0, 0.25 ,0.5,0.9,1");
+		parameters.put("seed", (int) SEED);
+		parameters.put("spread", SPREAD);
+		ExampleStateContextualizer created = ExampleStateContextualizer.create(parameters, null);
+
+		assertEquals(REALIZATIONS, created.getRealizations());
+		assertArrayEquals(ensemble(SPREAD).getOutputKeys(), created.getOutputKeys());
+		double[][] expected = initialize(ensemble(SPREAD));
+		double[][] outputs = initialize(created);
+		for (int c = 0; c < outputs.length; c++) {
+			assertArrayEquals(expected[c], outputs[c], 0);
+		}
+
+		ExampleStateContextualizer plain = ExampleStateContextualizer.create(new HashMap<String, Object>(), null);
+		assertEquals(1, plain.getRealizations());
+		assertArrayEquals(new String[] { ExampleStateContextualizer.OUTPUT }, plain.getOutputKeys());
+	}
+
+	@Test(expected = KlabValidationException.class)
+	public void quantilesMustBeNumbers() throws Exception {
+		Map<String, Object> parameters = new HashMap<>();
+		parameters.put("realizations", 5);
+		parameters.put("quantiles", "0.5,median");
+		ExampleStateContextualizer.create(parameters, null);
+	}
+
+	@Test(expected = KlabValidationException.class)
+	public void quantilesMustBeInRange() throws Exception {
+		Map<String, Object> parameters = new HashMap<>();
+		parameters.put("realizations", 5);
+		parameters.put("quantiles", "0.5,95");
+		ExampleStateContextualizer.create(parameters, null);
+	}
+
+	@Test(expected = KlabValidationException.class)
+	public void quantilesNeedAnEnsemble() throws Exception {
+		Map<String, Object> parameters = new HashMap<>();
+		parameters.put("quantiles", "0.5");
+		ExampleStateContextualizer.create(parameters, null);
+	}
+}
@@ -0,0 +1,142 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.integratedmodelling.api.modelling.IActiveProcess;
+import org.integratedmodelling.api.modelling.IObservation;
+import org.integratedmodelling.api.modelling.IScale;
+import org.integratedmodelling.api.modelling.IState;
+import org.integratedmodelling.api.modelling.scheduling.ITransition;
+import org.integratedmodelling.exceptions.KlabException;
+import org.junit.Test;
+
+import 3000.runtime.StripWorkers;
+import 3000.runtime.TileStore;
+
+/**
+ * Runs of the example process in worker JVMs, which must give the same
+ * values as in the engine.
+ */
+public class StripWorkersTest {
+
+	private static final int WIDTH = 40;
+	private static final int HEIGHT = 30;
+	private static final int STEPS = 4;
+
+	private static Map<String, double[]> run(int workers, int neighborhood) throws Exception {
+		return run(workers, neighborhood, 1, 0.1);
+	}
+
+	private static Map<String, double[]> run(int workers, int neighborhood, int multiplier, double nodata)
+			throws Exception {
+
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, STEPS);
+		IActiveProcess process = StandIns.process(scale, StandIns.input(scale, nodata));
+		ExampleProcessContextualizer contextualizer = new ExampleProcessContextualizer();
+		Map<String, Object> parameters = new HashMap<>();
+		parameters.put("seed", 42);
+		parameters.put("cache", false);
+		parameters.put("neighborhood", neighborhood);
+		parameters.put("workers", workers);
+		parameters.put("multiplier", multiplier);
+		contextualizer.setContext(parameters, null, null);
+
+		Map<String, IObservation> states = contextualizer.initialize(process, process, null,
+				StandIns.observables("in", 1), StandIns.observables("out", 2), null);
+		for (ITransition transition : StandIns.transitions(scale)) {
+			states = contextualizer.compute(transition, Collections.emptyMap());
+		}
+		Map<String, double[]> ret = new HashMap<>();
+		for (Map.Entry<String, IObservation> entry : states.entrySet()) {
+			ret.put(entry.getKey(), StandIns.values((IState) entry.getValue()));
+		}
+		return ret;
+	}
+
+	private static void assertSameRuns(Map<String, double[]> expected, Map<String, double[]> actual) {
+		assertEquals(expected.keySet(), actual.keySet());
+		for (String output : expected.keySet()) {
+			assertArrayEquals(output, expected.get(output), actual.get(output), 0);
+		}
+	}
+
+	@Test
+	public void workersComputeWhatTheEngineDoes() throws Exception {
+		assertSameRuns(run(0, 0), run(2, 0));
+	}
+
+	@Test
+	public void workersComputeNeighborhoodsAcrossStrips() throws Exception {
+		assertSameRuns(run(0, 4), run(2, 4));
+	}
+
+	@Test
+	public void workersApplyTheMultiplier() throws Exception {
+		Map<String, double[]> multiplied = run(0, 4, 3, 0);
+		assertSameRuns(multiplied, run(2, 4, 3, 0));
+		Map<String, double[]> plain = run(0, 4, 1, 0);
+		assertEquals(plain.keySet(), multiplied.keySet());
+		for (String output : plain.keySet()) {
+			assertFalse(output, Arrays.equals(plain.get(output), multiplied.get(output)));
+		}
+	}
+
+	@Test
+	public void workersThatDoNotAnswerAreKilled() throws Exception {
+
+		List<TileStore[]> outputs = new ArrayList<>();
+		int cells = WIDTH * HEIGHT;
+		outputs.add(new TileStore[] { new TileStore(cells), new TileStore(cells) });
+
+		StripWorkers workers = new StripWorkers(2, WIDTH, HEIGHT, 42, 0, 1, outputs);
+		assertEquals(2, workers.size());
+		workers.setTimeout(0);
+		try {
+			workers.step(1);
+			fail("the step should have timed out");
+		} catch (KlabException e) {
+			assertEquals(0, workers.size());
+		} finally {
+			workers.close();
+			for (TileStore store : outputs.get(0)) {
+				store.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.integratedmodelling.api.modelling.IActiveSubject;
+import org.integratedmodelling.api.modelling.IObservation;
+import org.integratedmodelling.api.modelling.IScale;
+import org.integratedmodelling.api.modelling.IState;
+import org.junit.Test;
+
+public class SubjectInstantiatorTest {
+
+	private static final int WIDTH = 40;
+	private static final int HEIGHT = 24;
+
+	/*
+	 * 3 x 3 blocks of ones separated by rows and columns of zeros.
+	 */
+	private static IState blocks(IScale scale) {
+		IState ret = StandIns.state(scale);
+		double[] data = StandIns.values(ret);
+		for (int i = 0; i < data.length; i++) {
+			int cell = i % (WIDTH * HEIGHT);
+			data[i] = (cell % WIDTH) % 4 != 3 && (cell / WIDTH) % 4 != 3 ? 1 : 0;
+		}
+		return ret;
+	}
+
+	private static ExampleSubjectInstantiator instantiator(IActiveSubject subject) throws Exception {
+		return instantiator(subject, false);
+	}
+
+	private static ExampleSubjectInstantiator instantiator(IActiveSubject subject, boolean agents) throws Exception {
+		ExampleSubjectInstantiator ret = new ExampleSubjectInstantiator();
+		Map<String, Object> parameters = new HashMap<>();
+		parameters.put("agents", agents);
+		parameters.put("threshold", 0.5);
+		parameters.put("threads", 2);
+		parameters.put("batch", 4);
+		ret.setContext(parameters, null, null);
+		ret.initialize(subject, null, null, StandIns.observables("in", 1), StandIns.observables("out", 1), null);
+		return ret;
+	}
+
+	@Test
+	public void eachSubjectCoversItsCluster() throws Exception {
+
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, 2);
+		IState input = blocks(scale);
+		IActiveSubject context = StandIns.subject(scale, input);
+		ExampleSubjectInstantiator instantiator = instantiator(context);
+		assertFalse(instantiator.canDispose());
+
+		Map<String, IObservation> subjects = instantiator.createSubjects(StandIns.transition(scale, 1),
+				Collections.singletonMap("in", input));
+		int n = 0;
+		for (Map.Entry<String, IObservation> entry : subjects.entrySet()) {
+			int first = Integer.parseInt(entry.getKey().substring("cluster_".length()));
+			int x = first % WIDTH, y = first / WIDTH;
+			assertArrayEquals(new int[] { x, y, x + 2, y + 2 },
+					StandIns.box(entry.getValue().getScale().getSpace()));
+			assertEquals(9, StandIns.cells(entry.getValue().getScale().getSpace()));
+			assertSame(scale.getTime(), entry.getValue().getScale().getTime());
+			n++;
+		}
+		assertEquals((WIDTH / 4) * (HEIGHT / 4), n);
+		assertEquals(n, StandIns.created(context).size());
+	}
+
+	@Test
+	public void subjectsAreAMap() throws Exception {
+
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, 2);
+		IState input = blocks(scale);
+		IActiveSubject context = StandIns.subject(scale, input);
+		ExampleSubjectInstantiator instantiator = instantiator(context);
+		Map<String, IObservation> subjects = instantiator.createSubjects(StandIns.transition(scale, 1),
+				Collections.singletonMap("in", input));
+
+		/*
+		 * looking one up creates the subjects up to it, and no more.
+		 */
+		assertTrue(subjects.containsKey("cluster_0"));
+		assertTrue(StandIns.created(context).size() < (WIDTH / 4) * (HEIGHT / 4));
+
+		Map<String, IObservation> copy = new HashMap<>(subjects);
+		assertEquals((WIDTH / 4) * (HEIGHT / 4), subjects.size());
+		assertEquals(copy, subjects);
+		assertEquals(subjects.size(), subjects.entrySet().stream().count());
+		for (Map.Entry<String, IObservation> entry : copy.entrySet()) {
+			assertSame(entry.getValue(), subjects.get(entry.getKey()));
+		}
+		assertEquals(subjects.size(), StandIns.created(context).size());
+	}
+
+	@Test
+	public void agentsComputeEveryTransition() throws Exception {
+
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, 4);
+		IState input = blocks(scale);
+		ExampleSubjectInstantiator instantiator = instantiator(StandIns.subject(scale, input), true);
+		Map<String, IObservation> subjects = instantiator.createSubjects(StandIns.transition(scale, 1),
+				Collections.singletonMap("in", input));
+		int n = subjects.size();
+		assertEquals(n, instantiator.contextualizers.size());
+
+		for (int step = 2; step <= 4; step++) {
+			for (ExampleSubjectContextualizer contextualizer : instantiator.contextualizers) {
+				assertFalse(contextualizer.canDispose());
+			}
+			assertTrue(instantiator.createSubjects(StandIns.transition(scale, step), null).isEmpty());
+		}
+		for (ExampleSubjectContextualizer contextualizer : instantiator.contextualizers) {
+			assertTrue(contextualizer.canDispose());
+		}
+		assertTrue(instantiator.canDispose());
+	}
+
+	@Test
+	public void canDisposeWithoutTime() throws Exception {
+		IScale scale = StandIns.scale(WIDTH, HEIGHT, 0);
+		assertTrue(instantiator(StandIns.subject(scale, blocks(scale))).canDispose());
+	}
+}
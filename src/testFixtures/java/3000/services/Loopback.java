@@ -0,0 +1,99 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.services;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import 3000.runtime.DeltaCodec;
+import 3000.runtime.DeltaStream;
+
+/**
+ * A stand-in for the remote engine, in the same JVM: it decodes the records
+ * of one run into a full buffer for each output, so that what was sent can be
+ * compared with what was computed. Each output must start with a keyframe,
+ * which also tells its size. Tests install it with
+ * {@link DeltaStream#install(String, DeltaStream.Factory)}.
+ */
+final class Loopback implements DeltaStream.Sink {
+
+	private final Map<String, double[]> values = new HashMap<>();
+	private final Map<String, Integer> steps = new HashMap<>();
+	private long bytes = 0;
+	private boolean closed = false;
+
+	@Override
+	public synchronized void send(String output, byte[] record) {
+		int type = DeltaCodec.type(record);
+		double[] state = values.get(output);
+		if (type == DeltaCodec.KEYFRAME) {
+			if (state == null || state.length != DeltaCodec.cells(record)) {
+				state = new double[DeltaCodec.cells(record)];
+				values.put(output, state);
+			}
+		} else if (state == null) {
+			throw new IllegalStateException("delta for " + output + " received before a keyframe");
+		}
+		steps.put(output, DeltaCodec.decode(record, state));
+		bytes += record.length;
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+	}
+
+	/**
+	 * The values of an output as rebuilt from the records received.
+	 */
+	public synchronized double[] values(String output) {
+		return values.get(output);
+	}
+
+	/**
+	 * The step the values of an output belong to, or -1 if nothing was
+	 * received.
+	 */
+	public synchronized int step(String output) {
+		Integer ret = steps.get(output);
+		return ret == null ? -1 : ret;
+	}
+
+	/**
+	 * The total size of the records received.
+	 */
+	public synchronized long bytes() {
+		return bytes;
+	}
+
+	/**
+	 * True once the run has ended.
+	 */
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+}
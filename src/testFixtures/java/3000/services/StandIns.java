@@ -0,0 +1,555 @@
+/*******************************************************************************
+ *  Copyright (C) 2007, 2015:
+ *  
+ *    - Ferdinando Villa <ferdinando.villa@bc3research.org>
+ *    - integratedmodelling.org
+ *    - any other authors listed in @author annotations
+ *
+ *    All rights reserved. This file is part of the k.LAB software suite,
+ *    meant to enable modular, collaborative, integrated 
+ *    development of interoperable data and model components. For
+ *    details, see http://integratedmodelling.org.
+ *    
+ *    This program is free software; you can redistribute it and/or
+ *    modify it under the terms of the Affero General Public License 
+ *    Version 3 or any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but without any warranty; without even the implied warranty of
+ *    merchantability or fitness for a particular purpose.  See the
+ *    Affero General Public License for more details.
+ *  
+ *     You should have received a copy of the Affero General Public License
+ *     along with this program; if not, write to the Free Software
+ *     Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *     The license is also available at: https://www.gnu.org/licenses/agpl.html
+ *******************************************************************************/
+package 3000.services;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.integratedmodelling.api.modelling.IActiveProcess;
+import org.integratedmodelling.api.modelling.IActiveSubject;
+import org.integratedmodelling.api.modelling.IEvent;
+import org.integratedmodelling.api.modelling.IObservable;
+import org.integratedmodelling.api.modelling.IObservation;
+import org.integratedmodelling.api.modelling.IScale;
+import org.integratedmodelling.api.modelling.IState;
+import org.integratedmodelling.api.modelling.ISubject;
+import org.integratedmodelling.api.modelling.scheduling.ITransition;
+import org.integratedmodelling.api.space.IGrid;
+import org.integratedmodelling.api.space.ISpatialExtent;
+import org.integratedmodelling.api.time.ITemporalExtent;
+import org.integratedmodelling.common.space.IGeometricShape;
+import org.integratedmodelling.engine.geospace.extents.SpaceExtent;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Lightweight in-memory stand-ins for the engine objects the contextualizers
+ * talk to, so that they can be tested and benchmarked without a running
+ * engine. The scale is a regular width x height grid with (steps + 1) time
+ * slices, the first of which is initialization; offsets are time-major, i.e.
+ * the offset of cell s at step t is t * cells + s. States are plain double
+ * arrays covering the whole scale.
+ * 
+ * Each stand-in is a dynamic proxy forwarding the interface methods it knows
+ * about to a plain object with methods of the same name and arity; anything
+ * else returns a default value. This keeps them independent of the parts of
+ * the API the contextualizers don't use.
+ */
+final class StandIns {
+
+	private static final GeometryFactory geometryFactory = new GeometryFactory();
+
+	/**
+	 * Side of the square grid cells, in degrees.
+	 */
+	private static final double CELL_SIZE = 0.01;
+
+	private StandIns() {
+	}
+
+	/**
+	 * A grid scale with the given size and number of timesteps.
+	 */
+	static IScale scale(int width, int height, int steps) {
+		return proxy(new Scale(width, height, steps), IScale.class);
+	}
+
+	/**
+	 * The transition for the passed step (1 to steps) in a scale made by
+	 * {@link #scale(int, int, int)}.
+	 */
+	static ITransition transition(IScale scale, int step) {
+		return proxy(new Transition(target(scale, Scale.class), step), ITransition.class);
+	}
+
+	/**
+	 * All the transitions of the scale, in order.
+	 */
+	static ITransition[] transitions(IScale scale) {
+		Scale s = target(scale, Scale.class);
+		ITransition[] ret = new ITransition[s.steps];
+		for (int i = 0; i < s.steps; i++) {
+			ret[i] = transition(scale, i + 1);
+		}
+		return ret;
+	}
+
+	/**
+	 * A numeric state over the whole scale, with all values set to NaN.
+	 */
+	static IState state(IScale scale) {
+		Scale s = target(scale, Scale.class);
+		double[] data = new double[s.cells * (s.steps + 1)];
+		Arrays.fill(data, Double.NaN);
+		return proxy(new State(scale, data), IState.class);
+	}
+
+	/**
+	 * A state whose values are a smooth field between 0 and 500, the same at
+	 * all timesteps, with the passed fraction of cells (taken in blocks) set to
+	 * no-data.
+	 */
+	static IState input(IScale scale, double nodata) {
+		IState ret = state(scale);
+		Scale s = target(scale, Scale.class);
+		double[] data = target(ret, State.class).data;
+		for (int i = 0; i < s.cells; i++) {
+			int x = i % s.width, y = i / s.width;
+			boolean masked = ((x / 16 + y / 16 * 7) % 100) < nodata * 100;
+			data[i] = masked ? Double.NaN : 250.0 + 250.0 * Math.sin(x * 0.05) * Math.cos(y * 0.05);
+		}
+		for (int step = 1; step <= s.steps; step++) {
+			System.arraycopy(data, 0, data, step * s.cells, s.cells);
+		}
+		return ret;
+	}
+
+	/**
+	 * The raw values of a state made by {@link #state(IScale)}.
+	 */
+	static double[] values(IState state) {
+		return target(state, State.class).data;
+	}
+
+	/**
+	 * A process over the scale, whose context subject contains the passed
+	 * states.
+	 */
+	static IActiveProcess process(IScale scale, IState... states) {
+		return proxy(new Observation(scale, states), IActiveProcess.class);
+	}
+
+	/**
+	 * A subject over the scale containing the passed states.
+	 */
+	static IActiveSubject subject(IScale scale, IState... states) {
+		return proxy(new Observation(scale, states), IActiveSubject.class);
+	}
+
+	/**
+	 * n numeric observables named prefix1...prefixN.
+	 */
+	static Map<String, IObservable> observables(String prefix, int n) {
+		Map<String, IObservable> ret = new LinkedHashMap<>();
+		for (int i = 1; i <= n; i++) {
+			ret.put(prefix + i, proxy(new Object(), IObservable.class));
+		}
+		return ret;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> T proxy(Object target, Class<T> cls, Class<?>... others) {
+		Class<?>[] interfaces = new Class<?>[others.length + 1];
+		interfaces[0] = cls;
+		System.arraycopy(others, 0, interfaces, 1, others.length);
+		return (T) Proxy.newProxyInstance(StandIns.class.getClassLoader(), interfaces, new Forwarder(target));
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> T target(Object proxy, Class<T> cls) {
+		return (T) ((Forwarder) Proxy.getInvocationHandler(proxy)).target;
+	}
+
+	static class Forwarder implements InvocationHandler {
+
+		private static final Map<String, Method> methods = new ConcurrentHashMap<>();
+		private static final Method NONE;
+
+		static {
+			try {
+				NONE = Object.class.getMethod("toString");
+			} catch (NoSuchMethodException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		final Object target;
+
+		Forwarder(Object target) {
+			this.target = target;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+			int arity = args == null ? 0 : args.length;
+
+			switch (method.getName()) {
+			case "equals":
+				return arity == 1 && proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+				return target.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+			}
+
+			Method m = find(target.getClass(), method.getName(), arity);
+			if (m != null) {
+				return m.invoke(target, args);
+			}
+
+			Class<?> ret = method.getReturnType();
+			if (ret == boolean.class) {
+				return false;
+			} else if (ret == double.class) {
+				return 0.0;
+			} else if (ret == float.class) {
+				return 0.0f;
+			} else if (ret == long.class) {
+				return 0L;
+			} else if (ret.isPrimitive() && ret != void.class) {
+				return 0;
+			}
+			return null;
+		}
+
+		private static Method find(Class<?> cls, String name, int arity) {
+			Method ret = methods.computeIfAbsent(cls.getName() + "#" + name + "/" + arity, (key) -> {
+				for (Class<?> c = cls; c != Object.class; c = c.getSuperclass()) {
+					for (Method m : c.getDeclaredMethods()) {
+						if (m.getName().equals(name) && m.getParameterCount() == arity) {
+							m.setAccessible(true);
+							return m;
+						}
+					}
+				}
+				return NONE;
+			});
+			return ret == NONE ? null : ret;
+		}
+	}
+
+	/*
+	 * the targets. Method names and arities match the API methods they stand
+	 * in for.
+	 */
+
+	static class Scale {
+
+		final int width;
+		final int height;
+		final int cells;
+		final int steps;
+		final ISpatialExtent space;
+		final ITemporalExtent time;
+
+		Scale(int width, int height, int steps) {
+			this.width = width;
+			this.height = height;
+			this.cells = width * height;
+			this.steps = steps;
+			this.space = proxy(new Space(this), ISpatialExtent.class);
+			this.time = proxy(new Time(steps + 1), ITemporalExtent.class);
+		}
+
+		Iterable<Integer> getIndex(Object locator) {
+			int step = locator == null ? 0 : target(locator, Transition.class).step;
+			return range(step * cells, cells);
+		}
+
+		int getExtentOffset(Object extent, int offset) {
+			return extent == getSpace() ? offset % cells : offset / cells;
+		}
+
+		ISpatialExtent getSpace() {
+			return space;
+		}
+
+		ITemporalExtent getTime() {
+			return time;
+		}
+
+		long getMultiplicity() {
+			return (long) cells * (steps + 1);
+		}
+
+		boolean isTemporallyDistributed() {
+			return steps > 0;
+		}
+	}
+
+	static class Transition extends Scale {
+
+		final Scale scale;
+		final int step;
+
+		Transition(Scale scale, int step) {
+			super(scale.width, scale.height, 0);
+			this.scale = scale;
+			this.step = step;
+		}
+
+		ITransition previous() {
+			return step == 0 ? null : proxy(new Transition(scale, step - 1), ITransition.class);
+		}
+
+		boolean isLast() {
+			return step == scale.steps;
+		}
+
+		@Override
+		Iterable<Integer> getIndex(Object locator) {
+			return range(step * cells, cells);
+		}
+
+		@Override
+		ISpatialExtent getSpace() {
+			return scale.space;
+		}
+	}
+
+	static class Space {
+
+		final Scale scale;
+		final IGrid grid;
+
+		Space(Scale scale) {
+			this.scale = scale;
+			this.grid = proxy(new Grid(scale.width, scale.height), IGrid.class);
+		}
+
+		long getMultiplicity() {
+			return scale.cells;
+		}
+
+		IGrid getGrid() {
+			return grid;
+		}
+
+		ISpatialExtent getExtent(int offset) {
+			int x = offset % scale.width, y = offset / scale.width;
+			return proxy(new Shape(geometryFactory.toGeometry(
+					new Envelope(x * CELL_SIZE, (x + 1) * CELL_SIZE, y * CELL_SIZE, (y + 1) * CELL_SIZE))),
+					ISpatialExtent.class, IGeometricShape.class);
+		}
+	}
+
+	/**
+	 * The box of grid cells spanned by a spatial extent made by the
+	 * stand-ins, or from their cells, as {minX, minY, maxX, maxY}.
+	 */
+	static int[] box(ISpatialExtent extent) {
+		Envelope envelope = geometry(extent).getEnvelopeInternal();
+		return new int[] { (int) Math.round(envelope.getMinX() / CELL_SIZE),
+				(int) Math.round(envelope.getMinY() / CELL_SIZE),
+				(int) Math.round(envelope.getMaxX() / CELL_SIZE) - 1,
+				(int) Math.round(envelope.getMaxY() / CELL_SIZE) - 1 };
+	}
+
+	/**
+	 * The number of grid cells actually covered by a spatial extent made by
+	 * the stand-ins, or from their cells; less than the cells in its
+	 * {@link #box(ISpatialExtent)} if it has holes.
+	 */
+	static int cells(ISpatialExtent extent) {
+		return (int) Math.round(geometry(extent).getArea() / (CELL_SIZE * CELL_SIZE));
+	}
+
+	private static Geometry geometry(ISpatialExtent extent) {
+		return extent instanceof SpaceExtent ? ((SpaceExtent) extent).getShape().getStandardizedGeometry()
+				: ((IGeometricShape) extent).getStandardizedGeometry();
+	}
+
+	/**
+	 * A spatial extent with an arbitrary shape, a grid cell to begin with.
+	 * The union is the true one, so the union of cells that don't touch has
+	 * a hole between them.
+	 */
+	static class Shape {
+
+		final Geometry geometry;
+
+		Shape(Geometry geometry) {
+			this.geometry = geometry;
+		}
+
+		long getMultiplicity() {
+			return 1;
+		}
+
+		Geometry getStandardizedGeometry() {
+			return geometry;
+		}
+
+		ISpatialExtent union(Object other) {
+			return proxy(new Shape(geometry.union(target(other, Shape.class).geometry)), ISpatialExtent.class,
+					IGeometricShape.class);
+		}
+	}
+
+	static class Grid {
+
+		final int width;
+		final int height;
+
+		Grid(int width, int height) {
+			this.width = width;
+			this.height = height;
+		}
+
+		int[] getXYOffsets(int offset) {
+			return new int[] { offset % width, offset / width };
+		}
+
+		int getXCells() {
+			return width;
+		}
+
+		int getYCells() {
+			return height;
+		}
+
+		int getOffset(int x, int y) {
+			return y * width + x;
+		}
+	}
+
+	static class Time {
+
+		final long multiplicity;
+
+		Time(long multiplicity) {
+			this.multiplicity = multiplicity;
+		}
+
+		long getMultiplicity() {
+			return multiplicity;
+		}
+	}
+
+	static class State {
+
+		final IScale scale;
+		final double[] data;
+
+		State(IScale scale, double[] data) {
+			this.scale = scale;
+			this.data = data;
+		}
+
+		IScale getScale() {
+			return scale;
+		}
+
+		Object getValue(int offset) {
+			return data[offset];
+		}
+
+		void setValue(int offset, Object value) {
+			data[offset] = ((Number) value).doubleValue();
+		}
+	}
+
+	/**
+	 * The subjects and events created so far in a subject made by
+	 * {@link #subject(IScale, IState...)}.
+	 */
+	static List<IObservation> created(IActiveSubject subject) {
+		return target(subject, Observation.class).created;
+	}
+
+	static class Observation {
+
+		final IScale scale;
+		final IObservable observable;
+		final List<IState> states;
+		final List<IObservation> created = Collections.synchronizedList(new ArrayList<>());
+
+		Observation(IScale scale, IState[] states) {
+			this(scale, null, states);
+		}
+
+		Observation(IScale scale, IObservable observable, IState[] states) {
+			this.scale = scale;
+			this.observable = observable;
+			this.states = new ArrayList<>(Arrays.asList(states));
+		}
+
+		IScale getScale() {
+			return scale;
+		}
+
+		IObservable getObservable() {
+			return observable;
+		}
+
+		ISubject newSubject(IObservable observable, IScale scale, String name, Object relationship) {
+			ISubject ret = proxy(new Observation(scale, observable, new IState[0]), IActiveSubject.class);
+			created.add(ret);
+			return ret;
+		}
+
+		IEvent newEvent(IObservable observable, IScale scale, String name) {
+			IEvent ret = proxy(new Observation(scale, observable, new IState[0]), IEvent.class);
+			created.add(ret);
+			return ret;
+		}
+
+		Collection<IState> getStates() {
+			return states;
+		}
+
+		IState getState(Object observable) {
+			IState ret = state(scale);
+			states.add(ret);
+			return ret;
+		}
+	}
+
+	static Iterable<Integer> range(final int start, final int size) {
+		return () -> new Iterator<Integer>() {
+
+			int next = start;
+
+			@Override
+			public boolean hasNext() {
+				return next < start + size;
+			}
+
+			@Override
+			public Integer next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return next++;
+			}
+		};
+	}
+}